@@ -9,3 +9,8 @@
 
 -renamesourcefileattribute SourceFile
 -keepattributes SourceFile,LineNumberTable
+
+# Padding fields of the lock-free queue are never read, but must stay.
+-keepclassmembers class alpine.term.emulator.ByteQueue$PaddedCounter {
+    long mPadding*;
+}
@@ -21,6 +21,8 @@ package alpine.term;
 
 import android.content.Context;
 
+import java.io.File;
+
 /**
  * Application build-time configuration entries.
  */
@@ -50,6 +52,28 @@ public class Config {
      */
     public static final String QEMU_UPSTREAM_DNS = "8.8.8.8";
 
+    /**
+     * Maximal size of terminal history which each session keeps on disk
+     * beyond what it keeps in memory.
+     */
+    public static final long TRANSCRIPT_SPILL_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * How long terminal history kept on disk is retained.
+     */
+    public static final long TRANSCRIPT_SPILL_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Size at which a file of logged session output is rotated.
+     */
+    public static final long SESSION_LOG_MAX_FILE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Number of files of logged output kept for each session, of which
+     * all but the one being written are compressed.
+     */
+    public static final int SESSION_LOG_MAX_FILES = 8;
+
     /**
      * A tag used for general logging.
      */
@@ -83,4 +107,35 @@ public class Config {
     public static String getTemporaryDirectory(final Context context) {
         return context.getCacheDir().getAbsolutePath();
     }
+
+    /**
+     * Returns path to directory where sessions keep terminal history on disk.
+     */
+    public static String getTranscriptSpillDirectory(final Context context) {
+        return getTemporaryDirectory(context) + "/transcripts";
+    }
+
+    /**
+     * Returns path to directory with files offered to other applications, see res/xml/shared_file_paths.xml.
+     */
+    public static String getSharedFilesDirectory(final Context context) {
+        return getTemporaryDirectory(context) + "/shared";
+    }
+
+    /**
+     * Returns path to directory where logged session output and recordings are placed,
+     * on external storage so that it can be retrieved after a crash.
+     */
+    public static String getSessionLogDirectory(final Context context) {
+        File externalFilesDir = context.getExternalFilesDir(null);
+        if (externalFilesDir == null) externalFilesDir = context.getFilesDir();
+        return externalFilesDir.getAbsolutePath() + "/logs";
+    }
+
+    /**
+     * Returns the authority of the file provider serving {@link #getSharedFilesDirectory(Context)}.
+     */
+    public static String getFileProviderAuthority(final Context context) {
+        return context.getPackageName() + ".files";
+    }
 }
@@ -61,25 +61,32 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Objects;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.annotation.NonNull;
+import androidx.core.content.FileProvider;
 import androidx.drawerlayout.widget.DrawerLayout;
 import androidx.viewpager.widget.PagerAdapter;
 import androidx.viewpager.widget.ViewPager;
 
+import alpine.term.emulator.TerminalBuffer;
 import alpine.term.emulator.TerminalColors;
 import alpine.term.emulator.TerminalSession;
 import alpine.term.emulator.TerminalSession.SessionChangedCallback;
@@ -106,6 +113,15 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     private static final int CONTEXTMENU_RESET_TERMINAL_ID = 5;
     private static final int CONTEXTMENU_CONSOLE_STYLE = 6;
     private static final int CONTEXTMENU_TOGGLE_IGNORE_BELL = 7;
+    private static final int CONTEXTMENU_TOGGLE_ROW_CACHE = 8;
+    private static final int CONTEXTMENU_TRANSCRIPT_ROWS = 9;
+    private static final int CONTEXTMENU_SEARCH = 10;
+    private static final int CONTEXTMENU_TOGGLE_OUTPUT_LOG = 11;
+    private static final int CONTEXTMENU_TOGGLE_RECORDING = 12;
+    private static final int CONTEXTMENU_CANCEL_PASTE = 13;
+
+    /** The choices offered for the number of rows a session keeps. */
+    private static final int[] TRANSCRIPT_ROWS_CHOICES = {1000, 5000, 20000, 100000};
 
     private final int MAX_FONTSIZE = 256;
     private int MIN_FONTSIZE;
@@ -143,6 +159,15 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
      */
     private boolean mIsVisible;
 
+    /**
+     * Runs work on snapshots of the transcript, such as writing it to a file, so that long histories do not block the
+     * UI thread.
+     */
+    private final ExecutorService mTranscriptExecutor = Executors.newSingleThreadExecutor();
+
+    /** The bar for searching the history of the current session. */
+    private TranscriptSearchBar mSearchBar;
+
     @Override
     protected void onCreate(Bundle bundle) {
         super.onCreate(bundle);
@@ -151,6 +176,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
 
         setContentView(R.layout.drawer_layout);
         mTerminalView = findViewById(R.id.terminal_view);
+        mSearchBar = new TranscriptSearchBar(findViewById(R.id.search_bar), mTerminalView);
         mTerminalView.setOnKeyListener(new InputDispatcher(this));
 
         float dipInPixels = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, getResources().getDisplayMetrics());
@@ -169,6 +195,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
 
         TerminalActivity.currentFontSize = Math.max(MIN_FONTSIZE, Math.min(TerminalActivity.currentFontSize, MAX_FONTSIZE));
         mTerminalView.setTextSize(TerminalActivity.currentFontSize);
+        mTerminalView.setRowCacheEnabled(mSettings.isRowCacheEnabled());
 
         mTerminalView.setKeepScreenOn(true);
         mTerminalView.requestFocus();
@@ -320,6 +347,8 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mTranscriptExecutor.shutdown();
+        mSearchBar.destroy();
         if (mTermService != null) {
             // Do not leave service with references to activity.
             mTermService.mSessionChangeCallback = null;
@@ -348,12 +377,20 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             Log.i(Config.APP_LOG_TAG, "VNC viewer is not installed");
         }
 
+        if (currentSession.isPasting()) {
+            menu.add(Menu.NONE, CONTEXTMENU_CANCEL_PASTE, Menu.NONE, R.string.menu_cancel_paste);
+        }
         menu.add(Menu.NONE, CONTEXTMENU_SHOW_HELP, Menu.NONE, R.string.menu_show_help);
         menu.add(Menu.NONE, CONTEXTMENU_SELECT_URL_ID, Menu.NONE, R.string.menu_select_url);
+        menu.add(Menu.NONE, CONTEXTMENU_SEARCH, Menu.NONE, R.string.menu_search);
         menu.add(Menu.NONE, CONTEXTMENU_SHARE_TRANSCRIPT_ID, Menu.NONE, R.string.menu_share_transcript);
         menu.add(Menu.NONE, CONTEXTMENU_RESET_TERMINAL_ID, Menu.NONE, R.string.menu_reset_terminal);
         menu.add(Menu.NONE, CONTEXTMENU_CONSOLE_STYLE, Menu.NONE, R.string.menu_console_style);
         menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_IGNORE_BELL, Menu.NONE, R.string.menu_toggle_ignore_bell).setCheckable(true).setChecked(mSettings.isBellIgnored());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_ROW_CACHE, Menu.NONE, R.string.menu_toggle_row_cache).setCheckable(true).setChecked(mSettings.isRowCacheEnabled());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_OUTPUT_LOG, Menu.NONE, R.string.menu_toggle_output_log).setCheckable(true).setChecked(mSettings.isOutputLogEnabled());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_RECORDING, Menu.NONE, R.string.menu_toggle_recording).setCheckable(true).setChecked(currentSession.isRecording());
+        menu.add(Menu.NONE, CONTEXTMENU_TRANSCRIPT_ROWS, Menu.NONE, R.string.menu_transcript_rows);
     }
 
     @Override
@@ -403,29 +440,18 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             case CONTEXTMENU_SELECT_URL_ID:
                 showUrlSelection();
                 return true;
+            case CONTEXTMENU_SEARCH:
+                mSearchBar.show();
+                return true;
             case CONTEXTMENU_SHARE_TRANSCRIPT_ID:
-                if (session != null) {
-                    Intent intent = new Intent(Intent.ACTION_SEND);
-                    intent.setType("text/plain");
-                    String transcriptText = session.getEmulator().getScreen().getTranscriptTextWithoutJoinedLines().trim();
-                    // See https://github.com/termux/termux-app/issues/1166.
-                    final int MAX_LENGTH = 100_000;
-                    if (transcriptText.length() > MAX_LENGTH) {
-                        int cutOffIndex = transcriptText.length() - MAX_LENGTH;
-                        int nextNewlineIndex = transcriptText.indexOf('\n', cutOffIndex);
-                        if (nextNewlineIndex != -1 && nextNewlineIndex != transcriptText.length() - 1) {
-                            cutOffIndex = nextNewlineIndex + 1;
-                        }
-                        transcriptText = transcriptText.substring(cutOffIndex).trim();
-                    }
-                    intent.putExtra(Intent.EXTRA_TEXT, transcriptText);
-                    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.share_transcript_file_name));
-                    startActivity(Intent.createChooser(intent, getString(R.string.share_transcript_chooser_title)));
-                }
+                if (session != null) shareTranscript(session);
                 return true;
             case CONTEXTMENU_PASTE_ID:
                 doPaste();
                 return true;
+            case CONTEXTMENU_CANCEL_PASTE:
+                if (session != null) session.cancelPaste();
+                return true;
             case CONTEXTMENU_RESET_TERMINAL_ID: {
                 if (session != null) {
                     session.reset(true);
@@ -441,6 +467,32 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
                 }
                 return true;
             }
+            case CONTEXTMENU_TOGGLE_ROW_CACHE: {
+                boolean enabled = !mSettings.isRowCacheEnabled();
+                mSettings.setRowCacheEnabled(this, enabled);
+                mTerminalView.setRowCacheEnabled(enabled);
+                return true;
+            }
+            case CONTEXTMENU_TOGGLE_OUTPUT_LOG: {
+                boolean enabled = !mSettings.isOutputLogEnabled();
+                mSettings.setOutputLogEnabled(this, enabled);
+                if (mTermService != null) mTermService.setOutputLogEnabled(enabled);
+                if (enabled) showToast(getString(R.string.output_log_toast_enabled, Config.getSessionLogDirectory(this)), true);
+                return true;
+            }
+            case CONTEXTMENU_TOGGLE_RECORDING: {
+                if (session == null || mTermService == null) return true;
+                if (session.isRecording()) {
+                    session.stopRecording();
+                } else {
+                    File file = mTermService.startRecording(session);
+                    if (session.isRecording()) showToast(getString(R.string.recording_toast_started, file.getPath()), true);
+                }
+                return true;
+            }
+            case CONTEXTMENU_TRANSCRIPT_ROWS:
+                if (session != null) transcriptRowsDialog(session);
+                return true;
 
             default:
                 return super.onContextItemSelected(item);
@@ -470,6 +522,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             public void onTextChanged(TerminalSession changedSession) {
                 if (!mIsVisible) return;
                 if (mTerminalView.getCurrentSession() == changedSession) mTerminalView.onScreenUpdated();
+                mSearchBar.onTextChanged(changedSession);
             }
 
             @Override
@@ -522,6 +575,18 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             public void onColorsChanged(TerminalSession changedSession) {
                 if (mTerminalView.getCurrentSession() == changedSession) updateBackgroundColor();
             }
+
+            @Override
+            public void onPasteProgress(TerminalSession session, int pastedChars, int totalChars) {
+                if (!mIsVisible) return;
+                showToast(getString(R.string.paste_toast_progress, (int) (100L * pastedChars / totalChars)), false);
+            }
+
+            @Override
+            public void onPasteFinished(TerminalSession session, boolean cancelled) {
+                if (!mIsVisible || !cancelled || !session.isRunning()) return;
+                showToast(getResources().getString(R.string.paste_toast_cancelled), false);
+            }
         };
 
         ListView listView = findViewById(R.id.left_drawer_list);
@@ -584,12 +649,10 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
                         TerminalSession session;
 
                         session = mTermService.createQemuSession();
-                        session.mSessionName = "QEMU";
                         mTerminalView.attachSession(session);
 
                         for (int i = 0; i < 4; i++) {
                             session = mTermService.createSocatSession(i);
-                            session.mSessionName = String.format(Locale.US, "/dev/ttyS%d", i);
                             mTerminalView.attachSession(session);
                         }
 
@@ -618,6 +681,8 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     public void onBackPressed() {
         if (getDrawer().isDrawerOpen(Gravity.LEFT)) {
             getDrawer().closeDrawers();
+        } else if (mSearchBar.isShown()) {
+            mSearchBar.hide();
         }
     }
 
@@ -725,6 +790,41 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         builder.create().show();
     }
 
+    /**
+     * Open dialog for selecting how many rows are kept by the QEMU monitor or the serial consoles, depending on which
+     * one the session is. The choice is saved and applies to the running sessions right away.
+     */
+    private void transcriptRowsDialog(TerminalSession session) {
+        final boolean monitor = mTermService.isQemuSession(session);
+
+        String[] choices = new String[TRANSCRIPT_ROWS_CHOICES.length];
+        int checked = -1;
+        for (int i = 0; i < TRANSCRIPT_ROWS_CHOICES.length; i++) {
+            choices[i] = getResources().getString(R.string.transcript_rows_choice, TRANSCRIPT_ROWS_CHOICES[i]);
+            if (TRANSCRIPT_ROWS_CHOICES[i] == session.getTranscriptRows()) checked = i;
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(monitor ? R.string.transcript_rows_dialog_title_monitor : R.string.transcript_rows_dialog_title_serial);
+        builder.setSingleChoiceItems(choices, checked, (dialogInterface, i) -> {
+            int rows = TRANSCRIPT_ROWS_CHOICES[i];
+
+            if (monitor) {
+                mSettings.setMonitorTranscriptRows(this, rows);
+                session.setTranscriptRows(rows);
+            } else {
+                mSettings.setSerialTranscriptRows(this, rows);
+                for (TerminalSession serialSession : mTermService.getSessions()) {
+                    if (!mTermService.isQemuSession(serialSession)) serialSession.setTranscriptRows(rows);
+                }
+            }
+
+            dialogInterface.dismiss();
+        });
+
+        builder.create().show();
+    }
+
     /**
      * The current session as stored or the last one if that does not exist.
      */
@@ -815,15 +915,15 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             if (!TextUtils.isEmpty(paste)) {
                 TerminalSession currentSession = mTerminalView.getCurrentSession();
 
-                if (currentSession != null) {
-                    currentSession.getEmulator().paste(paste.toString());
+                if (currentSession != null && !currentSession.paste(paste.toString()) && currentSession.isPasting()) {
+                    showToast(getResources().getString(R.string.paste_toast_busy), false);
                 }
             }
         }
     }
 
     /**
-     * Extract URLs from the current transcript and show them in dialog.
+     * Show the URLs found in the current transcript in dialog.
      */
     public void showUrlSelection() {
         TerminalSession currentSession = mTerminalView.getCurrentSession();
@@ -832,8 +932,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             return;
         }
 
-        String text = currentSession.getEmulator().getScreen().getTranscriptText();
-        LinkedHashSet<CharSequence> urlSet = extractUrls(text);
+        LinkedHashSet<String> urlSet = currentSession.getEmulator().getScreen().findUrls();
 
         if (urlSet.isEmpty()) {
             showToast(getResources().getString(R.string.select_url_toast_no_found), true);
@@ -882,92 +981,37 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     }
 
     /**
-     * Extract URLs from the given text.
+     * Write the transcript of a session to a file on a background thread and offer it to other applications.
      */
-    @SuppressWarnings("StringBufferReplaceableByString")
-    private static LinkedHashSet<CharSequence> extractUrls(String text) {
-        StringBuilder regex_sb = new StringBuilder();
-
-        regex_sb.append("(");                       // Begin first matching group.
-        regex_sb.append("(?:");                     // Begin scheme group.
-        regex_sb.append("dav|");                    // The DAV proto.
-        regex_sb.append("dict|");                   // The DICT proto.
-        regex_sb.append("dns|");                    // The DNS proto.
-        regex_sb.append("file|");                   // File path.
-        regex_sb.append("finger|");                 // The Finger proto.
-        regex_sb.append("ftp(?:s?)|");              // The FTP proto.
-        regex_sb.append("git|");                    // The Git proto.
-        regex_sb.append("gopher|");                 // The Gopher proto.
-        regex_sb.append("http(?:s?)|");             // The HTTP proto.
-        regex_sb.append("imap(?:s?)|");             // The IMAP proto.
-        regex_sb.append("irc(?:[6s]?)|");           // The IRC proto.
-        regex_sb.append("ip[fn]s|");                // The IPFS proto.
-        regex_sb.append("ldap(?:s?)|");             // The LDAP proto.
-        regex_sb.append("pop3(?:s?)|");             // The POP3 proto.
-        regex_sb.append("redis(?:s?)|");            // The Redis proto.
-        regex_sb.append("rsync|");                  // The Rsync proto.
-        regex_sb.append("rtsp(?:[su]?)|");          // The RTSP proto.
-        regex_sb.append("sftp|");                   // The SFTP proto.
-        regex_sb.append("smb(?:s?)|");              // The SAMBA proto.
-        regex_sb.append("smtp(?:s?)|");             // The SMTP proto.
-        regex_sb.append("svn(?:(?:\\+ssh)?)|");     // The Subversion proto.
-        regex_sb.append("tcp|");                    // The TCP proto.
-        regex_sb.append("telnet|");                 // The Telnet proto.
-        regex_sb.append("tftp|");                   // The TFTP proto.
-        regex_sb.append("udp|");                    // The UDP proto.
-        regex_sb.append("vnc|");                    // The VNC proto.
-        regex_sb.append("ws(?:s?)");                // The Websocket proto.
-        regex_sb.append(")://");                    // End scheme group.
-        regex_sb.append(")");                       // End first matching group.
-
-        // Begin second matching group.
-        regex_sb.append("(");
-
-        // User name and/or password in format 'user:pass@'.
-        regex_sb.append("(?:\\S+(?::\\S*)?@)?");
-
-        // Begin host group.
-        regex_sb.append("(?:");
-
-        // IP address (from http://www.regular-expressions.info/examples.html).
-        regex_sb.append("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)|");
-
-        // Host name or domain.
-        regex_sb.append("(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)(?:(?:\\.(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)*(?:\\.(?:[a-z\\u00a1-\\uffff]{2,})))?|");
-
-        // Just path. Used in case of 'file://' scheme.
-        regex_sb.append("/(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)");
-
-        // End host group.
-        regex_sb.append(")");
-
-        // Port number.
-        regex_sb.append("(?::\\d{1,5})?");
-
-        // Resource path with optional query string.
-        regex_sb.append("(?:/[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
-
-        // Fragment.
-        regex_sb.append("(?:#[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
-
-        // End second matching group.
-        regex_sb.append(")");
-
-        final Pattern urlPattern = Pattern.compile(
-            regex_sb.toString(),
-            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
-
-        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
-        Matcher matcher = urlPattern.matcher(text);
-
-        while (matcher.find()) {
-            int matchStart = matcher.start(1);
-            int matchEnd = matcher.end();
-            String url = text.substring(matchStart, matchEnd);
-            urlSet.add(url);
-        }
+    private void shareTranscript(TerminalSession session) {
+        // Taking the snapshot copies no rows of the transcript, which are only read and decoded on the executor:
+        final TerminalBuffer transcript = session.getEmulator().getScreen().snapshot();
+        final File file = new File(Config.getSharedFilesDirectory(this), getString(R.string.share_transcript_file_name));
+        mTranscriptExecutor.execute(() -> {
+            try {
+                File directory = file.getParentFile();
+                if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+                    throw new IOException("failed to create directory " + directory);
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                    transcript.writeTranscriptText(writer, false);
+                }
+            } catch (IOException e) {
+                Log.e(Config.APP_LOG_TAG, "failed to write transcript to " + file, e);
+                runOnUiThread(() -> showToast(getResources().getString(R.string.share_transcript_toast_failed), true));
+                return;
+            }
 
-        return urlSet;
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                Uri uri = FileProvider.getUriForFile(this, Config.getFileProviderAuthority(this), file);
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("text/plain");
+                intent.putExtra(Intent.EXTRA_STREAM, uri);
+                intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.share_transcript_file_name));
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(Intent.createChooser(intent, getString(R.string.share_transcript_chooser_title)));
+            });
+        });
     }
 
     /**
@@ -33,16 +33,31 @@ final class TerminalPreferences {
     private static final String SHOW_EXTRA_KEYS_KEY = "show_extra_keys";
     private static final String IGNORE_BELL = "ignore_bell";
     private static final String COLOR_SCHEME = "color_scheme";
+    private static final String CACHE_RENDERED_ROWS = "cache_rendered_rows";
+    private static final String LOG_SESSION_OUTPUT = "log_session_output";
+    private static final String MONITOR_TRANSCRIPT_ROWS = "monitor_transcript_rows";
+    private static final String SERIAL_TRANSCRIPT_ROWS = "serial_transcript_rows";
+
+    /** The number of rows a session keeps, screen included, unless configured otherwise. */
+    static final int DEFAULT_TRANSCRIPT_ROWS = 5000;
 
     private boolean mShowExtraKeys;
     private boolean mIgnoreBellCharacter;
     private String mColorScheme;
+    private boolean mCacheRenderedRows;
+    private boolean mLogSessionOutput;
+    private int mMonitorTranscriptRows;
+    private int mSerialTranscriptRows;
 
     public TerminalPreferences(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         mShowExtraKeys = prefs.getBoolean(SHOW_EXTRA_KEYS_KEY, true);
         mIgnoreBellCharacter = prefs.getBoolean(IGNORE_BELL, false);
         mColorScheme = prefs.getString(COLOR_SCHEME, "Default");
+        mCacheRenderedRows = prefs.getBoolean(CACHE_RENDERED_ROWS, false);
+        mLogSessionOutput = prefs.getBoolean(LOG_SESSION_OUTPUT, false);
+        mMonitorTranscriptRows = prefs.getInt(MONITOR_TRANSCRIPT_ROWS, DEFAULT_TRANSCRIPT_ROWS);
+        mSerialTranscriptRows = prefs.getInt(SERIAL_TRANSCRIPT_ROWS, DEFAULT_TRANSCRIPT_ROWS);
     }
 
     public static void storeCurrentSession(Context context, TerminalSession session) {
@@ -87,4 +102,43 @@ final class TerminalPreferences {
     public String getColorScheme() {
         return mColorScheme;
     }
+
+    public boolean isRowCacheEnabled() {
+        return mCacheRenderedRows;
+    }
+
+    public void setRowCacheEnabled(Context context, boolean newValue) {
+        mCacheRenderedRows = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(CACHE_RENDERED_ROWS, newValue).apply();
+    }
+
+    /** Whether the output of sessions is copied to log files. */
+    public boolean isOutputLogEnabled() {
+        return mLogSessionOutput;
+    }
+
+    public void setOutputLogEnabled(Context context, boolean newValue) {
+        mLogSessionOutput = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(LOG_SESSION_OUTPUT, newValue).apply();
+    }
+
+    /** The number of rows kept by the QEMU monitor session. */
+    public int getMonitorTranscriptRows() {
+        return mMonitorTranscriptRows;
+    }
+
+    public void setMonitorTranscriptRows(Context context, int rows) {
+        mMonitorTranscriptRows = rows;
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putInt(MONITOR_TRANSCRIPT_ROWS, rows).apply();
+    }
+
+    /** The number of rows kept by each serial console session. */
+    public int getSerialTranscriptRows() {
+        return mSerialTranscriptRows;
+    }
+
+    public void setSerialTranscriptRows(Context context, int rows) {
+        mSerialTranscriptRows = rows;
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putInt(SERIAL_TRANSCRIPT_ROWS, rows).apply();
+    }
 }
@@ -38,13 +38,17 @@ import android.util.Log;
 import android.widget.ArrayAdapter;
 
 import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 import androidx.core.app.NotificationCompat;
 
+import alpine.term.emulator.EmulatorDebug;
 import alpine.term.emulator.TerminalSession;
 import alpine.term.emulator.TerminalSession.SessionChangedCallback;
 
@@ -69,6 +73,25 @@ public class TerminalService extends Service implements SessionChangedCallback {
     private static final int NOTIFICATION_ID = 1338;
     private static final String NOTIFICATION_CHANNEL_ID = "alpine.term.NOTIFICATION_CHANNEL";
 
+    /** The history kept by each session when the system is running low on memory. */
+    private static final int LOW_MEMORY_TRANSCRIPT_ROWS = 2000;
+
+    /** The history kept by each session when the system is critically low on memory. */
+    private static final int CRITICAL_MEMORY_TRANSCRIPT_ROWS = 200;
+
+    /** Sends what the emulator logs to the Android log. */
+    private static final EmulatorDebug.Logger ANDROID_LOGGER = new EmulatorDebug.Logger() {
+        @Override
+        public void warning(String message, Throwable error) {
+            Log.w(EmulatorDebug.LOG_TAG, message, error);
+        }
+
+        @Override
+        public void error(String message, Throwable error) {
+            Log.e(EmulatorDebug.LOG_TAG, message, error);
+        }
+    };
+
     /**
      * The terminal sessions which this service manages.
      * <p/>
@@ -77,6 +100,9 @@ public class TerminalService extends Service implements SessionChangedCallback {
      */
     private final List<TerminalSession> mTerminalSessions = new ArrayList<>();
 
+    /** The session running QEMU with its monitor console, or null if not created yet. */
+    private TerminalSession mQemuSession;
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -98,6 +124,8 @@ public class TerminalService extends Service implements SessionChangedCallback {
 
     @Override
     public void onCreate() {
+        EmulatorDebug.setLogger(ANDROID_LOGGER);
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, getString(R.string.application_name), NotificationManager.IMPORTANCE_LOW);
             channel.setDescription("Notifications from " + getString(R.string.application_name));
@@ -107,6 +135,8 @@ public class TerminalService extends Service implements SessionChangedCallback {
         }
 
         startForeground(NOTIFICATION_ID, buildNotification());
+
+        deleteStaleTranscriptSpills();
     }
 
     @Override
@@ -164,6 +194,29 @@ public class TerminalService extends Service implements SessionChangedCallback {
         return mBinder;
     }
 
+    /**
+     * Drop old terminal history, or move it to disk, when the system asks to release memory. Sessions keep their
+     * configured size, so that history accumulates again afterwards.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        final int maxRows;
+        if (level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE) {
+            maxRows = CRITICAL_MEMORY_TRANSCRIPT_ROWS;
+        } else if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_BACKGROUND) {
+            maxRows = LOW_MEMORY_TRANSCRIPT_ROWS;
+        } else {
+            return;
+        }
+
+        Log.i(Config.APP_LOG_TAG, "trimming terminal history to " + maxRows + " rows, trim level " + level);
+        for (TerminalSession session : mTerminalSessions) {
+            session.trimTranscript(maxRows);
+        }
+    }
+
     @Override
     public void onTitleChanged(TerminalSession changedSession) {
         if (mSessionChangeCallback != null) {
@@ -206,10 +259,31 @@ public class TerminalService extends Service implements SessionChangedCallback {
         }
     }
 
+    @Override
+    public void onPasteProgress(TerminalSession session, int pastedChars, int totalChars) {
+        if (mSessionChangeCallback != null) {
+            mSessionChangeCallback.onPasteProgress(session, pastedChars, totalChars);
+        }
+    }
+
+    @Override
+    public void onPasteFinished(TerminalSession session, boolean cancelled) {
+        if (mSessionChangeCallback != null) {
+            mSessionChangeCallback.onPasteFinished(session, cancelled);
+        }
+    }
+
     public List<TerminalSession> getSessions() {
         return mTerminalSessions;
     }
 
+    /**
+     * Whether a session runs QEMU and shows its monitor console, as opposed to a serial console.
+     */
+    public boolean isQemuSession(TerminalSession session) {
+        return session == mQemuSession;
+    }
+
     public void terminateService() {
         mWantsToStop = true;
 
@@ -222,6 +296,72 @@ public class TerminalService extends Service implements SessionChangedCallback {
         stopSelf();
     }
 
+    /**
+     * Delete terminal history left on disk by the sessions of an earlier process, which was killed before the
+     * sessions finished.
+     */
+    private void deleteStaleTranscriptSpills() {
+        File[] sessionDirectories = new File(Config.getTranscriptSpillDirectory(this)).listFiles();
+        if (sessionDirectories == null) return;
+
+        for (File directory : sessionDirectories) {
+            File[] segments = directory.listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    if (!segment.delete()) Log.w(Config.APP_LOG_TAG, "failed to delete " + segment);
+                }
+            }
+            if (!directory.delete()) Log.w(Config.APP_LOG_TAG, "failed to delete " + directory);
+        }
+    }
+
+    /**
+     * Keep the history of a session on disk beyond what it keeps in memory.
+     */
+    private void enableTranscriptSpill(TerminalSession session) {
+        File directory = new File(Config.getTranscriptSpillDirectory(this), session.mHandle);
+        session.setTranscriptSpill(directory, Config.TRANSCRIPT_SPILL_MAX_BYTES, Config.TRANSCRIPT_SPILL_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Start or stop copying the output of every session to log files, see {@link Config#getSessionLogDirectory(Context)}.
+     */
+    public void setOutputLogEnabled(boolean enabled) {
+        for (TerminalSession session : mTerminalSessions) {
+            if (!enabled) {
+                session.stopOutputLog();
+            } else if (!session.isOutputLogged()) {
+                startOutputLog(session);
+            }
+        }
+    }
+
+    /**
+     * Copy the output of a session to log files named after the session and the time logging started.
+     */
+    private void startOutputLog(TerminalSession session) {
+        session.startOutputLog(new File(Config.getSessionLogDirectory(this)), getFileNamePrefix(session),
+            Config.SESSION_LOG_MAX_FILE_BYTES, Config.SESSION_LOG_MAX_FILES, true);
+    }
+
+    /**
+     * Record what a session shows from now on to a file named after the session and the current time.
+     * @return the file recorded to.
+     */
+    public File startRecording(TerminalSession session) {
+        File file = new File(Config.getSessionLogDirectory(this), getFileNamePrefix(session) + ".atr");
+        session.startRecording(file);
+        return file;
+    }
+
+    /**
+     * The start of the names of files written for a session: the last part of its name and the current time.
+     */
+    private static String getFileNamePrefix(TerminalSession session) {
+        String name = session.mSessionName.substring(session.mSessionName.lastIndexOf('/') + 1);
+        return name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    }
+
     private static void addToEnvIfPresent(List<String> environment, String name) {
         String value = System.getenv(name);
         if (value != null) {
@@ -372,7 +512,12 @@ public class TerminalService extends Service implements SessionChangedCallback {
 
         Log.i(Config.APP_LOG_TAG, "initiating QEMU session with following arguments: " + processArgs.toString());
 
-        TerminalSession session = new TerminalSession(execPath + "/libqemu.so", processArgs.toArray(new String[0]), environment.toArray(new String[0]), workingDirPath, this);
+        int transcriptRows = new TerminalPreferences(appContext).getMonitorTranscriptRows();
+        TerminalSession session = new TerminalSession(execPath + "/libqemu.so", processArgs.toArray(new String[0]), environment.toArray(new String[0]), workingDirPath, transcriptRows, this);
+        session.mSessionName = "QEMU";
+        enableTranscriptSpill(session);
+        if (new TerminalPreferences(appContext).isOutputLogEnabled()) startOutputLog(session);
+        mQemuSession = session;
         mTerminalSessions.add(session);
         updateNotification();
 
@@ -406,7 +551,11 @@ public class TerminalService extends Service implements SessionChangedCallback {
 
         Log.i(Config.APP_LOG_TAG, "initiating socat session with following arguments: " + processArgs.toString());
 
-        TerminalSession session = new TerminalSession(execPath + "/libsocat.so", processArgs.toArray(new String[0]), environment.toArray(new String[0]), runtimeDataPath, this);
+        TerminalPreferences preferences = new TerminalPreferences(appContext);
+        TerminalSession session = new TerminalSession(execPath + "/libsocat.so", processArgs.toArray(new String[0]), environment.toArray(new String[0]), runtimeDataPath, preferences.getSerialTranscriptRows(), this);
+        session.mSessionName = String.format(Locale.US, "/dev/ttyS%d", sessionNumber);
+        enableTranscriptSpill(session);
+        if (preferences.isOutputLogEnabled()) startOutputLog(session);
         mTerminalSessions.add(session);
         updateNotification();
 
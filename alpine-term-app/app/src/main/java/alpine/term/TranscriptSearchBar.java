@@ -0,0 +1,264 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term;
+
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.PatternSyntaxException;
+
+import alpine.term.emulator.TerminalBuffer;
+import alpine.term.emulator.TerminalSession;
+import alpine.term.emulator.TranscriptSearch;
+import alpine.term.terminal_view.TerminalView;
+
+/**
+ * The bar for searching the history of the current session. Searches run on a background thread, and are cancelled
+ * when the query changes. As the session prints more, only the new rows are searched.
+ */
+final class TranscriptSearchBar {
+
+    private final View mBar;
+    private final EditText mInput;
+    private final TextView mCount;
+    private final CheckBox mMatchCase;
+    private final CheckBox mRegex;
+    private final TerminalView mTerminalView;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /** The session being searched, or null if the bar is hidden. */
+    private TerminalSession mSession;
+    /** The screen of the session which the matches are in, which changes when the alternate buffer is used. */
+    private TerminalBuffer mBuffer;
+    /** The search for the query, or null if it is empty or invalid. */
+    private TranscriptSearch mSearch;
+    private TranscriptSearch.Match mCurrentMatch;
+    /** The search running in the background, or null. */
+    private Future<?> mRunning;
+    /** Whether the session printed more while a search was running, so that another one is needed. */
+    private boolean mSearchAgain;
+
+    TranscriptSearchBar(View bar, TerminalView terminalView) {
+        mBar = bar;
+        mInput = bar.findViewById(R.id.search_input);
+        mCount = bar.findViewById(R.id.search_count);
+        mMatchCase = bar.findViewById(R.id.search_match_case);
+        mRegex = bar.findViewById(R.id.search_regex);
+        mTerminalView = terminalView;
+
+        mInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (mSession != null) restart();
+            }
+        });
+        mInput.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId != EditorInfo.IME_ACTION_SEARCH) return false;
+            moveToMatch(true);
+            return true;
+        });
+        mMatchCase.setOnCheckedChangeListener((v, checked) -> {
+            if (mSession != null) restart();
+        });
+        mRegex.setOnCheckedChangeListener((v, checked) -> {
+            if (mSession != null) restart();
+        });
+        bar.findViewById(R.id.search_previous).setOnClickListener(v -> moveToMatch(true));
+        bar.findViewById(R.id.search_next).setOnClickListener(v -> moveToMatch(false));
+        bar.findViewById(R.id.search_close).setOnClickListener(v -> hide());
+    }
+
+    boolean isShown() {
+        return mSession != null;
+    }
+
+    /** Show the bar for searching the session in the terminal view. */
+    void show() {
+        final TerminalSession session = mTerminalView.getCurrentSession();
+        if (session == null || session.getEmulator() == null) return;
+        mSession = session;
+        mBar.setVisibility(View.VISIBLE);
+        mInput.requestFocus();
+        InputMethodManager imm = (InputMethodManager) mBar.getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+        if (imm != null) imm.showSoftInput(mInput, InputMethodManager.SHOW_IMPLICIT);
+        restart();
+    }
+
+    void hide() {
+        cancel();
+        mSession = null;
+        mBuffer = null;
+        mSearch = null;
+        mCurrentMatch = null;
+        mBar.setVisibility(View.GONE);
+        mTerminalView.showSearch(null, null);
+        mTerminalView.requestFocus();
+    }
+
+    /** Search the new output of a session, if it is the one being searched. */
+    void onTextChanged(TerminalSession session) {
+        if (session == mSession && mSearch != null) search();
+    }
+
+    /** Stop the background thread, when the activity is destroyed. */
+    void destroy() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    /** Start a new search for the query, with the matches of any previous one being dropped. */
+    private void restart() {
+        cancel();
+        mSearch = null;
+        mCurrentMatch = null;
+        mInput.setError(null);
+        if (!isSessionShown()) return;
+        mBuffer = mSession.getEmulator().getScreen();
+        final String query = mInput.getText().toString();
+        if (!query.isEmpty()) {
+            try {
+                mSearch = new TranscriptSearch(query, mRegex.isChecked(), mMatchCase.isChecked());
+            } catch (PatternSyntaxException e) {
+                mInput.setError(mBar.getContext().getString(R.string.search_invalid_regex));
+            }
+        }
+        mTerminalView.showSearch(mSearch, null);
+        updateCount();
+        if (mSearch != null) search();
+    }
+
+    /** Search the rows not searched before on a background thread, or once the running search is done. */
+    private void search() {
+        if (!isSessionShown()) return;
+        if (mSession.getEmulator().getScreen() != mBuffer) {
+            // Switched to or from the alternate buffer, which has other rows:
+            restart();
+            return;
+        }
+        if (mRunning != null) {
+            mSearchAgain = true;
+            return;
+        }
+
+        final TranscriptSearch search = mSearch;
+        final TerminalBuffer snapshot = mBuffer.snapshot(search.getResumeLineNumber(mBuffer));
+        mRunning = mExecutor.submit(() -> {
+            final TranscriptSearch.Result result;
+            try {
+                result = search.search(snapshot);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mBar.post(() -> onSearchDone(search, result));
+        });
+    }
+
+    private void onSearchDone(TranscriptSearch search, TranscriptSearch.Result result) {
+        // Results of cancelled searches may still arrive:
+        if (search != mSearch) return;
+        mRunning = null;
+        if (!isSessionShown()) return;
+
+        boolean firstMatch = false;
+        if (!search.update(result, mBuffer)) {
+            // The rows were reflowed meanwhile and have new line numbers:
+            mCurrentMatch = null;
+            mSearchAgain = true;
+        } else if (mCurrentMatch == null && search.getMatchCount() > 0) {
+            // Start with the newest match, since one usually looks for recent output:
+            mCurrentMatch = search.getMatch(search.getMatchCount() - 1);
+            firstMatch = true;
+        }
+        mTerminalView.showSearch(search, mCurrentMatch);
+        if (firstMatch) mTerminalView.scrollToSearchMatch();
+        updateCount();
+
+        if (mSearchAgain) {
+            mSearchAgain = false;
+            search();
+        }
+    }
+
+    /** Go to the match before or after the current one, wrapping around at the ends. */
+    private void moveToMatch(boolean backward) {
+        if (mSearch == null || mSearch.getMatchCount() == 0) return;
+        final int count = mSearch.getMatchCount();
+        int index;
+        if (mCurrentMatch == null) {
+            index = count - 1;
+        } else if (backward) {
+            index = indexOfCurrentMatch() - 1;
+        } else {
+            index = mSearch.indexOfMatchAfter(mCurrentMatch.mStartLine, mCurrentMatch.mStartColumn);
+        }
+        mCurrentMatch = mSearch.getMatch((index + count) % count);
+        mTerminalView.showSearch(mSearch, mCurrentMatch);
+        mTerminalView.scrollToSearchMatch();
+        updateCount();
+    }
+
+    /** The index of the current match, or of the first one after its position if it is gone. */
+    private int indexOfCurrentMatch() {
+        return mSearch.indexOfMatchAfter(mCurrentMatch.mStartLine, mCurrentMatch.mStartColumn - 1);
+    }
+
+    private void updateCount() {
+        if (mSearch == null) {
+            mCount.setText(null);
+        } else {
+            final int index = (mCurrentMatch == null) ? 0 : indexOfCurrentMatch() + 1;
+            mCount.setText(mBar.getContext().getString(R.string.search_count, index, mSearch.getMatchCount()));
+        }
+    }
+
+    /** Whether the session being searched is still the one shown, hiding the bar if not. */
+    private boolean isSessionShown() {
+        if (mSession != null && mSession == mTerminalView.getCurrentSession() && mSession.getEmulator() != null) return true;
+        if (mSession != null) hide();
+        return false;
+    }
+
+    private void cancel() {
+        if (mRunning != null) mRunning.cancel(true);
+        mRunning = null;
+        mSearchAgain = false;
+    }
+}
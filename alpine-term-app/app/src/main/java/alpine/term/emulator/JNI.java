@@ -22,6 +22,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
+import java.nio.ByteBuffer;
+
 /**
  * Native methods for creating and managing pseudoterminal subprocesses. C code is in jni/terminal_jni.c.
  */
@@ -50,14 +52,74 @@ final class JNI {
     /** Set the window size for a given pty, which allows connected programs to learn how large their screen is. */
     public static native void setPtyWindowSize(int fd, int rows, int cols);
 
+    /** Close a file descriptor through the close(2) system call. */
+    public static native void close(int fileDescriptor);
+
+    /** Returned by {@link #read} and {@link #write} when the descriptor is not ready. */
+    static final int IO_AGAIN = -1;
+    /** Returned by {@link #read} and {@link #write} when the call failed. */
+    static final int IO_ERROR = -2;
+
+    static final int EPOLLIN = 0x001;
+    static final int EPOLLOUT = 0x004;
+    static final int EPOLLERR = 0x008;
+    static final int EPOLLHUP = 0x010;
+
+    static final int EPOLL_CTL_ADD = 1;
+    static final int EPOLL_CTL_DEL = 2;
+    static final int EPOLL_CTL_MOD = 3;
+
     /**
-     * Causes the calling thread to wait for the process associated with the receiver to finish executing.
+     * Reap a process if it has finished, without waiting for it.
      *
-     * @return if >= 0, the exit status of the process. If < 0, the signal causing the process to stop negated.
+     * @return {@link Integer#MIN_VALUE} if the process is still running. Otherwise, if >= 0, the exit status of the
+     * process. If < 0, the signal causing the process to stop negated.
      */
-    public static native int waitFor(int processId);
+    static native int waitForNoHang(int processId);
 
-    /** Close a file descriptor through the close(2) system call. */
-    public static native void close(int fileDescriptor);
+    /** Open a pidfd which becomes readable when the process exits, or return -1 if unsupported. */
+    static native int openPidFd(int processId);
+
+    /**
+     * Install a SIGCHLD handler which writes a byte to a non-blocking pipe, and return the read
+     * end of the pipe. The previous handler is still called.
+     */
+    static native int createChildSignalPipe();
+
+    static native int epollCreate();
+
+    /** Add, modify or remove a descriptor, reporting its events under the given token. */
+    static native void epollControl(int epollFd, int operation, int fd, int events, int token);
+
+    /**
+     * Wait for events and store them in the result as pairs of token and event mask.
+     *
+     * @return the number of events, which is 0 on timeout or when interrupted by a signal.
+     */
+    static native int epollWait(int epollFd, int[] result, int timeoutMillis);
+
+    static native int createEventFd();
+
+    static native void signalEventFd(int fd);
+
+    /** Read and discard everything available on a non-blocking descriptor. */
+    static native void drain(int fd);
+
+    static native void setNonBlocking(int fd);
+
+    /**
+     * Read into a direct buffer at the specified offset, regardless of its position.
+     *
+     * @return the number of bytes read, 0 at end of file, {@link #IO_AGAIN} or {@link #IO_ERROR}.
+     */
+    static native int read(int fd, ByteBuffer buffer, int offset, int length);
+
+    /**
+     * Write from a direct buffer with writev(2): first the bytes at the specified offset and then, for a ring whose
+     * content wraps around, the bytes at the start of the buffer.
+     *
+     * @return the number of bytes written, {@link #IO_AGAIN} or {@link #IO_ERROR}.
+     */
+    static native int writev(int fd, ByteBuffer buffer, int offset, int length, int wrappedLength);
 
 }
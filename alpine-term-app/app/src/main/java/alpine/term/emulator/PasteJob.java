@@ -0,0 +1,122 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes a large paste in a task of its own into a few chunks, which the main thread moves to the process as fast
+ * as the process takes input. Only a few chunks exist, so the encoder waits for the process instead of encoding all
+ * of the text into memory at once.
+ */
+final class PasteJob implements Runnable {
+
+    /** The size of a chunk, as large as the queue to the process so that a single chunk can fill it. */
+    static final int CHUNK_SIZE = 16 * 1024;
+    /** How many chunks the encoder may be ahead of the process. */
+    private static final int CHUNK_COUNT = 4;
+
+    /** A part of the encoded paste. */
+    static final class Chunk {
+        final byte[] mBytes = new byte[CHUNK_SIZE];
+        int mLength;
+        /** The number of characters of the text encoded up to and including this chunk. */
+        int mEndPosition;
+    }
+
+    private final PasteEncoder mEncoder;
+    final int mTotalChars;
+    /** Whether the paste is between the markers of bracketed paste mode, the start of which has been written. */
+    final boolean mBracketed;
+    /** Run by the encoder thread when a chunk is ready or when it is done. */
+    private final Runnable mOnChunkReady;
+
+    private final ArrayBlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+    private final ArrayBlockingQueue<Chunk> mReadyChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+    private volatile boolean mEncoded;
+    private volatile boolean mCancelled;
+    /** The thread running the encoder, which is interrupted to cancel it. Guarded by this. */
+    private Thread mThread;
+
+    PasteJob(String text, boolean bracketed, Runnable onChunkReady) {
+        mEncoder = new PasteEncoder(text);
+        mTotalChars = text.length();
+        mBracketed = bracketed;
+        mOnChunkReady = onChunkReady;
+        for (int i = 0; i < CHUNK_COUNT; i++) mFreeChunks.add(new Chunk());
+    }
+
+    void start(SessionIoScheduler scheduler, String name) {
+        scheduler.start(name, this);
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            mThread = Thread.currentThread();
+        }
+        try {
+            while (!mCancelled) {
+                final Chunk chunk = mFreeChunks.take();
+                final int length = mEncoder.encode(chunk.mBytes);
+                if (length == 0) break;
+                chunk.mLength = length;
+                chunk.mEndPosition = mEncoder.getPosition();
+                mReadyChunks.add(chunk);
+                mOnChunkReady.run();
+            }
+        } catch (InterruptedException e) {
+            // Cancelled.
+        } finally {
+            synchronized (this) {
+                mThread = null;
+                // The thread may be shared, so do not leave it interrupted.
+                Thread.interrupted();
+            }
+        }
+        mEncoded = true;
+        if (!mCancelled) mOnChunkReady.run();
+    }
+
+    /** The next chunk to move to the process, or null if none is ready. */
+    Chunk poll() {
+        return mReadyChunks.poll();
+    }
+
+    /** Hand a chunk which has been moved to the process back to the encoder. */
+    void recycle(Chunk chunk) {
+        mFreeChunks.add(chunk);
+    }
+
+    /** Whether all of the text has been encoded and every chunk has been taken. */
+    boolean isFinished() {
+        return mEncoded && mReadyChunks.isEmpty();
+    }
+
+    /** Stop encoding. Chunks which have been taken may still be moved to the process. */
+    synchronized void cancel() {
+        mCancelled = true;
+        if (mThread != null) mThread.interrupt();
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Performs the pty I/O of all sessions on one thread, which waits with epoll(7) for any pty to become readable or
+ * writable and for any process to exit, so that the number of threads does not grow with the number of sessions.
+ * <p>
+ * Process exit is noticed through a pidfd where the system lets us open one, and otherwise through a pipe written to by
+ * a SIGCHLD handler, after which the processes without a pidfd are polled.
+ * <p>
+ * Output is read in batches of up to {@link #READ_BUDGET} bytes per session and wakeup, and reading from a pty pauses
+ * while its session has not made room in {@link TerminalSession#mProcessToTerminalIOQueue}.
+ * <p>
+ * Input is written with writev(2) straight from {@link TerminalSession#mTerminalToProcessIOQueue}. A few bytes, as
+ * typed keys or terminal replies, are held back for up to {@link #WRITE_DELAY_MILLIS} so that those following soon after
+ * go out in the same write.
+ */
+final class PtyReactor implements Runnable {
+
+    /** A single session registered with the reactor. Only the reactor thread touches the fields not marked atomic. */
+    static final class Channel {
+        final TerminalSession mSession;
+        final int mFd;
+        final int mPid;
+
+        int mId;
+        int mPidFd = -1;
+        /** The events the pty is registered for, or 0 if it is not in the epoll set. */
+        int mEvents;
+        boolean mPtyClosed;
+        /** Whether the process has been reaped, which is reported once the output it left has been read. */
+        boolean mExited;
+        int mExitStatus;
+        boolean mExitReported;
+        boolean mClosed;
+
+        /** Whether reading waits for the session to consume output, see {@link #requestRead(Channel)}. */
+        volatile boolean mReadPaused;
+        final AtomicBoolean mReadRequested = new AtomicBoolean();
+        final AtomicBoolean mWriteRequested = new AtomicBoolean();
+
+        /** Whether the pty did not take all input, so that writing waits for EPOLLOUT. */
+        boolean mWriteBlocked;
+        /** When delayed input is to be written in {@link SystemClock#uptimeMillis()}, or 0 if none is delayed. */
+        long mWriteTime;
+
+        Channel(TerminalSession session, int fd, int pid) {
+            mSession = session;
+            mFd = fd;
+            mPid = pid;
+        }
+    }
+
+    private static final int TOKEN_WAKEUP = -1;
+    private static final int TOKEN_CHILD_SIGNAL = -2;
+    /** The low bit of a channel token, telling whether the event is for the pty or for the pidfd. */
+    private static final int TOKEN_PID = 1;
+
+    /** The most bytes read from one pty before the other sessions get their turn. */
+    private static final int READ_BUDGET = 64 * 1024;
+    private static final int MAX_EVENTS = 64;
+    /** The longest time small input is delayed to be written together with what follows. */
+    private static final long WRITE_DELAY_MILLIS = 2;
+    /** The amount of queued input which is written at once rather than delayed, as when pasting. */
+    private static final int WRITE_BATCH_BYTES = 1024;
+    /** How long to wait after epoll_wait(2) failed before calling it again, so that a lasting failure does not spin. */
+    private static final long WAIT_RETRY_MILLIS = 100;
+
+    private static PtyReactor sInstance;
+
+    private final int mEpollFd;
+    private final int mWakeupFd;
+    /** The read end of the SIGCHLD pipe, or -1 until a process without a pidfd is registered. */
+    private int mChildSignalFd = -1;
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    /** The registered channels by id. Only used by the reactor thread. */
+    private final SparseArray<Channel> mChannels = new SparseArray<>();
+    private int mNextChannelId;
+    /** The channels with a {@link Channel#mWriteTime}. Only used by the reactor thread. */
+    private final ArrayList<Channel> mDelayedWrites = new ArrayList<>();
+
+    static synchronized PtyReactor getInstance() {
+        if (sInstance == null) sInstance = new PtyReactor();
+        return sInstance;
+    }
+
+    private PtyReactor() {
+        mEpollFd = JNI.epollCreate();
+        mWakeupFd = JNI.createEventFd();
+        JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_ADD, mWakeupFd, JNI.EPOLLIN, TOKEN_WAKEUP);
+
+        Thread thread = new Thread(this, "PtyReactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start the I/O of a session whose process has just been created.
+     *
+     * @param fd  the pty master, which the reactor closes on {@link #unregister(Channel)}.
+     * @param pid the process, which the reactor reaps.
+     */
+    Channel register(TerminalSession session, int fd, int pid) {
+        final Channel channel = new Channel(session, fd, pid);
+        JNI.setNonBlocking(fd);
+        post(() -> {
+            channel.mId = mNextChannelId++;
+            mChannels.put(channel.mId, channel);
+
+            // Android 12 is the first to allow pidfd_open(2) to apps.
+            if (Build.VERSION.SDK_INT >= 31) channel.mPidFd = JNI.openPidFd(pid);
+            if (channel.mPidFd != -1) {
+                JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_ADD, channel.mPidFd, JNI.EPOLLIN, 2 * channel.mId + TOKEN_PID);
+            } else if (mChildSignalFd == -1) {
+                mChildSignalFd = JNI.createChildSignalPipe();
+                JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_ADD, mChildSignalFd, JNI.EPOLLIN, TOKEN_CHILD_SIGNAL);
+            }
+
+            updateRegistration(channel);
+            scheduleWrite(channel);
+            // The process may have exited before it was watched.
+            checkExit(channel);
+        });
+        return channel;
+    }
+
+    /** Stop the I/O of a session and close its pty. */
+    void unregister(Channel channel) {
+        post(() -> {
+            if (channel.mClosed) return;
+            channel.mClosed = true;
+            channel.mPtyClosed = true;
+            updateRegistration(channel);
+            mDelayedWrites.remove(channel);
+            closePidFd(channel);
+            mChannels.remove(channel.mId);
+            JNI.close(channel.mFd);
+        });
+    }
+
+    /** Called by the session after writing to {@link TerminalSession#mTerminalToProcessIOQueue}. */
+    void requestWrite(Channel channel) {
+        if (channel.mWriteRequested.compareAndSet(false, true)) {
+            post(() -> {
+                channel.mWriteRequested.set(false);
+                if (!channel.mClosed) scheduleWrite(channel);
+            });
+        }
+    }
+
+    /** Called by the session after reading from {@link TerminalSession#mProcessToTerminalIOQueue}. */
+    void requestRead(Channel channel) {
+        if (channel.mReadPaused && channel.mReadRequested.compareAndSet(false, true)) {
+            post(() -> {
+                channel.mReadRequested.set(false);
+                channel.mReadPaused = false;
+                if (channel.mClosed) return;
+                if (channel.mExited && !channel.mExitReported) {
+                    reportExitWhenDrained(channel);
+                } else {
+                    readPty(channel);
+                }
+            });
+        }
+    }
+
+    private void post(Runnable task) {
+        mTasks.add(task);
+        if (mWakeupPending.compareAndSet(false, true)) JNI.signalEventFd(mWakeupFd);
+    }
+
+    @Override
+    public void run() {
+        final int[] events = new int[2 * MAX_EVENTS];
+        while (true) {
+            int count;
+            try {
+                count = JNI.epollWait(mEpollFd, events, writeTimeout());
+            } catch (RuntimeException e) {
+                Log.e(EmulatorDebug.LOG_TAG, "pty reactor wait failed", e);
+                SystemClock.sleep(WAIT_RETRY_MILLIS);
+                // Still run the posted tasks and the delayed writes below.
+                count = 0;
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    handleEvent(events[2 * i], events[2 * i + 1]);
+                } catch (RuntimeException e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "pty reactor event failed", e);
+                }
+            }
+
+            // Clear the flag before taking tasks, so that a task posted meanwhile signals again.
+            mWakeupPending.set(false);
+            JNI.drain(mWakeupFd);
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "pty reactor task failed", e);
+                }
+            }
+            writeDelayed();
+        }
+    }
+
+    /** How long epoll may wait before delayed input is due, or -1 if there is none. */
+    private int writeTimeout() {
+        if (mDelayedWrites.isEmpty()) return -1;
+        long firstTime = Long.MAX_VALUE;
+        for (int i = 0; i < mDelayedWrites.size(); i++)
+            firstTime = Math.min(firstTime, mDelayedWrites.get(i).mWriteTime);
+        return (int) Math.max(0, firstTime - SystemClock.uptimeMillis());
+    }
+
+    private void writeDelayed() {
+        if (mDelayedWrites.isEmpty()) return;
+        final long now = SystemClock.uptimeMillis();
+        for (int i = mDelayedWrites.size() - 1; i >= 0; i--) {
+            Channel channel = mDelayedWrites.get(i);
+            if (channel.mWriteTime <= now) {
+                mDelayedWrites.remove(i);
+                channel.mWriteTime = 0;
+                writePty(channel);
+            }
+        }
+    }
+
+    private void handleEvent(int token, int events) {
+        if (token == TOKEN_WAKEUP) {
+            // Tasks are run after all events.
+            return;
+        } else if (token == TOKEN_CHILD_SIGNAL) {
+            JNI.drain(mChildSignalFd);
+            for (int i = 0; i < mChannels.size(); i++) {
+                Channel channel = mChannels.valueAt(i);
+                if (channel.mPidFd == -1) checkExit(channel);
+            }
+            return;
+        }
+
+        Channel channel = mChannels.get(token >> 1);
+        if (channel == null) return;
+        if ((token & TOKEN_PID) != 0) {
+            checkExit(channel);
+        } else {
+            if ((events & (JNI.EPOLLIN | JNI.EPOLLHUP | JNI.EPOLLERR)) != 0) readPty(channel);
+            // A hangup while reading is paused is only noticed through a failing write.
+            if ((events & (JNI.EPOLLOUT | JNI.EPOLLHUP | JNI.EPOLLERR)) != 0 && channel.mWriteBlocked) {
+                channel.mWriteBlocked = false;
+                writePty(channel);
+            }
+        }
+    }
+
+    /**
+     * Move output from the pty to the session until the pty is drained, the budget used or the session queue full.
+     *
+     * @return whether the pty was drained, having no more output for now or having reached end of file.
+     */
+    private boolean readPty(Channel channel) {
+        if (channel.mPtyClosed) return true;
+        final TerminalSession session = channel.mSession;
+        final DirectByteQueue queue = session.mProcessToTerminalIOQueue;
+        int total = 0;
+        boolean drained = false;
+        while (total < READ_BUDGET) {
+            int writable = queue.getWritableLength();
+            if (writable == 0) {
+                channel.mReadPaused = true;
+                // The session may have read before it could see the flag, in which case nobody resumes reading.
+                if (queue.getFreeSpace() == 0) break;
+                channel.mReadPaused = false;
+                continue;
+            }
+
+            // Read straight into the session queue, where the emulator will parse the bytes.
+            int offset = queue.getWriteOffset();
+            int read = JNI.read(channel.mFd, queue.getBuffer(), offset, Math.min(writable, READ_BUDGET - total));
+            if (read == JNI.IO_AGAIN) {
+                drained = true;
+                break;
+            }
+            // End of file, or EIO once the process side of the pty has been closed.
+            if (read <= 0 || !session.queueProcessOutput(offset, read)) {
+                channel.mPtyClosed = true;
+                drained = true;
+                break;
+            }
+            total += read;
+        }
+        if (total > 0) session.notifyProcessOutput();
+        updateRegistration(channel);
+        return drained;
+    }
+
+    /** Write the input queued by the session, now if there is much of it and otherwise after a short delay. */
+    private void scheduleWrite(Channel channel) {
+        if (channel.mPtyClosed) {
+            writePty(channel);
+            return;
+        }
+        // While the pty is full, EPOLLOUT tells when to continue.
+        if (channel.mWriteBlocked || channel.mWriteTime != 0) return;
+        if (channel.mSession.mTerminalToProcessIOQueue.getReadableLength() >= WRITE_BATCH_BYTES) {
+            writePty(channel);
+        } else {
+            channel.mWriteTime = SystemClock.uptimeMillis() + WRITE_DELAY_MILLIS;
+            mDelayedWrites.add(channel);
+        }
+    }
+
+    /** Move input from the session to the pty until either is exhausted, waiting for EPOLLOUT if the pty is full. */
+    private void writePty(Channel channel) {
+        final DirectByteQueue queue = channel.mSession.mTerminalToProcessIOQueue;
+        final int capacity = queue.getBuffer().capacity();
+        int length;
+        while ((length = queue.getReadableLength()) > 0) {
+            if (channel.mPtyClosed) {
+                // Nothing will read the input, but the session must not be kept waiting for room.
+                queue.consume(length);
+                break;
+            }
+
+            int offset = queue.getReadOffset();
+            int firstLength = Math.min(length, capacity - offset);
+            int written = JNI.writev(channel.mFd, queue.getBuffer(), offset, firstLength, length - firstLength);
+            if (written == JNI.IO_AGAIN) {
+                channel.mWriteBlocked = true;
+                break;
+            } else if (written < 0) {
+                channel.mPtyClosed = true;
+            } else {
+                queue.consume(written);
+            }
+        }
+        updateRegistration(channel);
+    }
+
+    /** Add, change or remove the pty in the epoll set to match what the channel is waiting for. */
+    private void updateRegistration(Channel channel) {
+        int events = 0;
+        if (!channel.mPtyClosed) {
+            if (!channel.mReadPaused) events |= JNI.EPOLLIN;
+            if (channel.mWriteBlocked) events |= JNI.EPOLLOUT;
+        }
+        if (events == channel.mEvents) return;
+
+        // A paused pty leaves the set instead of just dropping EPOLLIN, since a hangup is reported regardless.
+        int operation = channel.mEvents == 0 ? JNI.EPOLL_CTL_ADD : events == 0 ? JNI.EPOLL_CTL_DEL : JNI.EPOLL_CTL_MOD;
+        JNI.epollControl(mEpollFd, operation, channel.mFd, events, 2 * channel.mId);
+        channel.mEvents = events;
+    }
+
+    /** Reap the process if it has exited, and tell the session once the output written before exiting is read. */
+    private void checkExit(Channel channel) {
+        if (channel.mExited) return;
+        int status = JNI.waitForNoHang(channel.mPid);
+        if (status == Integer.MIN_VALUE) return;
+
+        channel.mExited = true;
+        channel.mExitStatus = status;
+        closePidFd(channel);
+        reportExitWhenDrained(channel);
+    }
+
+    /**
+     * Read the output left by an exited process, beyond the usual budget, and then tell the session. If the session
+     * queue fills first, this is called again when reading is resumed by {@link #requestRead(Channel)}.
+     */
+    private void reportExitWhenDrained(Channel channel) {
+        while (!readPty(channel)) {
+            if (channel.mReadPaused) return;
+        }
+        channel.mExitReported = true;
+        channel.mSession.onProcessExited(channel.mExitStatus);
+    }
+
+    private void closePidFd(Channel channel) {
+        if (channel.mPidFd == -1) return;
+        JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_DEL, channel.mPidFd, 0, 0);
+        JNI.close(channel.mPidFd);
+        channel.mPidFd = -1;
+    }
+
+}
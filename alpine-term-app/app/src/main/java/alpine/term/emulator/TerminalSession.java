@@ -25,25 +25,26 @@ package alpine.term.emulator;
 import android.annotation.SuppressLint;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Field;
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
- * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
+ * {@link #updateSize(int, int)} terminal emulation will begin and the subprocess I/O will be handled by the
+ * {@link PtyReactor} shared by all sessions.
  * All terminal emulation and callback methods will be performed on the main thread.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
@@ -66,44 +67,99 @@ public final class TerminalSession extends TerminalOutput {
 
         void onColorsChanged(TerminalSession session);
 
-    }
+        /** Called now and then while a paste started by {@link #paste(String)} is written in the background. */
+        void onPasteProgress(TerminalSession session, int pastedChars, int totalChars);
+
+        void onPasteFinished(TerminalSession session, boolean cancelled);
 
-    private static FileDescriptor wrapFileDescriptor(int fileDescriptor) {
-        FileDescriptor result = new FileDescriptor();
-        try {
-            Field descriptorField;
-            try {
-                descriptorField = FileDescriptor.class.getDeclaredField("descriptor");
-            } catch (NoSuchFieldException e) {
-                // For desktop java:
-                descriptorField = FileDescriptor.class.getDeclaredField("fd");
-            }
-            descriptorField.setAccessible(true);
-            descriptorField.set(result, fileDescriptor);
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException e) {
-            Log.wtf(EmulatorDebug.LOG_TAG, "error accessing FileDescriptor#descriptor private field", e);
-            System.exit(1);
-        }
-        return result;
     }
 
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SCREEN_UPDATE = 5;
+    private static final int MSG_MOVE_INPUT = 6;
+
+    /** The most bytes fed to the emulator at once, so that the deadline below is checked often enough. */
+    private static final int MAX_INPUT_CHUNK = 16 * 1024;
+    /** How long the main thread may keep feeding input to the emulator before yielding to other messages. */
+    private static final long MAX_INPUT_PROCESSING_MILLIS = 5;
+    /** The minimum time between screen update notifications, about one display frame. */
+    private static final long MIN_SCREEN_UPDATE_INTERVAL_MILLIS = 16;
+    /** The length of a paste above which it is encoded in the background rather than written at once. */
+    private static final int ASYNC_PASTE_MIN_CHARS = PasteJob.CHUNK_SIZE;
+    /** The minimum time between paste progress notifications. */
+    private static final long PASTE_PROGRESS_INTERVAL_MILLIS = 500;
 
     public final String mHandle = UUID.randomUUID().toString();
 
     TerminalEmulator mEmulator;
 
     /**
-     * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-     * terminal emulator.
+     * A queue which the reactor thread reads the process output into, and from which the main thread has it parsed in
+     * place by the terminal emulator.
+     */
+    final DirectByteQueue mProcessToTerminalIOQueue = new DirectByteQueue(64 * 1024);
+    /**
+     * A queue written to from the main thread due to user interaction, and read by the reactor thread which forwards
+     * by writing to the {@link #mTerminalFileDescriptor}.
+     */
+    final DirectByteQueue mTerminalToProcessIOQueue = new DirectByteQueue(16 * 1024);
+    /**
+     * Input which did not fit into {@link #mTerminalToProcessIOQueue}, as a large paste, and is moved there as the
+     * reactor writes to the process. Only used by the main thread.
+     */
+    private final ArrayDeque<byte[]> mInputBacklog = new ArrayDeque<>();
+    /** How much of the first array in {@link #mInputBacklog} has been moved to the queue already. */
+    private int mInputBacklogOffset;
+    /**
+     * Whether {@link #mInputBacklog} is not empty or a paste is in progress, so that the reactor reports when it has
+     * made room.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    private volatile boolean mInputBacklogged;
+    /** Whether a {@link #MSG_MOVE_INPUT} message is pending, so that at most one is posted at a time. */
+    final AtomicBoolean mMoveInputPending = new AtomicBoolean();
+
+    /** The paste being written, or null. Only used by the main thread, as are the fields below. */
+    private PasteJob mPaste;
+    /** The chunk of {@link #mPaste} being moved to the queue, and how much of it has been moved already. */
+    private PasteJob.Chunk mPasteChunk;
+    private int mPasteChunkOffset;
+    /** Input written during a paste, such as typed keys, which is passed on after the paste. */
+    private final ArrayDeque<byte[]> mInputHeldForPaste = new ArrayDeque<>();
     /**
-     * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
-     * writing to the {@link #mTerminalFileDescriptor}.
+     * Where the emulator writes its replies to queries and its mouse reports. These are not held back during a paste,
+     * since the program may be waiting for them.
      */
-    final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
+    private final TerminalOutput mEmulatorOutput = new TerminalOutput() {
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            if (mShellPid <= 0 || count <= 0) return;
+            writeToProcess(data, offset, count);
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+            TerminalSession.this.titleChanged(oldTitle, newTitle);
+        }
+
+        @Override
+        public void clipboardText(String text) {
+            TerminalSession.this.clipboardText(text);
+        }
+
+        @Override
+        public void onBell() {
+            TerminalSession.this.onBell();
+        }
+
+        @Override
+        public void onColorsChanged() {
+            TerminalSession.this.onColorsChanged();
+        }
+    };
+    private int mPastedChars;
+    /** When paste progress was last reported, in {@link SystemClock#uptimeMillis()}. */
+    private long mLastPasteProgressTime;
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
@@ -122,39 +178,100 @@ public final class TerminalSession extends TerminalOutput {
      */
     private int mTerminalFileDescriptor;
 
+    /** The registration of this session with the {@link PtyReactor}, or null before the process is started. */
+    private PtyReactor.Channel mReactorChannel;
+
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** Whether a {@link #MSG_NEW_INPUT} message is pending, so that the reactor posts at most one at a time. */
+    final AtomicBoolean mNewInputPending = new AtomicBoolean();
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
+        /** When the screen update listener was last notified, in {@link SystemClock#uptimeMillis()}. */
+        long mLastScreenUpdateTime;
+        boolean mScreenUpdatePending;
 
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
-                notifyScreenUpdate();
+            switch (msg.what) {
+                case MSG_NEW_INPUT:
+                    mNewInputPending.set(false);
+                    if (processInput(SystemClock.uptimeMillis() + MAX_INPUT_PROCESSING_MILLIS)) {
+                        // Out of time with input possibly left, so continue after other messages have been handled.
+                        if (mNewInputPending.compareAndSet(false, true)) sendEmptyMessage(MSG_NEW_INPUT);
+                    }
+                    break;
+                case MSG_MOVE_INPUT:
+                    mMoveInputPending.set(false);
+                    moveInputBacklog();
+                    break;
+                case MSG_SCREEN_UPDATE:
+                    mScreenUpdatePending = false;
+                    mLastScreenUpdateTime = SystemClock.uptimeMillis();
+                    notifyScreenUpdate();
+                    break;
+                case MSG_PROCESS_EXITED:
+                    processInput(Long.MAX_VALUE);
+
+                    int exitCode = (Integer) msg.obj;
+                    cleanupResources(exitCode);
+                    mChangeCallback.onSessionFinished(TerminalSession.this);
+
+                    String exitDescription = "\r\n[Process completed";
+                    if (exitCode > 0) {
+                        // Non-zero process exit.
+                        exitDescription += " (code " + exitCode + ")";
+                    } else if (exitCode < 0) {
+                        // Negated signal.
+                        exitDescription += " (signal " + (-exitCode) + ")";
+                    }
+                    exitDescription += "]";
+
+                    byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
+                    mEmulator.append(bytesToWrite, bytesToWrite.length);
+                    if (mRecorder != null) mRecorder.recordOutput(bytesToWrite, bytesToWrite.length);
+                    stopRecording();
+                    notifyScreenUpdate();
+                    break;
             }
+        }
 
-            if (msg.what == MSG_PROCESS_EXITED) {
-                int exitCode = (Integer) msg.obj;
-                cleanupResources(exitCode);
-                mChangeCallback.onSessionFinished(TerminalSession.this);
-
-                String exitDescription = "\r\n[Process completed";
-                if (exitCode > 0) {
-                    // Non-zero process exit.
-                    exitDescription += " (code " + exitCode + ")";
-                } else if (exitCode < 0) {
-                    // Negated signal.
-                    exitDescription += " (signal " + (-exitCode) + ")";
+        /**
+         * Feed queued process output to the emulator until the queue is empty or the deadline has passed.
+         *
+         * @return true if stopped due to the deadline
+         */
+        private boolean processInput(long deadline) {
+            boolean outOfTime = false;
+            boolean appended = false;
+            ByteBuffer chunk;
+            while ((chunk = mProcessToTerminalIOQueue.peek(MAX_INPUT_CHUNK)) != null) {
+                final int length = chunk.remaining();
+                if (mRecorder != null) mRecorder.recordOutput(chunk);
+                mEmulator.append(chunk);
+                mProcessToTerminalIOQueue.consume(length);
+                appended = true;
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    outOfTime = true;
+                    break;
                 }
-                exitDescription += "]";
+            }
+            if (appended) scheduleScreenUpdate();
+            return outOfTime;
+        }
 
-                byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
+        /** Notify about screen updates at most once per {@link #MIN_SCREEN_UPDATE_INTERVAL_MILLIS}. */
+        private void scheduleScreenUpdate() {
+            if (mScreenUpdatePending) return;
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastScreenUpdateTime >= MIN_SCREEN_UPDATE_INTERVAL_MILLIS) {
+                mLastScreenUpdateTime = now;
                 notifyScreenUpdate();
+            } else {
+                mScreenUpdatePending = true;
+                sendEmptyMessageAtTime(MSG_SCREEN_UPDATE, mLastScreenUpdateTime + MIN_SCREEN_UPDATE_INTERVAL_MILLIS);
             }
         }
     };
@@ -164,13 +281,38 @@ public final class TerminalSession extends TerminalOutput {
     private final String[] mEnv;
     private final String mCwd;
 
-    public TerminalSession(String shellPath, String[] args, String[] env, String cwd, SessionChangedCallback changeCallback) {
+    /** The number of rows kept by the emulator, including the screen and the history above it. */
+    private int mTranscriptRows;
+
+    /** Where to keep history beyond {@link #mTranscriptRows} on disk, or null to discard it. */
+    private File mTranscriptSpillDirectory;
+    private long mTranscriptSpillMaxBytes;
+    private long mTranscriptSpillMaxAgeMillis;
+
+    /** What runs the background tasks of this session. */
+    private final SessionIoScheduler mIoScheduler;
+
+    /** Where the process output is copied to, or null if it is not logged. */
+    private volatile SessionLog mOutputLog;
+
+    /** What records the input to the emulator, or null if not recording. Only used by the main thread. */
+    private SessionRecorder mRecorder;
+
+    public TerminalSession(String shellPath, String[] args, String[] env, String cwd, int transcriptRows, SessionChangedCallback changeCallback) {
+        this(shellPath, args, env, cwd, transcriptRows, changeCallback, SessionIoScheduler.DEDICATED_THREADS);
+    }
+
+    /** @param ioScheduler what runs the session's background tasks, such as writing its log. */
+    public TerminalSession(String shellPath, String[] args, String[] env, String cwd, int transcriptRows, SessionChangedCallback changeCallback,
+                           SessionIoScheduler ioScheduler) {
         mChangeCallback = changeCallback;
+        mIoScheduler = ioScheduler;
 
         this.mShellPath = shellPath;
         this.mArgs = args;
         this.mEnv = env;
         this.mCwd = cwd;
+        this.mTranscriptRows = transcriptRows;
     }
 
     /** Inform the attached pty of the new size and reflow or initialize the emulator. */
@@ -180,6 +322,7 @@ public final class TerminalSession extends TerminalOutput {
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
             mEmulator.resize(columns, rows);
+            if (mRecorder != null) mRecorder.recordResize(columns, rows);
         }
     }
 
@@ -195,61 +338,178 @@ public final class TerminalSession extends TerminalOutput {
      * @param rows    The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */5000);
+        mEmulator = new TerminalEmulator(mEmulatorOutput, columns, rows, mTranscriptRows);
+        if (mTranscriptSpillDirectory != null) {
+            mEmulator.setTranscriptSpill(mTranscriptSpillDirectory, mTranscriptSpillMaxBytes, mTranscriptSpillMaxAgeMillis);
+        }
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns);
         mShellPid = processId[0];
 
-        final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor);
-
-        new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
-                    while (true) {
-                        int read = termIn.read(buffer);
-                        if (read == -1) return;
-                        if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
-                    }
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
-                }
-            }
-        }.start();
-
-        new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                final byte[] buffer = new byte[4096];
-                try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-                    while (true) {
-                        int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-                        if (bytesToWrite == -1) return;
-                        termOut.write(buffer, 0, bytesToWrite);
-                    }
-                } catch (IOException e) {
-                    // Ignore.
-                }
-            }
-        }.start();
+        final PtyReactor reactor = PtyReactor.getInstance();
+        mProcessToTerminalIOQueue.setOnRead(() -> reactor.requestRead(mReactorChannel));
+        mTerminalToProcessIOQueue.setOnRead(() -> {
+            if (mInputBacklogged) postMoveInput();
+        });
+        mReactorChannel = reactor.register(this, mTerminalFileDescriptor, mShellPid);
+    }
 
-        new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                int processExitCode = JNI.waitFor(mShellPid);
-                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
-            }
-        }.start();
+    /**
+     * Queue output which the reactor thread has read from the process into {@link #mProcessToTerminalIOQueue}.
+     *
+     * @param offset where the output starts in {@link DirectByteQueue#getBuffer()}.
+     * @return false if the session has finished and no longer takes output.
+     */
+    boolean queueProcessOutput(int offset, int length) {
+        SessionLog outputLog = mOutputLog;
+        if (outputLog != null) outputLog.offer(mProcessToTerminalIOQueue.getBuffer(), offset, length);
+        return mProcessToTerminalIOQueue.commitWrite(length);
+    }
+
+    /** Have the main thread process the queued output. Called by the reactor thread after a batch of output. */
+    void notifyProcessOutput() {
+        if (mNewInputPending.compareAndSet(false, true)) mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+    }
 
+    /** Called by the reactor thread when the process has exited and been reaped. */
+    void onProcessExited(int exitStatus) {
+        mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, exitStatus));
     }
 
-    /** Write data to the shell process. */
+    /**
+     * Write data to the shell process. Never waits for the process: what does not fit into the queue to it is kept, and
+     * passed on in order as the process takes input. During a paste the data is held back until the paste has finished.
+     */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        if (mShellPid <= 0 || count <= 0) return;
+        if (mPaste != null) {
+            mInputHeldForPaste.add(Arrays.copyOfRange(data, offset, offset + count));
+            return;
+        }
+        writeToProcess(data, offset, count);
+    }
+
+    /** Queue data for the shell process, keeping what does not fit in {@link #mInputBacklog}. */
+    private void writeToProcess(byte[] data, int offset, int count) {
+        if (mInputBacklog.isEmpty()) {
+            int queued = mTerminalToProcessIOQueue.put(data, offset, count);
+            if (queued > 0) PtyReactor.getInstance().requestWrite(mReactorChannel);
+            if (queued == count) return;
+            offset += queued;
+            count -= queued;
+        }
+        mInputBacklog.add(Arrays.copyOfRange(data, offset, offset + count));
+        mInputBacklogged = true;
+        // The reactor may have made room before it could see the flag, in which case it does not report it.
+        moveInputBacklog();
+    }
+
+    /** Move as much of {@link #mInputBacklog}, and then of the paste in progress, into the queue to the process as fits. */
+    private void moveInputBacklog() {
+        int queued = 0;
+        byte[] chunk;
+        while ((chunk = mInputBacklog.peek()) != null) {
+            int chunkQueued = mTerminalToProcessIOQueue.put(chunk, mInputBacklogOffset, chunk.length - mInputBacklogOffset);
+            queued += chunkQueued;
+            mInputBacklogOffset += chunkQueued;
+            if (mInputBacklogOffset < chunk.length) break;
+            mInputBacklog.poll();
+            mInputBacklogOffset = 0;
+        }
+        if (mInputBacklog.isEmpty() && mPaste != null) queued += movePaste();
+        mInputBacklogged = !mInputBacklog.isEmpty() || mPaste != null;
+        if (queued > 0) PtyReactor.getInstance().requestWrite(mReactorChannel);
+    }
+
+    /** Have the main thread move input to the queue, from any thread. */
+    private void postMoveInput() {
+        if (mMoveInputPending.compareAndSet(false, true)) mMainThreadHandler.sendEmptyMessage(MSG_MOVE_INPUT);
+    }
+
+    /**
+     * Paste text into the session. Large text is encoded in the background and written as fast as the process takes
+     * it, with progress reported to the {@link SessionChangedCallback}, while input written in the meantime is held back
+     * until the paste has finished.
+     *
+     * @return false if the session has finished or a paste is still in progress.
+     */
+    public boolean paste(String text) {
+        if (mEmulator == null || !isRunning() || mPaste != null) return false;
+        if (text.length() < ASYNC_PASTE_MIN_CHARS) {
+            mEmulator.paste(text);
+            return true;
+        }
+
+        final boolean bracketed = mEmulator.isBracketedPasteMode();
+        if (bracketed) write(PasteEncoder.BRACKETED_PASTE_START);
+        mPaste = new PasteJob(text, bracketed, this::postMoveInput);
+        mPastedChars = 0;
+        mLastPasteProgressTime = SystemClock.uptimeMillis();
+        mInputBacklogged = true;
+        mPaste.start(mIoScheduler, "PasteJob[pid=" + mShellPid + "]");
+        return true;
+    }
+
+    /** Stop the paste in progress. What has been passed to the process already is not taken back. */
+    public void cancelPaste() {
+        if (mPaste == null) return;
+        mPaste.cancel();
+        finishPaste(true);
+    }
+
+    public boolean isPasting() {
+        return mPaste != null;
+    }
+
+    /**
+     * Move as much of the encoded paste into the queue to the process as fits, finishing the paste when all of it has
+     * been moved.
+     *
+     * @return the number of bytes queued.
+     */
+    private int movePaste() {
+        final PasteJob paste = mPaste;
+        int queued = 0;
+        while (true) {
+            if (mPasteChunk == null) {
+                mPasteChunk = paste.poll();
+                mPasteChunkOffset = 0;
+                if (mPasteChunk == null) break;
+            }
+            final PasteJob.Chunk chunk = mPasteChunk;
+            int chunkQueued = mTerminalToProcessIOQueue.put(chunk.mBytes, mPasteChunkOffset, chunk.mLength - mPasteChunkOffset);
+            queued += chunkQueued;
+            mPasteChunkOffset += chunkQueued;
+            if (mPasteChunkOffset < chunk.mLength) break;
+            mPastedChars = chunk.mEndPosition;
+            mPasteChunk = null;
+            paste.recycle(chunk);
+        }
+
+        if (mPasteChunk == null && paste.isFinished()) {
+            finishPaste(false);
+        } else {
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastPasteProgressTime >= PASTE_PROGRESS_INTERVAL_MILLIS) {
+                mLastPasteProgressTime = now;
+                mChangeCallback.onPasteProgress(this, mPastedChars, paste.mTotalChars);
+            }
+        }
+        return queued;
+    }
+
+    /** End the paste in progress and pass on the input held back during it. */
+    private void finishPaste(boolean cancelled) {
+        final boolean bracketed = mPaste.mBracketed;
+        mPaste = null;
+        mPasteChunk = null;
+        if (bracketed) write(PasteEncoder.BRACKETED_PASTE_END);
+        byte[] held;
+        while ((held = mInputHeldForPaste.poll()) != null) write(held, 0, held.length);
+        mInputBacklogged = !mInputBacklog.isEmpty();
+        mChangeCallback.onPasteFinished(this, cancelled);
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -298,6 +558,101 @@ public final class TerminalSession extends TerminalOutput {
         mChangeCallback.onTextChanged(this);
     }
 
+    public int getTranscriptRows() {
+        return mTranscriptRows;
+    }
+
+    /** Change the number of rows kept, dropping the oldest history if it no longer fits. */
+    public void setTranscriptRows(int transcriptRows) {
+        mTranscriptRows = transcriptRows;
+        if (mEmulator != null) {
+            mEmulator.setTranscriptRows(transcriptRows);
+            notifyScreenUpdate();
+        }
+    }
+
+    /**
+     * Drop the oldest history beyond the specified number of rows to release memory. The history may grow back to
+     * {@link #getTranscriptRows()} afterwards.
+     */
+    public void trimTranscript(int maxRows) {
+        if (mEmulator != null) {
+            mEmulator.trimTranscript(maxRows);
+            notifyScreenUpdate();
+        }
+    }
+
+    /**
+     * Keep history beyond {@link #getTranscriptRows()} in files in the specified directory instead of discarding it.
+     * The files are deleted when the session finishes.
+     *
+     * @param directory    a directory used by this session only.
+     * @param maxBytes     the size of the files above which the oldest history is deleted.
+     * @param maxAgeMillis how long history is kept on disk.
+     */
+    public void setTranscriptSpill(File directory, long maxBytes, long maxAgeMillis) {
+        mTranscriptSpillDirectory = directory;
+        mTranscriptSpillMaxBytes = maxBytes;
+        mTranscriptSpillMaxAgeMillis = maxAgeMillis;
+        if (mEmulator != null) mEmulator.setTranscriptSpill(directory, maxBytes, maxAgeMillis);
+    }
+
+    /**
+     * Copy the output of the process to log files, written in the background. Output is dropped from the log rather
+     * than slowing down the session when the files cannot be written fast enough.
+     *
+     * @param directory    where to place the log files.
+     * @param prefix       the start of the names of the log files.
+     * @param maxFileBytes the size at which a log file is rotated.
+     * @param maxFiles     the number of log files kept.
+     * @param compress     whether rotated log files are compressed with gzip.
+     */
+    public void startOutputLog(File directory, String prefix, long maxFileBytes, int maxFiles, boolean compress) {
+        stopOutputLog();
+        if (isRunning()) mOutputLog = new SessionLog(mIoScheduler, directory, prefix, maxFileBytes, maxFiles, compress);
+    }
+
+    /** Stop logging the output of the process, after what has been queued so far is written. */
+    public void stopOutputLog() {
+        SessionLog outputLog = mOutputLog;
+        mOutputLog = null;
+        if (outputLog != null) {
+            outputLog.close();
+            long droppedBytes = outputLog.getDroppedBytes();
+            if (droppedBytes > 0) Log.w(EmulatorDebug.LOG_TAG, "session log dropped " + droppedBytes + " bytes");
+        }
+    }
+
+    public boolean isOutputLogged() {
+        return mOutputLog != null;
+    }
+
+    /**
+     * Record what is fed to the emulator from now on, so that it can be replayed with {@link TerminalReplay}. The
+     * replay starts from an empty screen, so it shows what the session shows only if recording started with the
+     * session or the screen was cleared.
+     *
+     * @param file where to write the recording, replacing any earlier one.
+     */
+    public void startRecording(File file) {
+        stopRecording();
+        if (mEmulator != null && isRunning()) {
+            mRecorder = new SessionRecorder(mIoScheduler, file, mEmulator.mColumns, mEmulator.mRows, mTranscriptRows);
+        }
+    }
+
+    /** Stop recording, after what has been recorded so far is written. */
+    public void stopRecording() {
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
+        }
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
     /** Reset state for terminal emulator state. */
     public void reset(boolean erase) {
         mEmulator.reset(erase);
@@ -322,10 +677,17 @@ public final class TerminalSession extends TerminalOutput {
             mShellExitStatus = exitStatus;
         }
 
-        // Stop the reader and writer threads, and close the I/O streams
+        // Stop the I/O, after which the reactor closes the pty:
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
-        JNI.close(mTerminalFileDescriptor);
+        cancelPaste();
+        mInputBacklog.clear();
+        mInputBacklogged = false;
+        PtyReactor.getInstance().unregister(mReactorChannel);
+
+        // History kept on disk does not outlive the process:
+        mEmulator.closeTranscriptSpill();
+        stopOutputLog();
     }
 
     @Override
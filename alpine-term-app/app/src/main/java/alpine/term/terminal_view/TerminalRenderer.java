@@ -22,15 +22,21 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.terminal_view;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
+import android.util.LruCache;
+
+import java.util.Arrays;
 
 import alpine.term.emulator.TerminalBuffer;
 import alpine.term.emulator.TerminalEmulator;
 import alpine.term.emulator.TerminalRow;
 import alpine.term.emulator.TextStyle;
+import alpine.term.emulator.TranscriptSearch;
 import alpine.term.emulator.WcWidth;
 
 /**
@@ -58,6 +64,33 @@ final class TerminalRenderer {
 
     private final float[] asciiMeasures = new float[127];
 
+    /** The colors drawn over search matches, with the current match standing out. */
+    private static final int SEARCH_MATCH_COLOR = 0x60FFFF00;
+    private static final int CURRENT_SEARCH_MATCH_COLOR = 0xA0FF8C00;
+    private final Paint mSearchMatchPaint = new Paint();
+
+    /** Rendered rows keyed by row identity, or null if rows are drawn directly. */
+    private LruCache<TerminalRow, CachedRow> mRowCache;
+    /** The colors the cached rows were drawn with. */
+    private int[] mRowCachePalette;
+
+    /** A rendered row together with what it depends on besides the palette. */
+    private static final class CachedRow {
+        final Bitmap mBitmap;
+        final Canvas mCanvas;
+        int mVersion;
+        int mCursorX;
+        int mCursorShape;
+        int mSelX1;
+        int mSelX2;
+        boolean mReverseVideo;
+
+        CachedRow(Bitmap bitmap) {
+            mBitmap = bitmap;
+            mCanvas = new Canvas(bitmap);
+        }
+    }
+
     TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
         mTypeface = typeface;
@@ -78,9 +111,13 @@ final class TerminalRenderer {
         }
     }
 
-    /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
+    /**
+     * Render the terminal to a canvas with at a specified row scroll, an optional rectangular selection and optional
+     * search matches.
+     */
     public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
-                             int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2,
+                             TranscriptSearch search, TranscriptSearch.Match currentMatch) {
         final boolean reverseVideo = mEmulator.isReverseVideo();
         final int endRow = topRow + mEmulator.mRows;
         final int columns = mEmulator.mColumns;
@@ -94,6 +131,12 @@ final class TerminalRenderer {
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
 
+        if (mRowCache != null && !Arrays.equals(palette, mRowCachePalette)) {
+            // Cached rows were drawn with the old colors.
+            mRowCache.evictAll();
+            mRowCachePalette = palette.clone();
+        }
+
         float heightOffset = mFontLineSpacingAndAscent;
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
@@ -105,70 +148,168 @@ final class TerminalRenderer {
                 selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
             }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
-            final char[] line = lineObject.mText;
-            final int charsUsedInLine = lineObject.getSpaceUsed();
-
-            long lastRunStyle = 0;
-            boolean lastRunInsideCursor = false;
-            boolean lastRunInsideSelection = false;
-            int lastRunStartColumn = -1;
-            int lastRunStartIndex = 0;
-            boolean lastRunFontWidthMismatch = false;
-            int currentCharIndex = 0;
-            float measuredWidthForRun = 0.f;
-
-            for (int column = 0; column < columns; ) {
-                final char charAtIndex = line[currentCharIndex];
-                final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
-                final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
-                final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
-                final boolean insideSelection = column >= selx1 && column <= selx2;
-                final long style = lineObject.getStyle(column);
-
-                // Check if the measured text width for this code point is not the same as that expected by wcwidth().
-                // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
-                // smileys which android font renders as wide.
-                // If this is detected, we draw this code point scaled to match what wcwidth() expects.
-                final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
-                    currentCharIndex, charsForCodePoint);
-                final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
-
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column > 0) {
-                        final int columnWidthSinceLastRun = column - lastRunStartColumn;
-                        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
-                            lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo || lastRunInsideSelection);
-                    }
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = style;
-                    lastRunInsideCursor = insideCursor;
-                    lastRunInsideSelection = insideSelection;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = fontWidthMismatch;
-                }
-                measuredWidthForRun += measuredCodePointWidth;
-                column += codePointWcWidth;
-                currentCharIndex += charsForCodePoint;
-                while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
-                    // Eat combining chars so that they are treated as part of the last non-combining code point,
-                    // instead of e.g. being considered inside the cursor in the next run.
-                    currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+            TerminalRow lineObject = screen.getRow(row);
+            if (mRowCache == null) {
+                renderRow(mEmulator, canvas, lineObject, heightOffset, columns, cursorX, cursorShape, selx1, selx2, palette, reverseVideo);
+            } else {
+                Bitmap bitmap = getCachedRow(mEmulator, lineObject, columns, cursorX, cursorShape, selx1, selx2, palette, reverseVideo);
+                canvas.drawBitmap(bitmap, 0, heightOffset - mFontLineSpacing, null);
+            }
+        }
+
+        if (search != null) drawSearchMatches(canvas, screen, topRow, endRow, columns, search, currentMatch);
+
+        // Every visible row has been drawn, so whatever changed before is now on the canvas:
+        screen.clearDamage();
+    }
+
+    /** Highlight the search matches on the visible rows, on top of the text so that cached rows stay as they are. */
+    private void drawSearchMatches(Canvas canvas, TerminalBuffer screen, int topRow, int endRow, int columns,
+                                   TranscriptSearch search, TranscriptSearch.Match currentMatch) {
+        final long topLine = screen.getLineNumber(topRow);
+        final long endLine = topLine + (endRow - topRow);
+        for (int i = search.indexOfMatchEndingFrom(topLine); i < search.getMatchCount(); i++) {
+            final TranscriptSearch.Match match = search.getMatch(i);
+            if (match.mStartLine >= endLine) break;
+            final boolean current = currentMatch != null && match.mStartLine == currentMatch.mStartLine
+                && match.mStartColumn == currentMatch.mStartColumn;
+            mSearchMatchPaint.setColor(current ? CURRENT_SEARCH_MATCH_COLOR : SEARCH_MATCH_COLOR);
+            for (long line = Math.max(match.mStartLine, topLine); line <= match.mEndLine && line < endLine; line++) {
+                final int startColumn = (line == match.mStartLine) ? match.mStartColumn : 0;
+                final int endColumn = (line == match.mEndLine) ? match.mEndColumn : columns;
+                final float bottom = mFontLineSpacingAndAscent + (line - topLine + 1) * mFontLineSpacing;
+                canvas.drawRect(startColumn * mFontWidth, bottom - mFontLineSpacing, endColumn * mFontWidth, bottom, mSearchMatchPaint);
+            }
+        }
+    }
+
+    /**
+     * Enable caching of rendered rows as bitmaps, so that only rows whose content, cursor or selection changed are drawn
+     * again and scrolling just copies pixels.
+     *
+     * @param maxBytes the memory cap for the cached bitmaps, or 0 to disable the cache.
+     */
+    public void setRowCacheSize(int maxBytes) {
+        if (maxBytes <= 0) {
+            if (mRowCache != null) mRowCache.evictAll();
+            mRowCache = null;
+        } else if (mRowCache == null) {
+            mRowCache = new LruCache<TerminalRow, CachedRow>(maxBytes) {
+                @Override
+                protected int sizeOf(TerminalRow key, CachedRow value) {
+                    return value.mBitmap.getByteCount();
                 }
+            };
+            mRowCachePalette = null;
+        } else {
+            mRowCache.resize(maxBytes);
+        }
+    }
+
+    /** Drop all cached rows, for instance when the view is no longer shown. */
+    public void trimRowCache() {
+        if (mRowCache != null) mRowCache.evictAll();
+    }
+
+    /** Get the bitmap of a row, drawing it again only if something affecting it has changed. */
+    private Bitmap getCachedRow(TerminalEmulator emulator, TerminalRow lineObject, int columns, int cursorX, int cursorShape,
+                                int selx1, int selx2, int[] palette, boolean reverseVideo) {
+        final int width = (int) Math.ceil(columns * mFontWidth);
+        CachedRow cached = mRowCache.get(lineObject);
+        if (cached != null && cached.mBitmap.getWidth() == width && cached.mVersion == lineObject.getVersion()
+            && cached.mCursorX == cursorX && cached.mCursorShape == cursorShape && cached.mSelX1 == selx1
+            && cached.mSelX2 == selx2 && cached.mReverseVideo == reverseVideo) {
+            return cached.mBitmap;
+        }
+
+        if (cached == null || cached.mBitmap.getWidth() != width) {
+            cached = new CachedRow(Bitmap.createBitmap(width, mFontLineSpacing, Bitmap.Config.ARGB_8888));
+        } else {
+            cached.mBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        renderRow(emulator, cached.mCanvas, lineObject, mFontLineSpacing, columns, cursorX, cursorShape, selx1, selx2, palette, reverseVideo);
+        cached.mVersion = lineObject.getVersion();
+        cached.mCursorX = cursorX;
+        cached.mCursorShape = cursorShape;
+        cached.mSelX1 = selx1;
+        cached.mSelX2 = selx2;
+        cached.mReverseVideo = reverseVideo;
+        // Put also if already present, so that the size is accounted for a replaced bitmap:
+        mRowCache.put(lineObject, cached);
+        return cached.mBitmap;
+    }
+
+    /** Draw a single row with its bottom at the specified y coordinate. */
+    private void renderRow(TerminalEmulator mEmulator, Canvas canvas, TerminalRow lineObject, float heightOffset, int columns,
+                           int cursorX, int cursorShape, int selx1, int selx2, int[] palette, boolean reverseVideo) {
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+
+        long lastRunStyle = 0;
+        boolean lastRunInsideCursor = false;
+        boolean lastRunInsideSelection = false;
+        int lastRunStartColumn = -1;
+        int lastRunStartIndex = 0;
+        boolean lastRunFontWidthMismatch = false;
+        int currentCharIndex = 0;
+        float measuredWidthForRun = 0.f;
+        // The style is only looked up again once past the run of columns sharing it:
+        long style = 0;
+        int styleRunEnd = 0;
+
+        for (int column = 0; column < columns; ) {
+            final char charAtIndex = line[currentCharIndex];
+            final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
+            final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
+            final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
+            final int codePointWcWidth = WcWidth.width(codePoint);
+            final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
+            final boolean insideSelection = column >= selx1 && column <= selx2;
+            if (column >= styleRunEnd) {
+                style = lineObject.getStyle(column);
+                styleRunEnd = lineObject.getStyleRunEnd(column);
             }
 
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || lastRunInsideSelection);
+            // Check if the measured text width for this code point is not the same as that expected by wcwidth().
+            // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
+            // smileys which android font renders as wide.
+            // If this is detected, we draw this code point scaled to match what wcwidth() expects.
+            final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
+                currentCharIndex, charsForCodePoint);
+            final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
+
+            if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (column > 0) {
+                    final int columnWidthSinceLastRun = column - lastRunStartColumn;
+                    final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+                    int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                    drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
+                        lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
+                        cursorColor, cursorShape, lastRunStyle, reverseVideo || lastRunInsideSelection);
+                }
+                measuredWidthForRun = 0.f;
+                lastRunStyle = style;
+                lastRunInsideCursor = insideCursor;
+                lastRunInsideSelection = insideSelection;
+                lastRunStartColumn = column;
+                lastRunStartIndex = currentCharIndex;
+                lastRunFontWidthMismatch = fontWidthMismatch;
+            }
+            measuredWidthForRun += measuredCodePointWidth;
+            column += codePointWcWidth;
+            currentCharIndex += charsForCodePoint;
+            while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+                // Eat combining chars so that they are treated as part of the last non-combining code point,
+                // instead of e.g. being considered inside the cursor in the next run.
+                currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+            }
         }
+
+        final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+            measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || lastRunInsideSelection);
     }
 
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
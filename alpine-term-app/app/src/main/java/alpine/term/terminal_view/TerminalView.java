@@ -23,6 +23,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package alpine.term.terminal_view;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
@@ -37,6 +38,7 @@ import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.ActionMode;
+import android.view.Choreographer;
 import android.view.HapticFeedbackConstants;
 import android.view.InputDevice;
 import android.view.KeyCharacterMap;
@@ -63,6 +65,7 @@ import alpine.term.emulator.KeyHandler;
 import alpine.term.emulator.TerminalBuffer;
 import alpine.term.emulator.TerminalEmulator;
 import alpine.term.emulator.TerminalSession;
+import alpine.term.emulator.TranscriptSearch;
 import alpine.term.emulator.WcWidth;
 
 /** View displaying and interacting with a {@link TerminalSession}. */
@@ -93,6 +96,10 @@ public final class TerminalView extends View {
     private Rect mTempRect;
     private SelectionModifierCursorController mSelectionModifierCursorController;
 
+    /** The search whose matches are highlighted, or null. */
+    private TranscriptSearch mSearch;
+    private TranscriptSearch.Match mSearchMatch;
+
     private float mScaleFactor = 1.f;
     private final GestureAndScaleRecognizer mGestureRecognizer;
 
@@ -111,6 +118,49 @@ public final class TerminalView extends View {
 
     private boolean mAccessibilityEnabled;
 
+    /** Minimal interval between refreshes of the accessibility content description. */
+    private static final long ACCESSIBILITY_UPDATE_INTERVAL_MILLIS = 500;
+
+    /** Set when the emulator has new content which was not yet handed to the next frame. */
+    private boolean mScreenDirty;
+
+    /** Whether {@link #mFrameCallback} is currently posted to the {@link Choreographer}. */
+    private boolean mFrameCallbackPosted;
+
+    /** Whether {@link #mAccessibilityUpdater} is currently posted. */
+    private boolean mAccessibilityUpdatePosted;
+
+    /** Time of the last accessibility content description refresh, in {@link SystemClock#uptimeMillis()}. */
+    private long mLastAccessibilityUpdateTime;
+
+    /** Memory cap for rows cached as bitmaps by the renderer, or 0 if rows are drawn directly. */
+    private int mRowCacheSize;
+
+    /** Counters for checking how well screen updates are coalesced into frames. */
+    private long mScreenUpdatesReceived;
+    private long mFramesDrawn;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPosted = false;
+            if (mScreenDirty) {
+                mScreenDirty = false;
+                applyScreenUpdate();
+            }
+        }
+    };
+
+    private final Runnable mAccessibilityUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mAccessibilityUpdatePosted = false;
+            if (mEmulator == null) return;
+            mLastAccessibilityUpdateTime = SystemClock.uptimeMillis();
+            setContentDescription(getText());
+        }
+    };
+
     public TerminalView(Context context, AttributeSet attributes) { // NO_UCD (unused code)
         super(context, attributes);
         mGestureRecognizer = new GestureAndScaleRecognizer(context, new GestureAndScaleRecognizer.Listener() {
@@ -258,6 +308,8 @@ public final class TerminalView extends View {
     public boolean attachSession(TerminalSession session) {
         if (session == mTermSession) return false;
         mTopRow = 0;
+        mSearch = null;
+        mSearchMatch = null;
 
         mTermSession = session;
         mEmulator = null;
@@ -392,9 +444,36 @@ public final class TerminalView extends View {
         return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
     }
 
+    /**
+     * Notify the view that the emulator screen has changed. The actual work is deferred to
+     * the next display frame, so any number of updates between two frames cost one redraw.
+     */
     public void onScreenUpdated() {
         if (mEmulator == null) return;
 
+        mScreenUpdatesReceived++;
+        mScreenDirty = true;
+        if (!mFrameCallbackPosted) {
+            mFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /** Number of times {@link #onScreenUpdated()} has been called. */
+    public long getScreenUpdatesReceived() {
+        return mScreenUpdatesReceived;
+    }
+
+    /** Number of times the terminal has been drawn. */
+    public long getFramesDrawn() {
+        return mFramesDrawn;
+    }
+
+    /** Scroll bookkeeping and invalidation for all screen updates received since the last frame. */
+    private void applyScreenUpdate() {
+        if (mEmulator == null) return;
+
+        final int oldTopRow = mTopRow;
         int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
 
@@ -412,6 +491,10 @@ public final class TerminalView extends View {
                 mSelY1 -= rowShift;
                 mSelY2 -= rowShift;
             }
+        } else if (mSearch != null && mTopRow != 0) {
+            // Keep showing the same rows while looking at search matches in the transcript.
+            skipScrolling = true;
+            mTopRow = Math.max(-rowsInHistory, mTopRow - mEmulator.getScrollCounter());
         }
 
         if (!skipScrolling && mTopRow != 0) {
@@ -426,8 +509,19 @@ public final class TerminalView extends View {
         }
 
         mEmulator.clearScrollCounter();
-        invalidate();
-        if (mAccessibilityEnabled) setContentDescription(getText());
+        // Output such as a title change or a bell leaves the screen as it is, so there is nothing to redraw:
+        if (mTopRow != oldTopRow || mEmulator.getScreen().hasDamage()) {
+            invalidate();
+            if (mAccessibilityEnabled) scheduleAccessibilityUpdate();
+        }
+    }
+
+    /** Refresh the content description, which copies the whole screen text, at a throttled rate. */
+    private void scheduleAccessibilityUpdate() {
+        if (mAccessibilityUpdatePosted) return;
+        mAccessibilityUpdatePosted = true;
+        long delay = mLastAccessibilityUpdateTime + ACCESSIBILITY_UPDATE_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+        postDelayed(mAccessibilityUpdater, Math.max(0, delay));
     }
 
     /**
@@ -437,15 +531,35 @@ public final class TerminalView extends View {
      */
     public void setTextSize(int textSize) {
         mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
+        mRenderer.setRowCacheSize(mRowCacheSize);
         updateSize();
     }
 
     public void setTypeface(Typeface newTypeface) {
         mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
+        mRenderer.setRowCacheSize(mRowCacheSize);
         updateSize();
         invalidate();
     }
 
+    /**
+     * Enable or disable caching of rendered rows as bitmaps. With the cache, only rows whose content, cursor or
+     * selection changed are drawn again, at the cost of memory which is capped relative to the memory class of the
+     * device.
+     */
+    public void setRowCacheEnabled(boolean enabled) {
+        mRowCacheSize = 0;
+        if (enabled) {
+            ActivityManager am = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+            int memoryClassBytes = (am != null ? am.getMemoryClass() : 16) * 1024 * 1024;
+            mRowCacheSize = memoryClassBytes / ((am != null && am.isLowRamDevice()) ? 32 : 8);
+        }
+        if (mRenderer != null) {
+            mRenderer.setRowCacheSize(mRowCacheSize);
+            invalidate();
+        }
+    }
+
     @Override
     public boolean onCheckIsTextEditor() {
         return true;
@@ -527,7 +641,7 @@ public final class TerminalView extends View {
 
                 if (clipData != null) {
                     CharSequence paste = clipData.getItemAt(0).coerceToText(getContext());
-                    if (!TextUtils.isEmpty(paste)) mEmulator.paste(paste.toString());
+                    if (!TextUtils.isEmpty(paste)) mTermSession.paste(paste.toString());
                 }
             } else if (mEmulator.isMouseTrackingActive()) { // BUTTON_PRIMARY.
                 switch (ev.getAction()) {
@@ -750,10 +864,11 @@ public final class TerminalView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
+        mFramesDrawn++;
         if (mEmulator == null) {
             canvas.drawColor(0XFF000000);
         } else {
-            mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+            mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2, mSearch, mSearchMatch);
 
             SelectionModifierCursorController selectionController = getSelectionController();
             if (selectionController != null && selectionController.isActive()) {
@@ -786,6 +901,27 @@ public final class TerminalView extends View {
         startTextSelectionMode();
     }
 
+    /**
+     * Highlight the matches of a search, or stop doing so if null, with the current match, if any, standing out. New
+     * output does not scroll the view back to the bottom while rows of the transcript are shown with the matches.
+     */
+    public void showSearch(TranscriptSearch search, TranscriptSearch.Match currentMatch) {
+        mSearch = search;
+        mSearchMatch = currentMatch;
+        invalidate();
+    }
+
+    /** Scroll the current search match into view, unless it already is. */
+    public void scrollToSearchMatch() {
+        if (mEmulator == null || mSearchMatch == null) return;
+        final int row = (int) (mSearchMatch.mStartLine - mEmulator.getScreen().getLineNumber(0));
+        if (row < mTopRow || row >= mTopRow + mEmulator.mRows) {
+            mTopRow = Math.min(0, Math.max(-mEmulator.getScreen().getActiveTranscriptRows(), row - mEmulator.mRows / 2));
+            awakenScrollBars();
+            invalidate();
+        }
+    }
+
     public TerminalSession getCurrentSession() {
         return mTermSession;
     }
@@ -798,6 +934,11 @@ public final class TerminalView extends View {
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
 
+        if (mScreenDirty && !mFrameCallbackPosted) {
+            mFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+
         if (mSelectionModifierCursorController != null) {
             getViewTreeObserver().addOnTouchModeChangeListener(mSelectionModifierCursorController);
         }
@@ -807,6 +948,16 @@ public final class TerminalView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        if (mFrameCallbackPosted) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFrameCallbackPosted = false;
+        }
+        if (mAccessibilityUpdatePosted) {
+            removeCallbacks(mAccessibilityUpdater);
+            mAccessibilityUpdatePosted = false;
+        }
+        if (mRenderer != null) mRenderer.trimRowCache();
+
         if (mSelectionModifierCursorController != null) {
             getViewTreeObserver().removeOnTouchModeChangeListener(mSelectionModifierCursorController);
             mSelectionModifierCursorController.onDetached();
@@ -1218,7 +1369,7 @@ public final class TerminalView extends View {
 
                             if (clipData != null) {
                                 CharSequence paste = clipData.getItemAt(0).coerceToText(getContext());
-                                if (!TextUtils.isEmpty(paste)) mEmulator.paste(paste.toString());
+                                if (!TextUtils.isEmpty(paste)) mTermSession.paste(paste.toString());
                             }
                             break;
                         case 3:
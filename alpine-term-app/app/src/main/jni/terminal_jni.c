@@ -21,13 +21,19 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 *************************************************************************
 */
 #include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
 #include <signal.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <sys/ioctl.h>
+#include <sys/syscall.h>
+#include <sys/uio.h>
 #include <sys/wait.h>
 #include <termios.h>
 #include <unistd.h>
@@ -36,6 +42,13 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 #ifdef __APPLE__
 # define LACKS_PTSNAME_R
 #endif
+#ifndef __NR_pidfd_open
+# define __NR_pidfd_open 434
+#endif
+
+// Results of read and write which are not a byte count, see JNI.java.
+#define IO_AGAIN -1
+#define IO_ERROR -2
 
 static int throw_runtime_exception(JNIEnv* env, char const* message)
 {
@@ -216,21 +229,159 @@ JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_setPtyUTF8Mode(JNIEnv* ALPI
     }
 }
 
-JNIEXPORT int JNICALL Java_alpine_term_emulator_JNI_waitFor(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint pid)
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_close(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fileDescriptor)
+{
+    close(fileDescriptor);
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_waitForNoHang(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint pid)
 {
     int status;
-    waitpid(pid, &status, 0);
-    if (WIFEXITED(status)) {
+    pid_t result = waitpid(pid, &status, WNOHANG);
+    if (result == 0) {
+        return INT32_MIN;
+    } else if (result < 0) {
+        // Reaped by someone else, so the status is unknown.
+        return 0;
+    } else if (WIFEXITED(status)) {
         return WEXITSTATUS(status);
     } else if (WIFSIGNALED(status)) {
         return -WTERMSIG(status);
     } else {
-        // Should never happen - waitpid(2) says "One of the first three macros will evaluate to a non-zero (true) value".
         return 0;
     }
 }
 
-JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_close(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fileDescriptor)
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_openPidFd(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint pid)
 {
-    close(fileDescriptor);
+    int fd = (int) syscall(__NR_pidfd_open, (pid_t) pid, 0);
+    if (fd >= 0) fcntl(fd, F_SETFD, FD_CLOEXEC);
+    return fd;
+}
+
+static int child_signal_pipe[2] = { -1, -1 };
+static struct sigaction previous_child_signal_action;
+
+static void on_child_signal(int signal_number, siginfo_t* info, void* context)
+{
+    int saved_errno = errno;
+    char byte = 0;
+    // The pipe is non-blocking, and if it is full the reactor will wake up anyway.
+    ssize_t ALPINE_TERM_UNUSED(written) = write(child_signal_pipe[1], &byte, 1);
+    errno = saved_errno;
+
+    if (previous_child_signal_action.sa_flags & SA_SIGINFO) {
+        if (previous_child_signal_action.sa_sigaction) previous_child_signal_action.sa_sigaction(signal_number, info, context);
+    } else if (previous_child_signal_action.sa_handler != SIG_DFL && previous_child_signal_action.sa_handler != SIG_IGN) {
+        previous_child_signal_action.sa_handler(signal_number);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_createChildSignalPipe(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz))
+{
+    if (child_signal_pipe[0] != -1) return child_signal_pipe[0];
+    if (pipe2(child_signal_pipe, O_NONBLOCK | O_CLOEXEC) != 0) return throw_runtime_exception(env, "Cannot create SIGCHLD pipe");
+
+    struct sigaction action;
+    memset(&action, 0, sizeof(action));
+    action.sa_sigaction = on_child_signal;
+    action.sa_flags = SA_SIGINFO | SA_RESTART | SA_NOCLDSTOP;
+    sigemptyset(&action.sa_mask);
+    if (sigaction(SIGCHLD, &action, &previous_child_signal_action) != 0) return throw_runtime_exception(env, "Cannot handle SIGCHLD");
+    return child_signal_pipe[0];
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_epollCreate(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz))
+{
+    int fd = epoll_create1(EPOLL_CLOEXEC);
+    if (fd < 0) return throw_runtime_exception(env, "epoll_create1() failed");
+    return fd;
+}
+
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_epollControl(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz), jint epoll_fd, jint operation, jint fd, jint events, jint token)
+{
+    struct epoll_event event = { .events = (uint32_t) events, .data.u64 = (uint32_t) token };
+    if (epoll_ctl(epoll_fd, operation, fd, &event) != 0) {
+        char message[64];
+        snprintf(message, sizeof(message), "epoll_ctl(%d, %d) failed: %d", operation, fd, errno);
+        throw_runtime_exception(env, message);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_epollWait(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz), jint epoll_fd, jintArray result, jint timeout_millis)
+{
+    jsize max_events = (*env)->GetArrayLength(env, result) / 2;
+    struct epoll_event events[64];
+    if (max_events > 64) max_events = 64;
+
+    int count = epoll_wait(epoll_fd, events, max_events, timeout_millis);
+    if (count < 0) {
+        if (errno == EINTR) return 0;
+        return throw_runtime_exception(env, "epoll_wait() failed");
+    }
+
+    jint tokens_and_events[128];
+    for (int i = 0; i < count; i++) {
+        tokens_and_events[2 * i] = (jint) events[i].data.u64;
+        tokens_and_events[2 * i + 1] = (jint) events[i].events;
+    }
+    (*env)->SetIntArrayRegion(env, result, 0, 2 * count, tokens_and_events);
+    return count;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_createEventFd(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz))
+{
+    int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    if (fd < 0) return throw_runtime_exception(env, "eventfd() failed");
+    return fd;
+}
+
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_signalEventFd(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fd)
+{
+    uint64_t one = 1;
+    ssize_t ALPINE_TERM_UNUSED(written) = write(fd, &one, sizeof(one));
+}
+
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_drain(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fd)
+{
+    char buffer[64];
+    while (read(fd, buffer, sizeof(buffer)) > 0);
+}
+
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_setNonBlocking(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fd)
+{
+    int flags = fcntl(fd, F_GETFL);
+    if (flags != -1) fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_read(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz), jint fd, jobject buffer, jint offset, jint length)
+{
+    // The buffer is direct, so the bytes land where the emulator parses them without any copying.
+    jbyte* bytes = (*env)->GetDirectBufferAddress(env, buffer);
+    if (!bytes) return throw_runtime_exception(env, "JNI call GetDirectBufferAddress(buffer) failed");
+    ssize_t result;
+    do {
+        result = read(fd, bytes + offset, (size_t) length);
+    } while (result < 0 && errno == EINTR);
+
+    if (result >= 0) return (jint) result;
+    return (errno == EAGAIN || errno == EWOULDBLOCK) ? IO_AGAIN : IO_ERROR;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_writev(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz), jint fd, jobject buffer, jint offset, jint length, jint wrappedLength)
+{
+    jbyte* bytes = (*env)->GetDirectBufferAddress(env, buffer);
+    if (!bytes) return throw_runtime_exception(env, "JNI call GetDirectBufferAddress(buffer) failed");
+    // Bytes queued in a ring wrap around its end, so they are written as two pieces in one system call.
+    struct iovec pieces[2] = {
+        { .iov_base = bytes + offset, .iov_len = (size_t) length },
+        { .iov_base = bytes, .iov_len = (size_t) wrappedLength }
+    };
+    ssize_t result;
+    do {
+        result = writev(fd, pieces, wrappedLength > 0 ? 2 : 1);
+    } while (result < 0 && errno == EINTR);
+
+    if (result >= 0) return (jint) result;
+    return (errno == EAGAIN || errno == EWOULDBLOCK) ? IO_AGAIN : IO_ERROR;
 }
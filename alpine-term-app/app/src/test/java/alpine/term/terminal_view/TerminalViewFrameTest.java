@@ -0,0 +1,107 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.terminal_view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import alpine.term.emulator.TerminalEmulator;
+import alpine.term.emulator.TerminalOutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/** Checks that screen updates arriving faster than the display refreshes are drawn once per frame. */
+@RunWith(RobolectricTestRunner.class)
+public class TerminalViewFrameTest {
+
+    private static final int FRAMES = 20;
+    private static final int UPDATES_PER_FRAME = 5;
+
+    private static final class DiscardingOutput extends TerminalOutput {
+        @Override
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+        }
+
+        @Override
+        public void clipboardText(String text) {
+        }
+
+        @Override
+        public void onBell() {
+        }
+
+        @Override
+        public void onColorsChanged() {
+        }
+    }
+
+    @Test
+    public void screenUpdatesAreCoalescedIntoFrames() throws Exception {
+        final TerminalView view = new TerminalView(ApplicationProvider.getApplicationContext(), null);
+        view.setTextSize(12);
+        final TerminalEmulator emulator = new TerminalEmulator(new DiscardingOutput(), 80, 24, 100);
+        // Without a session there is no process to start, so the emulator is set directly:
+        final Field emulatorField = TerminalView.class.getDeclaredField("mEmulator");
+        emulatorField.setAccessible(true);
+        emulatorField.set(view, emulator);
+
+        // The test stands in for the window, which draws the view in a frame when it has been invalidated.
+        final Canvas canvas = new Canvas(Bitmap.createBitmap(800, 600, Bitmap.Config.ARGB_8888));
+        view.layout(0, 0, 800, 600);
+        view.draw(canvas);
+        final long initialFrames = view.getFramesDrawn();
+
+        for (int frame = 0; frame < FRAMES; frame++) {
+            for (int update = 0; update < UPDATES_PER_FRAME; update++) {
+                final byte[] output = ("frame " + frame + " update " + update + "\r\n").getBytes(StandardCharsets.UTF_8);
+                emulator.append(output, output.length);
+                view.onScreenUpdated();
+            }
+            shadowOf(Looper.getMainLooper()).idleFor(16, TimeUnit.MILLISECONDS);
+            if (view.isDirty()) view.draw(canvas);
+        }
+
+        final long framesDrawn = view.getFramesDrawn() - initialFrames;
+        assertEquals(FRAMES * UPDATES_PER_FRAME, view.getScreenUpdatesReceived());
+        assertEquals(FRAMES, framesDrawn);
+        assertTrue(view.getScreenUpdatesReceived() / framesDrawn > 1);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares {@link ByteQueue} with the previous {@link SynchronizedByteQueue} when moving pty output from a reader thread
+ * to the main thread. A producer thread writes chunks as fast as it can while the benchmark thread reads them.
+ * <p>
+ * The bytes counter reports the transfer rate, in MB/s when using ops/us.
+ */
+public class ByteQueueBenchmark {
+
+    @State(Scope.Thread)
+    public static class QueueParameters {
+        @Param({"4096", "65536"})
+        int capacity;
+
+        @Param({"4096"})
+        int chunkSize;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class TransferredBytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LockFreeQueue {
+        ByteQueue mQueue;
+        byte[] mReadBuffer;
+        private Thread mProducer;
+
+        @Setup(Level.Iteration)
+        public void startProducer(QueueParameters parameters) {
+            final ByteQueue queue = mQueue = new ByteQueue(parameters.capacity);
+            final byte[] chunk = new byte[parameters.chunkSize];
+            mReadBuffer = new byte[parameters.chunkSize];
+            mProducer = new Thread(() -> {
+                // Keep writing until closed.
+                while (queue.write(chunk, 0, chunk.length)) ;
+            }, "ByteQueueBenchmarkProducer");
+            mProducer.start();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stopProducer() throws InterruptedException {
+            mQueue.close();
+            mProducer.join();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SynchronizedQueue {
+        SynchronizedByteQueue mQueue;
+        byte[] mReadBuffer;
+        private Thread mProducer;
+
+        @Setup(Level.Iteration)
+        public void startProducer(QueueParameters parameters) {
+            final SynchronizedByteQueue queue = mQueue = new SynchronizedByteQueue(parameters.capacity);
+            final byte[] chunk = new byte[parameters.chunkSize];
+            mReadBuffer = new byte[parameters.chunkSize];
+            mProducer = new Thread(() -> {
+                // Keep writing until closed.
+                while (queue.write(chunk, 0, chunk.length)) ;
+            }, "ByteQueueBenchmarkProducer");
+            mProducer.start();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stopProducer() throws InterruptedException {
+            mQueue.close();
+            mProducer.join();
+        }
+    }
+
+    @Benchmark
+    public int lockFree(LockFreeQueue queue, TransferredBytes transferred) {
+        int read = queue.mQueue.read(queue.mReadBuffer, true);
+        transferred.bytes += read;
+        return read;
+    }
+
+    @Benchmark
+    public int synchronizedMonitor(SynchronizedQueue queue, TransferredBytes transferred) {
+        int read = queue.mQueue.read(queue.mReadBuffer, true);
+        transferred.bytes += read;
+        return read;
+    }
+
+}
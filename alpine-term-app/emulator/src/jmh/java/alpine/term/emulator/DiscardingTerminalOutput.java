@@ -22,9 +22,27 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
-import android.util.Log;
+/** A terminal client which ignores everything the emulator reports back. */
+final class DiscardingTerminalOutput extends TerminalOutput {
+
+    @Override
+    public void write(byte[] data, int offset, int count) {
+    }
+
+    @Override
+    public void titleChanged(String oldTitle, String newTitle) {
+    }
+
+    @Override
+    public void clipboardText(String text) {
+    }
+
+    @Override
+    public void onBell() {
+    }
+
+    @Override
+    public void onColorsChanged() {
+    }
 
-public final class EmulatorDebug {
-    /** The tag to use with {@link Log}. */
-    public static final String LOG_TAG = "alpine-term:emulator";
 }
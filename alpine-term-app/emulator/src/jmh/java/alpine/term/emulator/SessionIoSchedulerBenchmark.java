@@ -0,0 +1,105 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the {@link SessionIoScheduler} implementations with many simulated sessions on a plain JVM. An operation
+ * hands a burst of output to every session and waits until all of them have fed it to their emulators, each from a
+ * task started on the scheduler, so the score is how many such rounds complete per time unit for a number of threads.
+ * <p>
+ * The virtual thread scheduler needs a JVM with virtual threads, and fails to set up elsewhere.
+ */
+@State(Scope.Thread)
+public class SessionIoSchedulerBenchmark {
+
+    /** The output each session gets per operation. */
+    private static final int BURST_BYTES = 16 * 1024;
+
+    @Param({"dedicated", "pool", "virtual"})
+    String scheduler;
+
+    @Param({"16", "256"})
+    int sessions;
+
+    private SessionIoScheduler mScheduler;
+    private byte[] mBurst;
+    private TerminalEmulator[] mEmulators;
+
+    @Setup
+    public void setUp() {
+        switch (scheduler) {
+            case "dedicated":
+                mScheduler = SessionIoScheduler.DEDICATED_THREADS;
+                break;
+            case "pool":
+                mScheduler = new SessionIoScheduler.SharedPool(Runtime.getRuntime().availableProcessors());
+                break;
+            case "virtual":
+                mScheduler = new SessionIoScheduler.VirtualThreads();
+                break;
+            default:
+                throw new IllegalArgumentException(scheduler);
+        }
+        mBurst = TerminalWorkload.ASCII_LOG.generate(BURST_BYTES);
+        mEmulators = new TerminalEmulator[sessions];
+        for (int i = 0; i < sessions; i++) {
+            mEmulators[i] = new TerminalEmulator(new DiscardingTerminalOutput(), TerminalWorkload.COLUMNS,
+                TerminalWorkload.ROWS, TerminalWorkload.TRANSCRIPT_ROWS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mScheduler instanceof SessionIoScheduler.SharedPool) ((SessionIoScheduler.SharedPool) mScheduler).shutdown();
+    }
+
+    @Benchmark
+    public void burst() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            final ByteQueue queue = new ByteQueue(2 * BURST_BYTES);
+            final TerminalEmulator emulator = mEmulators[i];
+            mScheduler.start("SimulatedSession[" + i + "]", () -> {
+                final byte[] chunk = new byte[4096];
+                int read;
+                while ((read = queue.read(chunk, true)) != -1) emulator.append(chunk, read);
+                while ((read = queue.readRemaining(chunk)) > 0) emulator.append(chunk, read);
+                done.countDown();
+            });
+            // The whole burst fits, so queueing it never waits for a session whose task has not started yet.
+            queue.write(mBurst, 0, mBurst.length);
+            queue.close();
+        }
+        done.await();
+    }
+
+}
@@ -22,15 +22,15 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
-final class ByteQueue {
+/** The monitor based {@link ByteQueue} used before it became lock-free, kept as a baseline for {@link ByteQueueBenchmark}. */
+final class SynchronizedByteQueue {
 
     private final byte[] mBuffer;
     private int mHead;
     private int mStoredBytes;
     private boolean mOpen = true;
 
-    public ByteQueue(int size) {
+    public SynchronizedByteQueue(int size) {
         mBuffer = new byte[size];
     }
 
@@ -0,0 +1,72 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link TerminalEmulator#append(byte[], int)} over typical output.
+ * <p>
+ * One operation is one input byte, so throughput in ops/us reads as MB/s and gc.alloc.rate.norm from the gc
+ * profiler reads as bytes allocated per input byte.
+ */
+@State(Scope.Thread)
+public class TerminalEmulatorBenchmark {
+
+    static final int PAYLOAD_BYTES = 256 * 1024;
+
+    /** Input is fed in pieces of the size read from the pty by TerminalSession. */
+    private static final int CHUNK_BYTES = 4096;
+
+    @Param
+    TerminalWorkload workload;
+
+    private byte[] mPayload;
+    private byte[] mChunk;
+    private TerminalEmulator mEmulator;
+
+    @Setup
+    public void setUp() {
+        mPayload = workload.generate(PAYLOAD_BYTES);
+        mChunk = new byte[CHUNK_BYTES];
+        mEmulator = new TerminalEmulator(new DiscardingTerminalOutput(), TerminalWorkload.COLUMNS, TerminalWorkload.ROWS,
+            TerminalWorkload.TRANSCRIPT_ROWS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_BYTES)
+    public TerminalEmulator append() {
+        for (int offset = 0; offset < PAYLOAD_BYTES; offset += CHUNK_BYTES) {
+            int length = Math.min(CHUNK_BYTES, PAYLOAD_BYTES - offset);
+            System.arraycopy(mPayload, offset, mChunk, 0, length);
+            mEmulator.append(mChunk, length);
+        }
+        return mEmulator;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/** Measures cell access on wide rows holding CJK and emoji, where columns and char indices differ. */
+@State(Scope.Thread)
+public class TerminalRowBenchmark {
+
+    static final int ACCESSES = 1024;
+
+    @Param({"80", "240"})
+    int columns;
+
+    private TerminalRow mRow;
+    private int[] mColumns;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mRow = new TerminalRow(columns, TextStyle.NORMAL);
+        fillLine(mRow, columns, random);
+        mColumns = new int[ACCESSES];
+        for (int i = 0; i < ACCESSES; i++)
+            mColumns[i] = random.nextInt(columns - 1);
+    }
+
+    private static void fillLine(TerminalRow row, int columns, Random random) {
+        int[] codePoints = {'a', 0x4E2D, 0x1F600, 0xAC00};
+        for (int column = 0; column < columns - 1; ) {
+            int codePoint = codePoints[random.nextInt(codePoints.length)];
+            row.setChar(column, codePoint, TextStyle.NORMAL);
+            column += WcWidth.width(codePoint);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int findStartOfColumn() {
+        int sum = 0;
+        for (int column : mColumns)
+            sum += mRow.findStartOfColumn(column);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public TerminalRow setCharAtRandomColumn() {
+        for (int i = 0; i < ACCESSES; i++)
+            mRow.setChar(mColumns[i], (i & 1) == 0 ? 0x4E2D : 'x', TextStyle.NORMAL);
+        return mRow;
+    }
+
+    /** Write a line of wide characters from left to right, as the emulator does for CJK output. */
+    @Benchmark
+    public TerminalRow writeWideLine() {
+        mRow.clear(TextStyle.NORMAL);
+        for (int column = 0; column + 1 < columns; column += 2)
+            mRow.setChar(column, 0x4E2D, TextStyle.NORMAL);
+        return mRow;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the memory used by rows holding realistic scrollback.
+ * <p>
+ * The rows of a transcript filled by a workload are copied into new rows, one operation per row, so
+ * gc.alloc.rate.norm from the gc profiler reads as the size in bytes of a row with its text and styles.
+ */
+@State(Scope.Thread)
+public class TerminalRowMemoryBenchmark {
+
+    static final int ROWS = 1000;
+
+    @Param({"ASCII_LOG", "SGR_COLOR", "CURSOR_REDRAW"})
+    TerminalWorkload workload;
+
+    private TerminalRow[] mSource;
+    private final TerminalRow[] mCopies = new TerminalRow[ROWS];
+
+    @Setup
+    public void setUp() {
+        byte[] payload = workload.generate(TerminalEmulatorBenchmark.PAYLOAD_BYTES);
+        TerminalEmulator emulator = new TerminalEmulator(new DiscardingTerminalOutput(), TerminalWorkload.COLUMNS,
+            TerminalWorkload.ROWS, TerminalWorkload.TRANSCRIPT_ROWS);
+        emulator.append(payload, payload.length);
+
+        TerminalBuffer screen = emulator.getScreen();
+        int firstRow = -screen.getActiveTranscriptRows();
+        int availableRows = screen.getActiveRows();
+        mSource = new TerminalRow[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            // Decode a copy of each row, since the buffer only keeps recently decoded ones:
+            TerminalRow row = new TerminalRow(TerminalWorkload.COLUMNS, TextStyle.NORMAL);
+            row.copyInterval(screen.getRow(firstRow + i % availableRows), 0, TerminalWorkload.COLUMNS, 0);
+            mSource[i] = row;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public TerminalRow[] copyRows() {
+        for (int i = 0; i < ROWS; i++) {
+            TerminalRow row = new TerminalRow(TerminalWorkload.COLUMNS, TextStyle.NORMAL);
+            row.copyInterval(mSource[i], 0, TerminalWorkload.COLUMNS, 0);
+            mCopies[i] = row;
+        }
+        return mCopies;
+    }
+
+}
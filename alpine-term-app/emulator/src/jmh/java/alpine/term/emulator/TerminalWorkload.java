@@ -0,0 +1,147 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/** Synthetic terminal output resembling what programs running in the VM produce. */
+public enum TerminalWorkload {
+
+    /** Kernel log or dmesg output: printable ASCII and line feeds only. */
+    ASCII_LOG {
+        @Override
+        void generate(Random random, StringBuilder out) {
+            String[] messages = {
+                "usb 1-1: new high-speed USB device number 2 using xhci_hcd",
+                "EXT4-fs (vda3): mounted filesystem with ordered data mode. Opts: (null)",
+                "virtio_net virtio0 eth0: renamed from veth0",
+                "random: crng init done",
+                "audit: type=1400 audit(1611412800.123:42): apparmor=\"STATUS\" operation=\"profile_load\"",
+            };
+            out.append(String.format("[%5d.%06d] ", random.nextInt(100000), random.nextInt(1000000)));
+            out.append(messages[random.nextInt(messages.length)]).append("\r\n");
+        }
+    },
+
+    /** Dense SGR output such as ls --color or htop, using 16, 256 and true colors. */
+    SGR_COLOR {
+        @Override
+        void generate(Random random, StringBuilder out) {
+            for (int i = 0; i < 6; i++) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        out.append("\033[0m\033[01;3").append(1 + random.nextInt(7)).append('m');
+                        break;
+                    case 1:
+                        out.append("\033[38;5;").append(random.nextInt(256)).append(";48;5;").append(random.nextInt(256)).append('m');
+                        break;
+                    default:
+                        out.append("\033[38;2;").append(random.nextInt(256)).append(';').append(random.nextInt(256))
+                            .append(';').append(random.nextInt(256)).append('m');
+                        break;
+                }
+                out.append("file").append(random.nextInt(1000)).append(".txt\033[0m  ");
+            }
+            out.append("\r\n");
+        }
+    },
+
+    /** UTF-8 text with wide CJK characters, emoji outside the BMP and combining characters. */
+    UTF8_CJK_EMOJI {
+        @Override
+        void generate(Random random, StringBuilder out) {
+            for (int i = 0; i < 30; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        out.appendCodePoint(0x4E00 + random.nextInt(0x5000));
+                        break;
+                    case 1:
+                        out.appendCodePoint(0xAC00 + random.nextInt(0x2B00));
+                        break;
+                    case 2:
+                        out.appendCodePoint(0x1F600 + random.nextInt(0x50));
+                        break;
+                    default:
+                        out.append('e').appendCodePoint(0x0301);
+                        break;
+                }
+            }
+            out.append("\r\n");
+        }
+    },
+
+    /** Full-screen redraws with absolute cursor addressing, like vim or tmux. */
+    CURSOR_REDRAW {
+        @Override
+        void generate(Random random, StringBuilder out) {
+            out.append("\033[?25l\033[H\033[2J");
+            for (int row = 1; row <= ROWS; row++) {
+                out.append("\033[").append(row).append(";1H");
+                if (row == ROWS) {
+                    out.append("\033[7m-- INSERT --\033[27m\033[K");
+                } else {
+                    out.append("\033[33m").append(String.format("%3d ", row)).append("\033[m");
+                    for (int col = 4; col < COLUMNS - 4; col += 8) {
+                        out.append(random.nextBoolean() ? "return  " : "value++;");
+                    }
+                    out.append("\033[K");
+                }
+            }
+            out.append("\033[").append(1 + random.nextInt(ROWS)).append(';').append(1 + random.nextInt(COLUMNS)).append("H\033[?25h");
+        }
+    },
+
+    /** Long scroll floods of short lines, like yes or seq. */
+    SCROLL_FLOOD {
+        @Override
+        void generate(Random random, StringBuilder out) {
+            out.append(random.nextInt(1000000)).append("\r\ny\r\ny\r\n");
+        }
+    };
+
+    static final int COLUMNS = 80;
+    static final int ROWS = 24;
+    static final int TRANSCRIPT_ROWS = 5000;
+
+    /** Append one unit of output, such as a line or a screen, to the builder. */
+    abstract void generate(Random random, StringBuilder out);
+
+    /** Generate exactly {@code size} bytes of output, padded with spaces after the last complete unit. */
+    byte[] generate(int size) {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        StringBuilder unit = new StringBuilder();
+        while (true) {
+            unit.setLength(0);
+            generate(random, unit);
+            byte[] bytes = unit.toString().getBytes(StandardCharsets.UTF_8);
+            if (out.size() + bytes.length > size) break;
+            out.write(bytes, 0, bytes.length);
+        }
+        while (out.size() < size) out.write(' ');
+        return out.toByteArray();
+    }
+
+}
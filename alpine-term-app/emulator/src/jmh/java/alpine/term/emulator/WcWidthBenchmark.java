@@ -0,0 +1,86 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/** Compares the {@link WcWidth} lookup table with searching the interval tables. One operation is one lookup. */
+@State(Scope.Thread)
+public class WcWidthBenchmark {
+
+    static final int CODE_POINTS = 4096;
+
+    public enum CodePoints {
+        ASCII(0x20, 0x7F),
+        LATIN_AND_COMBINING(0xA0, 0x370),
+        CJK(0x3000, 0xA000),
+        EMOJI(0x1F300, 0x1FA00),
+        ALL(0, Character.MAX_CODE_POINT + 1);
+
+        final int mFirst, mEnd;
+
+        CodePoints(int first, int end) {
+            mFirst = first;
+            mEnd = end;
+        }
+    }
+
+    @Param
+    CodePoints codePoints;
+
+    private int[] mCodePoints;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mCodePoints = new int[CODE_POINTS];
+        for (int i = 0; i < CODE_POINTS; i++)
+            mCodePoints[i] = codePoints.mFirst + random.nextInt(codePoints.mEnd - codePoints.mFirst);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CODE_POINTS)
+    public int lookupTable() {
+        int sum = 0;
+        for (int codePoint : mCodePoints)
+            sum += WcWidth.width(codePoint);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CODE_POINTS)
+    public int tableSearch() {
+        int sum = 0;
+        for (int codePoint : mCodePoints)
+            sum += WcWidth.searchWidth(codePoint);
+        return sum;
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p>
+ * The producer is the only thread advancing {@link #mTail} and the consumer the only one advancing {@link #mHead}, so
+ * no lock is needed. A thread which has to wait for the other side parks until it is unparked by it or by
+ * {@link #close()}.
+ */
+final class ByteQueue {
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    /** The total number of bytes read. */
+    private final PaddedCounter mHead = new PaddedCounter();
+    /** The total number of bytes written. */
+    private final PaddedCounter mTail = new PaddedCounter();
+    private volatile boolean mOpen = true;
+    private volatile Thread mWaitingReader;
+    private volatile Thread mWaitingWriter;
+
+    /** Create a queue holding at least the specified number of bytes, rounded up to a power of two. */
+    public ByteQueue(int size) {
+        int capacity = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public void close() {
+        mOpen = false;
+        LockSupport.unpark(mWaitingReader);
+        LockSupport.unpark(mWaitingWriter);
+    }
+
+    /**
+     * Read as many bytes as are available and fit into the provided buffer.
+     * <p/>
+     * Returns the number of bytes read, 0 if none were available and not blocking, or -1 if the queue was closed.
+     */
+    public int read(byte[] buffer, boolean block) {
+        final long head = mHead.mValue;
+        long tail;
+        while ((tail = mTail.mValue) == head && mOpen) {
+            if (!block) return 0;
+            mWaitingReader = Thread.currentThread();
+            if (mTail.mValue == head && mOpen) LockSupport.park(this);
+            mWaitingReader = null;
+            // Ignore interrupts, as the queue has always done.
+            Thread.interrupted();
+        }
+        if (!mOpen) return -1;
+        return take(buffer, head, tail);
+    }
+
+    /**
+     * Read bytes which were written before the queue was closed and which {@link #read(byte[], boolean)} therefore
+     * no longer returns.
+     * <p/>
+     * Returns the number of bytes read, 0 if there are none left.
+     */
+    public int readRemaining(byte[] buffer) {
+        return take(buffer, mHead.mValue, mTail.mValue);
+    }
+
+    private int take(byte[] buffer, long head, long tail) {
+        final int bytesToRead = (int) Math.min(tail - head, buffer.length);
+        final int start = (int) head & mMask;
+        final int firstRun = Math.min(bytesToRead, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, buffer, 0, firstRun);
+        System.arraycopy(mBuffer, 0, buffer, firstRun, bytesToRead - firstRun);
+        mHead.mValue = head + bytesToRead;
+
+        Thread writer = mWaitingWriter;
+        if (writer != null) LockSupport.unpark(writer);
+        return bytesToRead;
+    }
+
+    /**
+     * Attempt to write the specified portion of the provided buffer to the queue.
+     * <p/>
+     * Returns whether the output was totally written, false if it was closed before.
+     */
+    public boolean write(byte[] buffer, int offset, int lengthToWrite) {
+        if (lengthToWrite + offset > buffer.length) {
+            throw new IllegalArgumentException("length + offset > buffer.length");
+        } else if (lengthToWrite <= 0) {
+            throw new IllegalArgumentException("length <= 0");
+        }
+
+        final int capacity = mBuffer.length;
+        long tail = mTail.mValue;
+        while (lengthToWrite > 0) {
+            long head;
+            while ((head = mHead.mValue) + capacity == tail && mOpen) {
+                mWaitingWriter = Thread.currentThread();
+                if (mHead.mValue + capacity == tail && mOpen) LockSupport.park(this);
+                mWaitingWriter = null;
+                Thread.interrupted();
+            }
+            if (!mOpen) return false;
+
+            final int bytesToWrite = (int) Math.min(lengthToWrite, head + capacity - tail);
+            final int start = (int) tail & mMask;
+            final int firstRun = Math.min(bytesToWrite, capacity - start);
+            System.arraycopy(buffer, offset, mBuffer, start, firstRun);
+            System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToWrite - firstRun);
+            offset += bytesToWrite;
+            lengthToWrite -= bytesToWrite;
+            tail += bytesToWrite;
+            mTail.mValue = tail;
+
+            Thread reader = mWaitingReader;
+            if (reader != null) LockSupport.unpark(reader);
+        }
+        return true;
+    }
+
+    /**
+     * Write the specified portion of the provided buffer to the queue if all of it fits, without waiting for the
+     * reader.
+     * <p/>
+     * Returns whether the bytes were written, false if there was not room for all of them or the queue was closed.
+     */
+    public boolean offer(byte[] buffer, int offset, int lengthToWrite) {
+        final int capacity = mBuffer.length;
+        final long tail = mTail.mValue;
+        if (!mOpen || mHead.mValue + capacity - tail < lengthToWrite) return false;
+
+        final int start = (int) tail & mMask;
+        final int firstRun = Math.min(lengthToWrite, capacity - start);
+        System.arraycopy(buffer, offset, mBuffer, start, firstRun);
+        System.arraycopy(buffer, offset + firstRun, mBuffer, 0, lengthToWrite - firstRun);
+        mTail.mValue = tail + lengthToWrite;
+
+        Thread reader = mWaitingReader;
+        if (reader != null) LockSupport.unpark(reader);
+        return true;
+    }
+
+    /**
+     * Like {@link #offer(byte[], int, int)}, but copying from a buffer, whose position is changed.
+     */
+    public boolean offer(ByteBuffer buffer, int offset, int lengthToWrite) {
+        final int capacity = mBuffer.length;
+        final long tail = mTail.mValue;
+        if (!mOpen || mHead.mValue + capacity - tail < lengthToWrite) return false;
+
+        final int start = (int) tail & mMask;
+        final int firstRun = Math.min(lengthToWrite, capacity - start);
+        ((Buffer) buffer).position(offset);
+        buffer.get(mBuffer, start, firstRun);
+        buffer.get(mBuffer, 0, lengthToWrite - firstRun);
+        mTail.mValue = tail + lengthToWrite;
+
+        Thread reader = mWaitingReader;
+        if (reader != null) LockSupport.unpark(reader);
+        return true;
+    }
+
+    /** A counter padded to keep it on a cache line of its own, so that the two threads do not contend on it. */
+    @SuppressWarnings("unused")
+    static final class PaddedCounter {
+        long mPadding1, mPadding2, mPadding3, mPadding4, mPadding5, mPadding6, mPadding7;
+        volatile long mValue;
+        long mPadding8, mPadding9, mPadding10, mPadding11, mPadding12, mPadding13, mPadding14;
+    }
+
+}
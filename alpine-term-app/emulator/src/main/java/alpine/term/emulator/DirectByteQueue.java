@@ -0,0 +1,157 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A circular buffer in direct memory allowing one producer and one consumer thread, which fill and drain it in place:
+ * the producer has bytes read into the free part of {@link #getBuffer()}, for instance by a native read(2), or copies
+ * them in with {@link #put(byte[], int, int)}, and the consumer processes the filled part through the views returned by
+ * {@link #peek(int)} or hands it to a native write(2). Neither side waits, unlike with {@link ByteQueue}, so the
+ * producer has to be told when the consumer has made room, see {@link #setOnRead(Runnable)}.
+ * <p>
+ * Buffer positions are changed through {@link Buffer}, as the covariant {@link ByteBuffer} overrides are missing on
+ * older Android releases.
+ */
+final class DirectByteQueue {
+
+    private final ByteBuffer mProducerBuffer;
+    private final ByteBuffer mConsumerBuffer;
+    private final int mMask;
+    /** The total number of bytes read. */
+    private final ByteQueue.PaddedCounter mHead = new ByteQueue.PaddedCounter();
+    /** The total number of bytes written. */
+    private final ByteQueue.PaddedCounter mTail = new ByteQueue.PaddedCounter();
+    private volatile boolean mOpen = true;
+    /** Run by the consumer after consuming bytes, see {@link #setOnRead(Runnable)}. */
+    private Runnable mOnRead;
+
+    /** Create a queue holding at least the specified number of bytes, rounded up to a power of two. */
+    public DirectByteQueue(int size) {
+        int capacity = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        mProducerBuffer = ByteBuffer.allocateDirect(capacity);
+        mConsumerBuffer = mProducerBuffer.duplicate();
+        mMask = capacity - 1;
+    }
+
+    /** Set a callback run on the consumer thread each time bytes have been consumed, freeing room for the producer. */
+    public void setOnRead(Runnable onRead) {
+        mOnRead = onRead;
+    }
+
+    public void close() {
+        mOpen = false;
+    }
+
+    /** The whole buffer, for the producer to fill at {@link #getWriteOffset()}. Only the producer may change its position. */
+    public ByteBuffer getBuffer() {
+        return mProducerBuffer;
+    }
+
+    /** The offset in {@link #getBuffer()} at which the producer writes next. */
+    public int getWriteOffset() {
+        return (int) mTail.mValue & mMask;
+    }
+
+    /** The number of bytes the producer can write at {@link #getWriteOffset()} before reaching the consumer or wrapping. */
+    public int getWritableLength() {
+        final int capacity = mProducerBuffer.capacity();
+        final long tail = mTail.mValue;
+        return (int) Math.min(mHead.mValue + capacity - tail, capacity - (tail & mMask));
+    }
+
+    /** The number of bytes which can be written before the consumer makes room. Only exact when called by the producer. */
+    public int getFreeSpace() {
+        return (int) (mHead.mValue + mProducerBuffer.capacity() - mTail.mValue);
+    }
+
+    /**
+     * Hand the specified number of bytes written at {@link #getWriteOffset()} to the consumer.
+     * <p/>
+     * Returns false if the queue was closed, in which case the bytes are dropped.
+     */
+    public boolean commitWrite(int length) {
+        if (length < 0 || length > getWritableLength()) throw new IllegalArgumentException("length: " + length);
+        if (!mOpen) return false;
+        mTail.mValue += length;
+        return true;
+    }
+
+    /**
+     * Copy as many of the specified bytes as fit without waiting for the consumer.
+     * <p/>
+     * Returns the number of bytes copied, 0 if the queue is full or was closed.
+     */
+    public int put(byte[] buffer, int offset, int length) {
+        if (!mOpen) return 0;
+        final int capacity = mProducerBuffer.capacity();
+        final long tail = mTail.mValue;
+        final int bytesToWrite = (int) Math.min(length, mHead.mValue + capacity - tail);
+        final int start = (int) tail & mMask;
+        final int firstRun = Math.min(bytesToWrite, capacity - start);
+        ((Buffer) mProducerBuffer).position(start);
+        mProducerBuffer.put(buffer, offset, firstRun);
+        ((Buffer) mProducerBuffer).position(0);
+        mProducerBuffer.put(buffer, offset + firstRun, bytesToWrite - firstRun);
+        mTail.mValue = tail + bytesToWrite;
+        return bytesToWrite;
+    }
+
+    /** The offset in the buffer of the next byte to consume. */
+    public int getReadOffset() {
+        return (int) mHead.mValue & mMask;
+    }
+
+    /** The number of bytes to consume, which wrap around the end of the buffer if they do not fit before it. */
+    public int getReadableLength() {
+        return (int) (mTail.mValue - mHead.mValue);
+    }
+
+    /**
+     * A view of the next bytes to consume, from its position to its limit, or null if there are none or the queue was
+     * closed. The view is reused by the next call and stays valid until {@link #consume(int)}.
+     *
+     * @param maxLength the most bytes to return, fewer are returned when the available bytes wrap around.
+     */
+    public ByteBuffer peek(int maxLength) {
+        final long head = mHead.mValue;
+        final long available = mTail.mValue - head;
+        if (available == 0 || !mOpen) return null;
+
+        final int start = (int) head & mMask;
+        final int length = (int) Math.min(Math.min(available, maxLength), mConsumerBuffer.capacity() - start);
+        final Buffer view = mConsumerBuffer;
+        view.limit(start + length);
+        view.position(start);
+        return mConsumerBuffer;
+    }
+
+    /** Free the specified number of bytes, from the start of the view last returned by {@link #peek(int)}. */
+    public void consume(int length) {
+        mHead.mValue += length;
+        if (length > 0 && mOnRead != null) mOnRead.run();
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+/**
+ * Where the emulator reports problems. The emulator has no dependency on Android, so the app installs a
+ * {@link Logger} which writes to the Android log; until then messages go to standard error.
+ */
+public final class EmulatorDebug {
+
+    /** The tag which the app logs emulator messages with. */
+    public static final String LOG_TAG = "alpine-term:emulator";
+
+    /** Receives the messages of the emulator. */
+    public interface Logger {
+        void warning(String message, Throwable error);
+
+        void error(String message, Throwable error);
+    }
+
+    private static final Logger STANDARD_ERROR_LOGGER = new Logger() {
+        @Override
+        public void warning(String message, Throwable error) {
+            print("W", message, error);
+        }
+
+        @Override
+        public void error(String message, Throwable error) {
+            print("E", message, error);
+        }
+
+        private void print(String level, String message, Throwable error) {
+            System.err.println(level + "/" + LOG_TAG + ": " + message);
+            if (error != null) error.printStackTrace();
+        }
+    };
+
+    private static volatile Logger sLogger = STANDARD_ERROR_LOGGER;
+
+    private EmulatorDebug() {
+    }
+
+    /** Set where messages go, or discard them if null. */
+    public static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
+
+    static void logWarning(String message) {
+        logWarning(message, null);
+    }
+
+    static void logWarning(String message, Throwable error) {
+        Logger logger = sLogger;
+        if (logger != null) logger.warning(message, error);
+    }
+
+    static void logError(String message) {
+        logError(message, null);
+    }
+
+    static void logError(String message, Throwable error) {
+        Logger logger = sLogger;
+        if (logger != null) logger.error(message, error);
+    }
+
+}
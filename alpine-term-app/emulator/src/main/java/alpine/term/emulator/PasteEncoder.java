@@ -0,0 +1,112 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+/**
+ * Turns pasted text into the UTF-8 bytes sent to the process, a part at a time, so that a huge paste can be encoded
+ * while its start is already being written.
+ * <p>
+ * The escape character and C1 control characters are removed, so that pasted text cannot end a bracketed paste or
+ * otherwise pass for typed keys, and newlines with or without a preceding carriage return are sent as carriage
+ * returns, as the enter key is.
+ */
+final class PasteEncoder {
+
+    static final String BRACKETED_PASTE_START = "\033[200~";
+    static final String BRACKETED_PASTE_END = "\033[201~";
+
+    private final CharSequence mText;
+    private int mPosition;
+    /** Whether the last character sent was a carriage return of the text, which absorbs a newline following it. */
+    private boolean mAfterCarriageReturn;
+
+    PasteEncoder(CharSequence text) {
+        mText = text;
+    }
+
+    /** The number of characters of the text encoded so far. */
+    int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Encode the next part of the text into the buffer, which must have room for at least four bytes.
+     *
+     * @return the number of bytes stored, which is 0 only once all of the text has been encoded.
+     */
+    int encode(byte[] buffer) {
+        final CharSequence text = mText;
+        final int length = text.length();
+        // Stop while a code point of up to four bytes is sure to fit.
+        final int limit = buffer.length - 4;
+        int count = 0;
+        int next;
+        while (mPosition < length && count <= limit) {
+            final char c = text.charAt(mPosition++);
+            if (c == '\n') {
+                if (mAfterCarriageReturn) {
+                    mAfterCarriageReturn = false;
+                } else {
+                    buffer[count++] = '\r';
+                }
+                continue;
+            } else if (isRemoved(c)) {
+                continue;
+            }
+
+            mAfterCarriageReturn = c == '\r';
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0b11000000 | (c >> 6));
+                buffer[count++] = (byte) (0b10000000 | (c & 0b111111));
+            } else if (Character.isHighSurrogate(c) && (next = skipRemoved(mPosition)) < length && Character.isLowSurrogate(text.charAt(next))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(next));
+                mPosition = next + 1;
+                buffer[count++] = (byte) (0b11110000 | (codePoint >> 18));
+                buffer[count++] = (byte) (0b10000000 | ((codePoint >> 12) & 0b111111));
+                buffer[count++] = (byte) (0b10000000 | ((codePoint >> 6) & 0b111111));
+                buffer[count++] = (byte) (0b10000000 | (codePoint & 0b111111));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate, replaced as String.getBytes() does.
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0b11100000 | (c >> 12));
+                buffer[count++] = (byte) (0b10000000 | ((c >> 6) & 0b111111));
+                buffer[count++] = (byte) (0b10000000 | (c & 0b111111));
+            }
+        }
+        return count;
+    }
+
+    /** The index of the first character from an index on which is not removed, as a surrogate pair may close over those. */
+    private int skipRemoved(int index) {
+        while (index < mText.length() && isRemoved(mText.charAt(index))) index++;
+        return index;
+    }
+
+    private static boolean isRemoved(char c) {
+        return c == 27 || (c >= 0x80 && c <= 0x9F);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background tasks of sessions, such as writing their logs and recordings or encoding a paste, each of which
+ * may block and run for as long as its session.
+ * <p>
+ * Sessions use {@link #DEDICATED_THREADS} unless created with another scheduler, so that the thread count can be
+ * traded for latency when many sessions run at once, for example on a plain JVM.
+ */
+public interface SessionIoScheduler {
+
+    /** Start a task, named for debugging, which runs until it returns by itself. */
+    void start(String name, Runnable task);
+
+    /** Runs every task on a new thread of its own. */
+    SessionIoScheduler DEDICATED_THREADS = (name, task) -> new Thread(task, name).start();
+
+    /**
+     * Runs tasks on a fixed number of shared threads. A task occupies its thread until it returns, so tasks beyond that
+     * number wait for an earlier one to finish, which makes a session's log drop output and its recording stop if the
+     * wait is long.
+     */
+    final class SharedPool implements SessionIoScheduler {
+
+        private final ThreadPoolExecutor mExecutor;
+
+        public SharedPool(int threads) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "SessionIo-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void start(String name, Runnable task) {
+            mExecutor.execute(task);
+        }
+
+        /** The number of tasks waiting for a thread. */
+        public int getWaitingTasks() {
+            return mExecutor.getQueue().size();
+        }
+
+        /** Stop taking tasks, leaving the started ones to finish. */
+        public void shutdown() {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Runs every task on a virtual thread of its own, which is cheap enough for hundreds of sessions. Only available on
+     * JVMs with virtual threads, so not on Android.
+     */
+    final class VirtualThreads implements SessionIoScheduler {
+
+        private final Object mBuilder;
+        private final Method mName;
+        private final Method mStart;
+
+        /** @throws UnsupportedOperationException if the JVM does not have virtual threads. */
+        public VirtualThreads() {
+            // Through reflection, as the module is compiled for Java 8.
+            try {
+                mBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                mName = builderClass.getMethod("name", String.class);
+                mStart = builderClass.getMethod("start", Runnable.class);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("virtual threads are not available", e);
+            }
+        }
+
+        @Override
+        public void start(String name, Runnable task) {
+            try {
+                // Builders are not thread safe, so name and start under a lock.
+                synchronized (mBuilder) {
+                    mStart.invoke(mName.invoke(mBuilder, name), task);
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot start virtual thread " + name, e);
+            }
+        }
+    }
+
+}
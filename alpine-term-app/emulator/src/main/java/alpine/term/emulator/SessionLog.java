@@ -0,0 +1,282 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A copy of the output of a session's process, written to files by a task of its own.
+ * <p>
+ * The thread reading from the pty hands bytes over through {@link #offer(ByteBuffer, int, int)}, which never waits: when
+ * the writer falls behind, output which does not fit into the queue is dropped and counted, and a note of how much
+ * was dropped is written to the log near where it is missing. The writer collects output into a large buffer, so that
+ * even output trickling in is written to the file in few, big writes.
+ * <p>
+ * A file is rotated when it reaches a size limit: it is closed, and the oldest rotated files beyond a count are deleted.
+ * The files are named after a prefix followed by a sequence number. Rotated files are optionally compressed by another
+ * task, so that the writer goes on emptying the queue meanwhile.
+ */
+final class SessionLog {
+
+    /** The size of the queue between the pty reader and the writer, which is how far the writer may fall behind. */
+    private static final int QUEUE_SIZE = 1024 * 1024;
+
+    /** The size of the writes to the log file. */
+    static final int BATCH_SIZE = 256 * 1024;
+
+    /** How long output may wait for more to fill its batch before it is written anyway. */
+    private static final long BATCH_DELAY_MILLIS = 500;
+
+    /** How often the queue is checked for more output while a batch waits, short enough for the queue not to fill. */
+    private static final long BATCH_POLL_MILLIS = 10;
+
+    private final File mDirectory;
+    private final String mPrefix;
+    private final long mMaxFileBytes;
+    private final int mMaxFiles;
+    private final boolean mCompress;
+    private final SessionIoScheduler mScheduler;
+
+    private final ByteQueue mQueue = new ByteQueue(QUEUE_SIZE);
+    /** The number of bytes not logged since the queue was full, only changed by the producer thread. */
+    private volatile long mDroppedBytes;
+
+    // The fields below are only used by the writer thread.
+    private final ByteBuffer mBatch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    /** When the first byte of the current batch was added, in {@link System#nanoTime()} milliseconds. */
+    private long mBatchStartTime;
+    /** The value of {@link #mDroppedBytes} when a note about it was last written. */
+    private long mDroppedBytesNoted;
+    private int mFileNumber;
+    private File mFile;
+    private FileChannel mChannel;
+    private long mFileBytes;
+
+    // The fields below are shared by the writer and the compressing task, and guarded by mRotatedFiles.
+    /** The rotated files kept, oldest first, which are replaced by their compressed versions once done. */
+    private final ArrayList<File> mRotatedFiles = new ArrayList<>();
+    private final ArrayDeque<File> mFilesToCompress = new ArrayDeque<>();
+    /** Whether a task compressing {@link #mFilesToCompress} has been started and has not yet returned. */
+    private boolean mCompressing;
+
+    /**
+     * @param scheduler    what runs the writer.
+     * @param directory    where to place the log files, which is created if needed.
+     * @param prefix       the start of the names of the log files.
+     * @param maxFileBytes the size at which a file is rotated.
+     * @param maxFiles     the number of files kept, including the one being written.
+     * @param compress     whether rotated files are compressed with gzip.
+     */
+    SessionLog(SessionIoScheduler scheduler, File directory, String prefix, long maxFileBytes, int maxFiles, boolean compress) {
+        mDirectory = directory;
+        mPrefix = prefix;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFiles = Math.max(1, maxFiles);
+        mCompress = compress;
+        mScheduler = scheduler;
+
+        scheduler.start("SessionLogWriter[" + prefix + "]", this::writeLoop);
+    }
+
+    /**
+     * Queue output to be logged. Called by the single thread reading from the pty, which is never blocked: if the
+     * output does not fit into the queue it is dropped.
+     */
+    void offer(ByteBuffer buffer, int offset, int length) {
+        if (!mQueue.offer(buffer, offset, length)) mDroppedBytes += length;
+    }
+
+    /** The number of bytes of output which have not been logged because the writer fell behind or failed. */
+    long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /** Stop logging after the output queued so far has been written. */
+    void close() {
+        mQueue.close();
+    }
+
+    private void writeLoop() {
+        final byte[] chunk = new byte[64 * 1024];
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) throw new IOException("cannot create " + mDirectory);
+            openFile();
+
+            int read;
+            while ((read = mQueue.read(chunk, mBatch.position() == 0)) != -1) {
+                if (read > 0) {
+                    append(chunk, read);
+                } else {
+                    // The queue is empty with a batch started, which is written when it has waited long enough:
+                    long delay = mBatchStartTime + BATCH_DELAY_MILLIS - System.nanoTime() / 1000000;
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(Math.min(delay, BATCH_POLL_MILLIS));
+                        } catch (InterruptedException e) {
+                            // Ignore, as the queue does.
+                        }
+                    } else {
+                        flush();
+                    }
+                }
+            }
+            while ((read = mQueue.readRemaining(chunk)) > 0) append(chunk, read);
+            noteDroppedBytes();
+            flush();
+        } catch (IOException e) {
+            EmulatorDebug.logWarning("session log " + mPrefix + " failed", e);
+            // Make the producer count whatever it offers from now on as dropped:
+            mQueue.close();
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void append(byte[] chunk, int length) throws IOException {
+        noteDroppedBytes();
+        put(chunk, 0, length);
+    }
+
+    private void noteDroppedBytes() throws IOException {
+        long dropped = mDroppedBytes;
+        if (dropped == mDroppedBytesNoted) return;
+        byte[] note = ("\r\n[" + (dropped - mDroppedBytesNoted) + " bytes not logged]\r\n").getBytes(StandardCharsets.UTF_8);
+        mDroppedBytesNoted = dropped;
+        put(note, 0, note.length);
+    }
+
+    private void put(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mBatch.position() == 0) mBatchStartTime = System.nanoTime() / 1000000;
+            int n = Math.min(length, mBatch.remaining());
+            mBatch.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            if (!mBatch.hasRemaining()) flush();
+        }
+    }
+
+    /** Write the current batch to the log file, rotating it first if the batch would take it over the limit. */
+    private void flush() throws IOException {
+        if (mBatch.position() == 0) return;
+        mBatch.flip();
+        if (mFileBytes > 0 && mFileBytes + mBatch.remaining() > mMaxFileBytes) rotate();
+        mFileBytes += mBatch.remaining();
+        while (mBatch.hasRemaining()) mChannel.write(mBatch);
+        mBatch.clear();
+    }
+
+    private void openFile() throws IOException {
+        mFile = new File(mDirectory, mPrefix + "-" + mFileNumber++ + ".log");
+        mChannel = new FileOutputStream(mFile).getChannel();
+        mFileBytes = 0;
+    }
+
+    private void closeFile() {
+        if (mChannel == null) return;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        mChannel = null;
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        synchronized (mRotatedFiles) {
+            mRotatedFiles.add(mFile);
+            while (mRotatedFiles.size() >= mMaxFiles) {
+                File oldest = mRotatedFiles.remove(0);
+                if (!oldest.delete()) EmulatorDebug.logWarning("failed to delete " + oldest);
+            }
+            if (mCompress && mRotatedFiles.contains(mFile)) {
+                mFilesToCompress.addLast(mFile);
+                if (!mCompressing) {
+                    mCompressing = true;
+                    mScheduler.start("SessionLogCompressor[" + mPrefix + "]", this::compressLoop);
+                }
+            }
+        }
+        openFile();
+    }
+
+    /** Compress the rotated files queued by the writer until there are none left. */
+    private void compressLoop() {
+        while (true) {
+            final File file;
+            synchronized (mRotatedFiles) {
+                file = mFilesToCompress.pollFirst();
+                if (file == null) {
+                    mCompressing = false;
+                    return;
+                }
+                // Skip files deleted as the oldest while waiting:
+                if (!mRotatedFiles.contains(file)) continue;
+            }
+
+            final File compressed = new File(file.getPath() + ".gz");
+            try {
+                compress(file, compressed);
+            } catch (IOException e) {
+                // Keep the file uncompressed.
+                EmulatorDebug.logWarning("failed to compress " + file, e);
+                //noinspection ResultOfMethodCallIgnored
+                compressed.delete();
+                continue;
+            }
+
+            synchronized (mRotatedFiles) {
+                final int index = mRotatedFiles.indexOf(file);
+                if (index >= 0) {
+                    mRotatedFiles.set(index, compressed);
+                    if (!file.delete()) EmulatorDebug.logWarning("failed to delete " + file);
+                } else if (!compressed.delete()) {
+                    // The file was deleted as the oldest while being compressed.
+                    EmulatorDebug.logWarning("failed to delete " + compressed);
+                }
+            }
+        }
+    }
+
+    private static void compress(File source, File destination) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(destination), buffer.length)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+    }
+
+}
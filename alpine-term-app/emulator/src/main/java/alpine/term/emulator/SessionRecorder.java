@@ -0,0 +1,144 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Records what a session feeds its {@link TerminalEmulator} in the format of {@link TerminalRecording}.
+ * <p>
+ * Events are recorded on the main thread in the order the emulator sees them, and written to the file by a task of its
+ * own. A recording must be complete to be replayed faithfully, so if the writer falls so far behind that an event does
+ * not fit into the queue, recording stops there instead of leaving a gap.
+ */
+final class SessionRecorder {
+
+    /** The size of the queue between the main thread and the writer. */
+    private static final int QUEUE_SIZE = 4 * 1024 * 1024;
+
+    private final File mFile;
+    private final ByteQueue mQueue = new ByteQueue(QUEUE_SIZE);
+    /** Used to encode an event before it is queued. */
+    private byte[] mEvent = new byte[4096 + 32];
+    private final long mStartTime = System.nanoTime();
+    private long mLastEventMillis;
+    private boolean mStopped;
+
+    SessionRecorder(SessionIoScheduler scheduler, File file, int columns, int rows, int transcriptRows) {
+        mFile = file;
+        byte[] header = mEvent;
+        System.arraycopy(TerminalRecording.MAGIC, 0, header, 0, TerminalRecording.MAGIC.length);
+        int length = TerminalRecording.MAGIC.length;
+        length = TerminalRecording.putVarInt(header, length, columns);
+        length = TerminalRecording.putVarInt(header, length, rows);
+        length = TerminalRecording.putVarInt(header, length, transcriptRows);
+        queue(length);
+
+        scheduler.start("SessionRecorder[" + file.getName() + "]", this::writeLoop);
+    }
+
+    void recordOutput(byte[] data, int length) {
+        if (mStopped) return;
+        if (mEvent.length < length + 32) mEvent = new byte[length + 32];
+        int offset = putTime();
+        offset = TerminalRecording.putVarInt(mEvent, offset, ((long) length << 1) | TerminalRecording.EVENT_OUTPUT);
+        System.arraycopy(data, 0, mEvent, offset, length);
+        queue(offset + length);
+    }
+
+    /** Record the bytes from the position to the limit of a buffer, leaving its position unchanged. */
+    void recordOutput(ByteBuffer data) {
+        if (mStopped) return;
+        final int length = data.remaining();
+        if (mEvent.length < length + 32) mEvent = new byte[length + 32];
+        int offset = putTime();
+        offset = TerminalRecording.putVarInt(mEvent, offset, ((long) length << 1) | TerminalRecording.EVENT_OUTPUT);
+        final int position = data.position();
+        data.get(mEvent, offset, length);
+        ((Buffer) data).position(position);
+        queue(offset + length);
+    }
+
+    void recordResize(int columns, int rows) {
+        if (mStopped) return;
+        int offset = putTime();
+        offset = TerminalRecording.putVarInt(mEvent, offset, TerminalRecording.EVENT_RESIZE);
+        offset = TerminalRecording.putVarInt(mEvent, offset, columns);
+        offset = TerminalRecording.putVarInt(mEvent, offset, rows);
+        queue(offset);
+    }
+
+    /** Stop recording after the events recorded so far have been written. */
+    void close() {
+        mStopped = true;
+        mQueue.close();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    private int putTime() {
+        long now = (System.nanoTime() - mStartTime) / 1000000;
+        int offset = TerminalRecording.putVarInt(mEvent, 0, now - mLastEventMillis);
+        mLastEventMillis = now;
+        return offset;
+    }
+
+    private void queue(int length) {
+        if (!mQueue.offer(mEvent, 0, length)) {
+            EmulatorDebug.logWarning("recording to " + mFile + " stopped, as it could not be written fast enough");
+            close();
+        }
+    }
+
+    private void writeLoop() {
+        final byte[] chunk = new byte[64 * 1024];
+        File directory = mFile.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            EmulatorDebug.logWarning("failed to create " + directory);
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile), chunk.length)) {
+            int read;
+            while ((read = mQueue.read(chunk, false)) != -1) {
+                if (read == 0) {
+                    // Caught up, so make what was recorded so far visible before waiting for more:
+                    out.flush();
+                    if ((read = mQueue.read(chunk, true)) == -1) break;
+                }
+                out.write(chunk, 0, read);
+            }
+            while ((read = mQueue.readRemaining(chunk)) > 0) out.write(chunk, 0, read);
+        } catch (IOException e) {
+            EmulatorDebug.logWarning("failed to write recording " + mFile, e);
+            mQueue.close();
+        }
+    }
+
+}
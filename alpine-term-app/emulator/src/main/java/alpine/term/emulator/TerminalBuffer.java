@@ -0,0 +1,737 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * The {@link TerminalRow}:s visible on a logical screen, together with the scroll history.
+ * <p>
+ * Rows are addressed in an external coordinate system going from -{@link #getActiveTranscriptRows()} to
+ * mScreenRows-1, with the screen being 0..mScreenRows-1. Only the screen rows are kept as {@link TerminalRow} objects,
+ * while rows which have scrolled off the top of the screen are encoded in a {@link TranscriptStore} and decoded on
+ * demand. Rows beyond the size of the transcript may be kept on disk in a {@link TranscriptSpill}.
+ */
+public final class TerminalBuffer {
+
+    /** The rows of the screen. */
+    TerminalRow[] mLines;
+    /** The number of rows of the screen and transcript together. */
+    int mTotalRows;
+    /** The number of rows and columns visible on the screen. */
+    int mScreenRows, mColumns;
+    /** The rows kept in history. */
+    private TranscriptStore mTranscript;
+    /** Transcript rows recently decoded for display, by line number, so that they keep their identity while shown. */
+    private final Map<Long, TerminalRow> mDecodedRows = new LinkedHashMap<Long, TerminalRow>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, TerminalRow> eldest) {
+            return size() > 2 * mScreenRows;
+        }
+    };
+    /** The URLs in the transcript, found as rows are added to it. */
+    private final UrlIndex mUrlIndex = new UrlIndex();
+    /** See {@link #getReflowCount()}. */
+    private int mReflowCount;
+    /** A row for decoding transcript rows which are only needed briefly, such as when extracting text. */
+    private TerminalRow mScratchRow;
+    /** Bitmap of the screen rows which have changed since the last {@link #clearDamage()}, one bit per row. */
+    private long[] mDamagedRows;
+    /** The number of rows the whole screen has scrolled up since the last {@link #clearDamage()}. */
+    private int mDamageScrollShift;
+
+    /**
+     * Create a transcript screen.
+     *
+     * @param columns    the width of the screen in characters.
+     * @param totalRows  the height of the entire text area, in rows of text.
+     * @param screenRows the height of just the screen, not including the transcript that holds lines that have scrolled off
+     *                   the top of the screen.
+     */
+    public TerminalBuffer(int columns, int totalRows, int screenRows) {
+        mColumns = columns;
+        mTotalRows = totalRows;
+        mScreenRows = screenRows;
+        mLines = new TerminalRow[screenRows];
+        for (int i = 0; i < screenRows; i++)
+            mLines[i] = new TerminalRow(columns, 0);
+        mTranscript = new TranscriptStore(columns, Math.max(0, totalRows - screenRows));
+        mDamagedRows = new long[(screenRows + 63) >>> 6];
+
+        blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
+    }
+
+    /**
+     * Copy this buffer so that its text can be read on another thread while this one keeps changing. Only the screen
+     * rows and the index of the transcript rows are copied: the transcript records and spilled rows are shared.
+     */
+    public TerminalBuffer snapshot() {
+        return snapshot(Long.MIN_VALUE);
+    }
+
+    /**
+     * Like {@link #snapshot()}, but leaving out the transcript rows before the specified line number, so that only new
+     * rows need to be copied. Rows keep their line numbers in the copy.
+     */
+    public TerminalBuffer snapshot(long fromLineNumber) {
+        return new TerminalBuffer(this, fromLineNumber);
+    }
+
+    private TerminalBuffer(TerminalBuffer source, long fromLineNumber) {
+        mColumns = source.mColumns;
+        mTotalRows = source.mTotalRows;
+        mScreenRows = source.mScreenRows;
+        mLines = new TerminalRow[mScreenRows];
+        for (int i = 0; i < mScreenRows; i++) {
+            mLines[i] = new TerminalRow(mColumns, 0);
+            mLines[i].copyFrom(source.mLines[i]);
+        }
+        final long firstLineNumber = source.mTranscript.getFirstLineNumber();
+        final int fromIndex = (fromLineNumber <= firstLineNumber) ? 0
+            : (int) Math.min(fromLineNumber - firstLineNumber, source.mTranscript.size());
+        mTranscript = source.mTranscript.snapshot(fromIndex);
+        mReflowCount = source.mReflowCount;
+        mDamagedRows = new long[(mScreenRows + 63) >>> 6];
+    }
+
+    public String getTranscriptText() {
+        return getTranscriptText(true);
+    }
+
+    public String getTranscriptTextWithoutJoinedLines() {
+        return getTranscriptText(false);
+    }
+
+    private String getTranscriptText(boolean joinBackLines) {
+        final StringBuilder builder = new StringBuilder();
+        try {
+            writeTranscriptText(builder, joinBackLines);
+        } catch (IOException e) {
+            // Not thrown by a StringBuilder.
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write the text of the transcript and screen one row at a time, giving the same text as
+     * {@link #getTranscriptText()} without holding all of it in memory. Leading and trailing whitespace is left out.
+     */
+    public void writeTranscriptText(Appendable out, boolean joinBackLines) throws IOException {
+        final StringBuilder line = new StringBuilder(mColumns + 1);
+        // Whitespace after the last printing character so far, which is only written if more text follows:
+        final StringBuilder pendingWhitespace = new StringBuilder();
+        boolean started = false;
+        for (int row = -getActiveTranscriptRows(); row < mScreenRows; row++) {
+            line.setLength(0);
+            final boolean lineWrap = appendRowText(line, row, 0, mColumns);
+            if ((!joinBackLines || !lineWrap) && row < mScreenRows - 1) line.append('\n');
+
+            int first = 0;
+            int last = line.length() - 1;
+            while (last >= 0 && line.charAt(last) <= ' ')
+                last--;
+            if (last < 0) {
+                if (started) pendingWhitespace.append(line);
+                continue;
+            }
+            if (started) {
+                out.append(pendingWhitespace);
+            } else {
+                while (line.charAt(first) <= ' ')
+                    first++;
+                started = true;
+            }
+            out.append(line, first, last + 1);
+            pendingWhitespace.setLength(0);
+            pendingWhitespace.append(line, last + 1, line.length());
+        }
+    }
+
+    public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
+        return getSelectedText(selX1, selY1, selX2, selY2, true);
+    }
+
+    public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines) {
+        final StringBuilder builder = new StringBuilder();
+        final int columns = mColumns;
+
+        if (selY1 < -getActiveTranscriptRows()) selY1 = -getActiveTranscriptRows();
+        if (selY2 >= mScreenRows) selY2 = mScreenRows - 1;
+
+        for (int row = selY1; row <= selY2; row++) {
+            int x1 = (row == selY1) ? selX1 : 0;
+            int x2;
+            if (row == selY2) {
+                x2 = selX2 + 1;
+                if (x2 > columns) x2 = columns;
+            } else {
+                x2 = columns;
+            }
+            boolean rowLineWrap = appendRowText(builder, row, x1, x2);
+            if ((!joinBackLines || !rowLineWrap)
+                && row < selY2 && row < mScreenRows - 1) builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Append the text of a row from column x1 (inclusive) to x2 (exclusive), without trailing spaces unless the line
+     * wraps.
+     *
+     * @return whether the row has its line wrap set
+     */
+    private boolean appendRowText(StringBuilder builder, int row, int x1, int x2) {
+        TerminalRow lineObject = getRowForReading(row);
+        int x1Index = lineObject.findStartOfColumn(x1);
+        int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
+        if (x2Index == x1Index) {
+            // Selected the start of a wide character.
+            x2Index = lineObject.findStartOfColumn(x2 + 1);
+        }
+        char[] line = lineObject.mText;
+        int lastPrintingCharIndex = -1;
+        int i;
+        boolean rowLineWrap = lineObject.mLineWrap;
+        if (rowLineWrap && x2 == mColumns) {
+            // If the line was wrapped, we shouldn't lose trailing space:
+            lastPrintingCharIndex = x2Index - 1;
+        } else {
+            for (i = x1Index; i < x2Index; ++i) {
+                char c = line[i];
+                if (c != ' ') lastPrintingCharIndex = i;
+            }
+        }
+        if (lastPrintingCharIndex != -1)
+            builder.append(line, x1Index, lastPrintingCharIndex - x1Index + 1);
+        return rowLineWrap;
+    }
+
+    /**
+     * Whether a screen row has changed since the last {@link #clearDamage()}. Rows are in current screen coordinates,
+     * that is, after the scroll described by {@link #getDamageScrollShift()} has been applied.
+     */
+    public boolean isRowDamaged(int row) {
+        return row >= 0 && row < mScreenRows && (mDamagedRows[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /** Whether anything on the screen has changed since the last {@link #clearDamage()}. */
+    public boolean hasDamage() {
+        if (mDamageScrollShift != 0) return true;
+        for (long word : mDamagedRows)
+            if (word != 0) return true;
+        return false;
+    }
+
+    /**
+     * The number of rows the whole screen has scrolled up since the last {@link #clearDamage()}. Rows which are not
+     * damaged show what was displayed this many rows further down when the damage was last cleared.
+     */
+    public int getDamageScrollShift() {
+        return mDamageScrollShift;
+    }
+
+    /** Forget about all damage, typically after the screen has been rendered. */
+    public void clearDamage() {
+        Arrays.fill(mDamagedRows, 0);
+        mDamageScrollShift = 0;
+    }
+
+    /** Mark the screen rows from fromRow (inclusive) to toRow (exclusive) as changed. */
+    void markRowsDamaged(int fromRow, int toRow) {
+        final long[] damagedRows = mDamagedRows;
+        fromRow = Math.max(0, fromRow);
+        toRow = Math.min(toRow, damagedRows.length << 6);
+        for (int row = fromRow; row < toRow; row++)
+            damagedRows[row >>> 6] |= 1L << row;
+    }
+
+    void markRowDamaged(int row) {
+        if (row >= 0 && (row >>> 6) < mDamagedRows.length) mDamagedRows[row >>> 6] |= 1L << row;
+    }
+
+    /** Mark the whole screen as changed, for instance after the palette has changed. */
+    void markAllDamaged() {
+        markRowsDamaged(0, mScreenRows);
+    }
+
+    /** Move the damage bitmap along with the screen content, which has scrolled up one row. */
+    private void shiftDamageUpOneRow() {
+        final long[] damagedRows = mDamagedRows;
+        final int last = damagedRows.length - 1;
+        for (int i = 0; i < last; i++)
+            damagedRows[i] = (damagedRows[i] >>> 1) | (damagedRows[i + 1] << 63);
+        damagedRows[last] >>>= 1;
+        mDamageScrollShift++;
+    }
+
+    public int getActiveTranscriptRows() {
+        return mTranscript.size();
+    }
+
+    public int getActiveRows() {
+        return mTranscript.size() + mScreenRows;
+    }
+
+    /**
+     * Get a row in the external coordinate system. Rows in the transcript are decoded when needed and must not be
+     * modified.
+     */
+    public TerminalRow getRow(int externalRow) {
+        if (externalRow >= 0) return screenRow(externalRow);
+        final int index = checkTranscriptRow(externalRow);
+        final long lineNumber = mTranscript.getFirstLineNumber() + index;
+        TerminalRow row = mDecodedRows.get(lineNumber);
+        if (row == null) {
+            row = new TerminalRow(mColumns, 0);
+            mTranscript.read(index, row);
+            mDecodedRows.put(lineNumber, row);
+        }
+        return row;
+    }
+
+    /** Like {@link #getRow(int)}, but the returned row may be overwritten by the next call. */
+    TerminalRow getRowForReading(int externalRow) {
+        if (externalRow >= 0) return screenRow(externalRow);
+        final int index = checkTranscriptRow(externalRow);
+        TerminalRow row = mDecodedRows.get(mTranscript.getFirstLineNumber() + index);
+        if (row != null) return row;
+        if (mScratchRow == null) mScratchRow = new TerminalRow(mColumns, 0);
+        mTranscript.read(index, mScratchRow);
+        return mScratchRow;
+    }
+
+    /**
+     * A number identifying a row, which stays the same as the row scrolls into the transcript. Numbers increase
+     * downwards, and are only reused after {@link #getReflowCount()} has changed.
+     */
+    public long getLineNumber(int externalRow) {
+        return mTranscript.getFirstLineNumber() + mTranscript.size() + externalRow;
+    }
+
+    /** The number of times the rows have been reflowed to another width, which gives them new line numbers. */
+    public int getReflowCount() {
+        return mReflowCount;
+    }
+
+    private TerminalRow screenRow(int row) {
+        if (row < 0 || row >= mScreenRows)
+            throw new IllegalArgumentException("row=" + row + ", mScreenRows=" + mScreenRows);
+        return mLines[row];
+    }
+
+    /** Check that a row is in the transcript and return its index in {@link #mTranscript}. */
+    private int checkTranscriptRow(int externalRow) {
+        final int transcriptRows = mTranscript.size();
+        if (externalRow < -transcriptRows)
+            throw new IllegalArgumentException("extRow=" + externalRow + ", mScreenRows=" + mScreenRows + ", mActiveTranscriptRows=" + transcriptRows);
+        return transcriptRows + externalRow;
+    }
+
+    /** Forget decoded transcript rows, which is needed when line numbers are reused or the transcript is replaced. */
+    private void forgetDecodedRows() {
+        mDecodedRows.clear();
+        mScratchRow = null;
+    }
+
+    public void setLineWrap(int row) {
+        screenRow(row).mLineWrap = true;
+    }
+
+    public boolean getLineWrap(int row) {
+        if (row >= 0) return screenRow(row).mLineWrap;
+        return mTranscript.getLineWrap(checkTranscriptRow(row));
+    }
+
+    public void clearLineWrap(int row) {
+        screenRow(row).mLineWrap = false;
+    }
+
+    /**
+     * Resize the screen which this transcript backs. Currently, this only works if the number of columns does not
+     * change or the rows expand (that is, it only works when shrinking the number of rows).
+     *
+     * @param newColumns The number of columns the screen should have.
+     * @param newRows    The number of rows the screen should have.
+     * @param cursor     An int[2] containing the (column, row) cursor location.
+     */
+    public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
+        if (newColumns == mColumns && newRows <= mTotalRows) {
+            // Fast resize where just the rows changed.
+            int shiftDownOfTopRow = mScreenRows - newRows;
+            if (shiftDownOfTopRow > 0 && shiftDownOfTopRow < mScreenRows) {
+                // Shrinking. Check if we can skip blank rows at bottom below cursor.
+                for (int i = mScreenRows - 1; i > 0; i--) {
+                    if (cursor[1] >= i) break;
+                    if (mLines[i].isBlank()) {
+                        if (--shiftDownOfTopRow == 0) break;
+                    }
+                }
+            } else if (shiftDownOfTopRow < 0) {
+                // Negative shift down = expanding. Only move screen up if there is transcript in memory to show:
+                shiftDownOfTopRow = Math.max(shiftDownOfTopRow, -mTranscript.getRowsInMemory());
+            }
+
+            TerminalRow[] newLines = new TerminalRow[newRows];
+            // The rows of the transcript closest to the screen are moved into it:
+            final int fromTranscript = Math.max(0, -shiftDownOfTopRow);
+            for (int i = fromTranscript - 1; i >= 0; i--) {
+                newLines[i] = new TerminalRow(mColumns, 0);
+                mTranscript.popNewest(newLines[i]);
+                mUrlIndex.removeNewestRow();
+            }
+            if (fromTranscript > 0) forgetDecodedRows();
+            // Resize the transcript before the rows above the new screen go to it, so that they fit:
+            mTranscript.setCapacity(altScreen ? 0 : newTotalRows - newRows);
+            final int toTranscript = Math.max(0, shiftDownOfTopRow);
+            for (int i = 0; i < toTranscript; i++)
+                pushToTranscript(mLines[i]);
+            final int keptRows = Math.min(mScreenRows - toTranscript, newRows - fromTranscript);
+            System.arraycopy(mLines, toTranscript, newLines, fromTranscript, keptRows);
+            // The new lines revealed by the resizing which are not from the transcript are blank:
+            for (int i = fromTranscript + keptRows; i < newRows; i++)
+                newLines[i] = new TerminalRow(mColumns, currentStyle);
+            mLines = newLines;
+            mTotalRows = newTotalRows;
+            cursor[1] -= shiftDownOfTopRow;
+            mScreenRows = newRows;
+        } else {
+            // Copy away old state and update new:
+            final TerminalRow[] oldLines = mLines;
+            final TranscriptStore oldTranscript = mTranscript;
+            mLines = new TerminalRow[newRows];
+            for (int i = 0; i < newRows; i++)
+                mLines[i] = new TerminalRow(newColumns, currentStyle);
+
+            final int oldScreenRows = mScreenRows;
+            final TerminalRow oldTranscriptRow = new TerminalRow(mColumns, 0);
+            mTotalRows = newTotalRows;
+            mScreenRows = newRows;
+            mTranscript = new TranscriptStore(newColumns, Math.max(0, newTotalRows - newRows));
+            // Rows spilled to disk are kept as they are, while the rows in memory are reflowed below:
+            mTranscript.setSpill(oldTranscript.detachSpill());
+            final int oldActiveTranscriptRows = oldTranscript.size();
+            // The rows in memory are added to the transcript again, so their URLs are found again:
+            mUrlIndex.clearLine();
+            mReflowCount++;
+            forgetDecodedRows();
+            mColumns = newColumns;
+
+            int newCursorRow = -1;
+            int newCursorColumn = -1;
+            int oldCursorRow = cursor[1];
+            int oldCursorColumn = cursor[0];
+            boolean newCursorPlaced = false;
+
+            int currentOutputExternalRow = 0;
+            int currentOutputExternalColumn = 0;
+
+            // Loop over every character in the initial state.
+            // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
+            // keep track how many blank lines we have skipped if we later on find a non-blank line.
+            int skippedBlankLines = 0;
+            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
+                final TerminalRow oldLine;
+                if (externalOldRow < 0) {
+                    oldTranscript.read(oldActiveTranscriptRows + externalOldRow, oldTranscriptRow);
+                    oldLine = oldTranscriptRow;
+                } else {
+                    oldLine = oldLines[externalOldRow];
+                }
+                boolean cursorAtThisRow = externalOldRow == oldCursorRow;
+                if ((!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                    skippedBlankLines++;
+                    continue;
+                } else if (skippedBlankLines > 0) {
+                    // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
+                    for (int i = 0; i < skippedBlankLines; i++) {
+                        if (currentOutputExternalRow == mScreenRows - 1) {
+                            scrollDownOneLine(0, mScreenRows, currentStyle);
+                        } else {
+                            currentOutputExternalRow++;
+                        }
+                        currentOutputExternalColumn = 0;
+                    }
+                    skippedBlankLines = 0;
+                }
+
+                int lastNonSpaceIndex = 0;
+                boolean justToCursor = false;
+                if (cursorAtThisRow || oldLine.mLineWrap) {
+                    // Take the whole line, either because of cursor on it, or if line wrapping.
+                    lastNonSpaceIndex = oldLine.getSpaceUsed();
+                    if (cursorAtThisRow) justToCursor = true;
+                } else {
+                    for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
+                        if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                            lastNonSpaceIndex = i + 1;
+                }
+
+                int currentOldCol = 0;
+                long styleAtCol = 0;
+                for (int i = 0; i < lastNonSpaceIndex; i++) {
+                    // Note that looping over java character, not cells.
+                    char c = oldLine.mText[i];
+                    int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+                    int displayWidth = WcWidth.width(codePoint);
+                    // Use the last style if this is a zero-width character:
+                    if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+
+                    // Line wrap as necessary:
+                    if (currentOutputExternalColumn + displayWidth > mColumns) {
+                        setLineWrap(currentOutputExternalRow);
+                        if (currentOutputExternalRow == mScreenRows - 1) {
+                            if (newCursorPlaced) newCursorRow--;
+                            scrollDownOneLine(0, mScreenRows, currentStyle);
+                        } else {
+                            currentOutputExternalRow++;
+                        }
+                        currentOutputExternalColumn = 0;
+                    }
+
+                    int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
+                    int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
+                    setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
+
+                    if (displayWidth > 0) {
+                        if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
+                            newCursorColumn = currentOutputExternalColumn;
+                            newCursorRow = currentOutputExternalRow;
+                            newCursorPlaced = true;
+                        }
+                        currentOldCol += displayWidth;
+                        currentOutputExternalColumn += displayWidth;
+                        if (justToCursor && newCursorPlaced) break;
+                    }
+                }
+                // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
+                if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
+                    if (currentOutputExternalRow == mScreenRows - 1) {
+                        if (newCursorPlaced) newCursorRow--;
+                        scrollDownOneLine(0, mScreenRows, currentStyle);
+                    } else {
+                        currentOutputExternalRow++;
+                    }
+                    currentOutputExternalColumn = 0;
+                }
+            }
+
+            cursor[0] = newCursorColumn;
+            cursor[1] = newCursorRow;
+        }
+
+        // Handle cursor scrolling off screen:
+        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+
+        // Everything has moved, so there is nothing to gain from describing it as a scroll:
+        mDamagedRows = new long[(mScreenRows + 63) >>> 6];
+        mDamageScrollShift = 0;
+        markAllDamaged();
+    }
+
+    /**
+     * Scroll the screen down one line. To scroll the whole screen of a 24 line screen, the arguments would be (0, 24).
+     * The row at the top margin goes into the transcript.
+     *
+     * @param topMargin    First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param style        the style for the newly exposed line.
+     */
+    public void scrollDownOneLine(int topMargin, int bottomMargin, long style) {
+        if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
+            throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
+
+        final TerminalRow scrolledOut = mLines[topMargin];
+        pushToTranscript(scrolledOut);
+        System.arraycopy(mLines, topMargin + 1, mLines, topMargin, bottomMargin - topMargin - 1);
+
+        // A scroll of the whole screen is recorded as a shift, leaving the damage of the moved rows intact:
+        if (topMargin == 0 && bottomMargin == mScreenRows) {
+            shiftDamageUpOneRow();
+            markRowDamaged(bottomMargin - 1);
+        } else {
+            markRowsDamaged(topMargin, bottomMargin);
+        }
+
+        // Reuse the row object as the newly revealed blank line above the bottom margin:
+        mLines[bottomMargin - 1] = scrolledOut;
+        scrolledOut.clear(style);
+    }
+
+    /**
+     * Block copy characters from one position in the screen to another. The two positions can overlap. All characters
+     * of the source and destination must be within the bounds of the screen, or else an InvalidParameterException will
+     * be thrown.
+     *
+     * @param sx source X coordinate
+     * @param sy source Y coordinate
+     * @param w  width
+     * @param h  height
+     * @param dx destination X coordinate
+     * @param dy destination Y coordinate
+     */
+    public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
+        if (w == 0) return;
+        if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows || dx < 0 || dx + w > mColumns || dy < 0 || dy + h > mScreenRows)
+            throw new IllegalArgumentException();
+        markRowsDamaged(dy, dy + h);
+        boolean copyingUp = sy > dy;
+        for (int y = 0; y < h; y++) {
+            int y2 = copyingUp ? y : (h - (y + 1));
+            mLines[dy + y2].copyInterval(mLines[sy + y2], sx, sx + w, dx);
+        }
+    }
+
+    /**
+     * Block set characters. All characters must be within the bounds of the screen, or else and
+     * InvalidParemeterException will be thrown. Typically this is called with a "val" argument of 32 to clear a block
+     * of characters.
+     */
+    public void blockSet(int sx, int sy, int w, int h, int val, long style) {
+        if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows) {
+            throw new IllegalArgumentException(
+                "illegal arguments: blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
+        }
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                setChar(sx + x, sy + y, val, style);
+    }
+
+    public void setChar(int column, int row, int codePoint, long style) {
+        if (row >= mScreenRows || column >= mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        markRowDamaged(row);
+        screenRow(row).setChar(column, codePoint, style);
+    }
+
+    /** Set a run of printable ASCII characters, which must fit on the row, starting at the specified column. */
+    public void setAsciiChars(int column, int row, int[] text, int offset, int count, long style) {
+        if (row >= mScreenRows || column + count > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", count=" + count + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        markRowDamaged(row);
+        screenRow(row).setAsciiChars(column, text, offset, count, style);
+    }
+
+    public long getStyleAt(int externalRow, int column) {
+        return getRowForReading(externalRow).getStyle(column);
+    }
+
+    /** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
+    public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
+                                 int bottom, int right) {
+        // The area given by the emulator may extend one row below the screen, and past the last column when combining
+        // origin mode with left and right margins:
+        bottom = Math.min(bottom, mScreenRows);
+        right = Math.min(right, mColumns);
+        markRowsDamaged(top, bottom);
+        for (int y = top; y < bottom; y++) {
+            TerminalRow line = screenRow(y);
+            int startOfLine = (rectangular || y == top) ? left : leftMargin;
+            int endOfLine = Math.min((rectangular || y + 1 == bottom) ? right : rightMargin, mColumns);
+            for (int x = startOfLine; x < endOfLine; ) {
+                // Change each run of columns with the same style at once:
+                int runEnd = Math.min(line.getStyleRunEnd(x), endOfLine);
+                long currentStyle = line.getStyle(x);
+                int foreColor = TextStyle.decodeForeColor(currentStyle);
+                int backColor = TextStyle.decodeBackColor(currentStyle);
+                int effect = TextStyle.decodeEffect(currentStyle);
+                if (reverse) {
+                    // Clear out the bits to reverse and add them back in reversed:
+                    effect = (effect & ~bits) | (bits & ~effect);
+                } else if (setOrClear) {
+                    effect |= bits;
+                } else {
+                    effect &= ~bits;
+                }
+                line.setStyle(x, runEnd, TextStyle.encode(foreColor, backColor, effect));
+                x = runEnd;
+            }
+        }
+    }
+
+    /** Add a row as the newest one of the transcript, looking for URLs in it. */
+    private void pushToTranscript(TerminalRow row) {
+        mTranscript.push(row);
+        if (mTranscript.getCapacity() > 0) mUrlIndex.addRow(row);
+    }
+
+    /**
+     * The URLs in the transcript and on the screen, oldest first. Only the screen is searched here, since the URLs in
+     * the transcript have already been found.
+     */
+    public LinkedHashSet<String> findUrls() {
+        final StringBuilder screenText = new StringBuilder();
+        for (int row = 0; row < mScreenRows; row++) {
+            if (!appendRowText(screenText, row, 0, mColumns)) screenText.append('\n');
+        }
+        return mUrlIndex.getUrls(screenText);
+    }
+
+    public void clearTranscript() {
+        mTranscript.clear();
+        mUrlIndex.clear();
+        forgetDecodedRows();
+    }
+
+    /**
+     * Change the number of rows of the screen and transcript together, dropping the oldest transcript rows if they no
+     * longer fit. The transcript only takes up memory for the rows actually kept.
+     */
+    public void setTotalRows(int totalRows) {
+        final int transcriptRows = mTranscript.size();
+        mTranscript.setCapacity(Math.max(0, totalRows - mScreenRows));
+        mTotalRows = totalRows;
+        if (mTranscript.size() != transcriptRows) forgetDecodedRows();
+    }
+
+    /**
+     * Drop or spill the oldest transcript rows beyond the specified number and release the memory they used, for
+     * instance when the system is low on memory. The transcript may grow again to its full size afterwards.
+     */
+    public void trimTranscript(int maxRows) {
+        if (mTranscript.trim(maxRows) > 0) forgetDecodedRows();
+    }
+
+    /**
+     * Keep the rows dropped from the oldest end of the transcript in segment files instead of discarding them.
+     *
+     * @param directory    where to place the segment files, which should not be used for anything else.
+     * @param maxBytes     the size of the segment files above which the oldest rows are deleted.
+     * @param maxAgeMillis how long rows are kept on disk.
+     */
+    public void setTranscriptSpill(File directory, long maxBytes, long maxAgeMillis) {
+        mTranscript.setSpill(new TranscriptSpill(directory, maxBytes, maxAgeMillis));
+    }
+
+    /** Delete the rows kept on disk, which are no longer part of the transcript afterwards. */
+    public void closeTranscriptSpill() {
+        if (mTranscript.closeSpill()) forgetDecodedRows();
+    }
+}
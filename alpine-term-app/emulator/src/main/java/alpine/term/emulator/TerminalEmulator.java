@@ -22,9 +22,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
-import android.util.Base64;
-import android.util.Log;
-
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
@@ -243,8 +242,9 @@ public final class TerminalEmulator {
      */
     private int mScrollCounter = 0;
 
-    private byte mUtf8ToFollow, mUtf8Index;
-    private final byte[] mUtf8InputBuffer = new byte[4];
+    private final Utf8Decoder mUtf8Decoder = new Utf8Decoder();
+    /** Code points decoded from the input passed to {@link #append(byte[], int)}. */
+    private int[] mCodePoints = new int[0];
     private int mLastEmittedCodePoint = -1;
 
     public final TerminalColors mColors = new TerminalColors();
@@ -315,6 +315,31 @@ public final class TerminalEmulator {
         return mScreen;
     }
 
+    /** The number of rows kept by the main buffer, including both the screen and the history above it. */
+    public int getTranscriptRows() {
+        return mMainBuffer.mTotalRows;
+    }
+
+    /** Change the number of rows kept by the main buffer, dropping the oldest history if it no longer fits. */
+    public void setTranscriptRows(int transcriptRows) {
+        mMainBuffer.setTotalRows(transcriptRows);
+    }
+
+    /** Drop or spill the oldest history beyond the specified number of rows, keeping the configured size for later. */
+    public void trimTranscript(int maxRows) {
+        mMainBuffer.trimTranscript(maxRows);
+    }
+
+    /** Keep history beyond the transcript rows on disk, see {@link TerminalBuffer#setTranscriptSpill}. */
+    public void setTranscriptSpill(File directory, long maxBytes, long maxAgeMillis) {
+        mMainBuffer.setTranscriptSpill(directory, maxBytes, maxAgeMillis);
+    }
+
+    /** Delete the history kept on disk. */
+    public void closeTranscriptSpill() {
+        mMainBuffer.closeTranscriptSpill();
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -424,72 +449,57 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
-    }
-
-    private void processByte(byte byteToProcess) {
-        if (mUtf8ToFollow > 0) {
-            if ((byteToProcess & 0b11000000) == 0b10000000) {
-                // 10xxxxxx, a continuation byte.
-                mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
-                if (--mUtf8ToFollow == 0) {
-                    byte firstByteMask = (byte) (mUtf8Index == 2 ? 0b00011111 : (mUtf8Index == 3 ? 0b00001111 : 0b00000111));
-                    int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
-                    for (int i = 1; i < mUtf8Index; i++)
-                        codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
-                    if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
-                        || (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
-                        // Overlong encoding.
-                        codePoint = UNICODE_REPLACEMENT_CHAR;
-                    }
-
-                    mUtf8Index = mUtf8ToFollow = 0;
+        if (mCodePoints.length <= length) mCodePoints = new int[length + 1];
+        processDecoded(mUtf8Decoder.decode(buffer, length, mCodePoints));
+    }
 
-                    if (codePoint >= 0x80 && codePoint <= 0x9F) {
-                        // Sequence decoded to a C1 control character which we ignore. They are
-                        // not used nowadays and increases the risk of messing up the terminal state
-                        // on binary input. XTerm does not allow them in utf-8:
-                        // "It is not possible to use a C1 control obtained from decoding the
-                        // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
-                    } else {
-                        switch (Character.getType(codePoint)) {
-                            case Character.UNASSIGNED:
-                            case Character.SURROGATE:
-                                codePoint = UNICODE_REPLACEMENT_CHAR;
-                        }
-                        processCodePoint(codePoint);
-                    }
-                }
-            } else {
-                // Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char:
-                mUtf8Index = mUtf8ToFollow = 0;
+    /**
+     * Accept bytes (typically from the pseudo-teletype) and process them where they are, without copying them out of
+     * the buffer first.
+     *
+     * @param buffer the bytes from the position to the limit are processed, after which the position is the limit
+     */
+    public void append(ByteBuffer buffer) {
+        if (mCodePoints.length <= buffer.remaining()) mCodePoints = new int[buffer.remaining() + 1];
+        processDecoded(mUtf8Decoder.decode(buffer, mCodePoints));
+    }
+
+    /** Process the first {@code count} code points of {@link #mCodePoints}, as decoded from the input. */
+    private void processDecoded(int count) {
+        final TerminalBuffer screen = mScreen;
+        final int scrollShift = screen.getDamageScrollShift();
+        final int cursorRow = mCursorRow, cursorCol = mCursorCol, cursorStyle = mCursorStyle;
+        final boolean showingCursor = isShowingCursor(), reverseVideo = isReverseVideo();
+
+        final int[] codePoints = mCodePoints;
+        for (int i = 0; i < count; i++) {
+            int codePoint = codePoints[i];
+            if (codePoint >= 32 && codePoint < 127 && mEscapeState == ESC_NONE) {
+                int runEnd = i + 1;
+                while (runEnd < count && codePoints[runEnd] >= 32 && codePoints[runEnd] < 127)
+                    runEnd++;
+                emitAsciiRun(codePoints, i, runEnd);
+                i = runEnd - 1;
+            } else if (codePoint == Utf8Decoder.INTERRUPTED_SEQUENCE) {
                 emitCodePoint(UNICODE_REPLACEMENT_CHAR);
-                // The Unicode Standard Version 6.2 – Core Specification
-                // (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
-                // "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid first
-                // byte, but which does not continue with valid successor bytes (see Table 3-7), it must not consume the
-                // successor bytes as part of the ill-formed subsequence
-                // whenever those successor bytes themselves constitute part of a well-formed UTF-8 code unit
-                // subsequence."
-                processByte(byteToProcess);
+            } else {
+                processCodePoint(codePoint);
             }
+        }
+
+        if (screen != mScreen) {
+            // Switching screens has already damaged the new one.
+        } else if (reverseVideo != isReverseVideo()) {
+            screen.markAllDamaged();
         } else {
-            if ((byteToProcess & 0b10000000) == 0) { // The leading bit is not set so it is a 7-bit ASCII character.
-                processCodePoint(byteToProcess);
-                return;
-            } else if ((byteToProcess & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
-                mUtf8ToFollow = 1;
-            } else if ((byteToProcess & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
-                mUtf8ToFollow = 2;
-            } else if ((byteToProcess & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
-                mUtf8ToFollow = 3;
-            } else {
-                // Not a valid UTF-8 sequence start, signal invalid data:
-                processCodePoint(UNICODE_REPLACEMENT_CHAR);
-                return;
+            // The cursor is drawn as part of its row, so both the row it left (which may have scrolled since) and the
+            // one it ended up on are damaged if it moved relative to the text:
+            final int rowsScrolled = screen.getDamageScrollShift() - scrollShift;
+            if (rowsScrolled != 0 || cursorRow != mCursorRow || cursorCol != mCursorCol || cursorStyle != mCursorStyle
+                || showingCursor != isShowingCursor()) {
+                screen.markRowDamaged(cursorRow - rowsScrolled);
+                screen.markRowDamaged(mCursorRow);
             }
-            mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
         }
     }
 
@@ -511,7 +521,8 @@ public final class TerminalEmulator {
                         mScreen.clearLineWrap(previousRow);
                         setCursorRowCol(previousRow, mRightMargin - 1);
                     }
-                } else {
+                } else if (mCursorCol > 0) {
+                    // Left of the left margin the cursor moves until the edge of the screen.
                     setCursorCol(mCursorCol - 1);
                 }
                 break;
@@ -773,7 +784,7 @@ public final class TerminalEmulator {
                                 if (internalBit != -1) {
                                     value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
                                 } else {
-                                    Log.e(EmulatorDebug.LOG_TAG, "got DECRQM for unrecognized private DEC mode=" + mode);
+                                    EmulatorDebug.logError("got DECRQM for unrecognized private DEC mode=" + mode);
                                     value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
                                 }
                             }
@@ -910,7 +921,7 @@ public final class TerminalEmulator {
                                     case "&8": // Undo key - ignore.
                                         break;
                                     default:
-                                        Log.w(EmulatorDebug.LOG_TAG, "unhandled termcap/terminfo name: '" + trans + "'");
+                                        EmulatorDebug.logWarning("unhandled termcap/terminfo name: '" + trans + "'");
                                 }
                                 // Respond with invalid request:
                                 mSession.write("\033P0+r" + part + "\033\\");
@@ -922,12 +933,12 @@ public final class TerminalEmulator {
                                 mSession.write("\033P1+r" + part + "=" + hexEncoded + "\033\\");
                             }
                         } else {
-                            Log.e(EmulatorDebug.LOG_TAG, "invalid device termcap/terminfo name of odd length: " + part);
+                            EmulatorDebug.logError("invalid device termcap/terminfo name of odd length: " + part);
                         }
                     }
                 } else {
                     if (LOG_ESCAPE_SEQUENCES)
-                        Log.e(EmulatorDebug.LOG_TAG, "unrecognized device control string: " + dcs);
+                        EmulatorDebug.logError("unrecognized device control string: " + dcs);
                 }
                 finishSequence();
             }
@@ -1017,7 +1028,7 @@ public final class TerminalEmulator {
                     int externalBit = mArgs[i];
                     int internalBit = mapDecSetBitToInternalBit(externalBit);
                     if (internalBit == -1) {
-                        Log.w(EmulatorDebug.LOG_TAG, "ignoring request to save/recall decset bit=" + externalBit);
+                        EmulatorDebug.logWarning("ignoring request to save/recall decset bit=" + externalBit);
                     } else {
                         if (b == 's') {
                             mSavedDecSetFlags |= internalBit;
@@ -1105,6 +1116,7 @@ public final class TerminalEmulator {
                     boolean resized = !(newScreen.mColumns == mColumns && newScreen.mScreenRows == mRows);
                     if (setting) saveCursor();
                     mScreen = newScreen;
+                    mScreen.markAllDamaged();
                     if (!setting) {
                         int col = mSavedStateMain.mSavedCursorCol;
                         int row = mSavedStateMain.mSavedCursorRow;
@@ -1204,7 +1216,7 @@ public final class TerminalEmulator {
                 // (1) enables this feature for keys except for those with well-known behavior, e.g., Tab, Backarrow and
                 // some special control character cases, e.g., Control-Space to make a NUL.
                 // (2) enables this feature for keys including the exceptions listed.
-                Log.e(EmulatorDebug.LOG_TAG, "(ignored) CSI > MODIFY RESOURCE: " + getArg0(-1) + " to " + getArg1(-1));
+                EmulatorDebug.logError("(ignored) CSI > MODIFY RESOURCE: " + getArg0(-1) + " to " + getArg1(-1));
                 break;
             default:
                 parseArg(b);
@@ -1748,7 +1760,7 @@ public final class TerminalEmulator {
                 int firstArg = mArgs[i + 1];
                 if (firstArg == 2) {
                     if (i + 4 > mArgIndex) {
-                        Log.w(EmulatorDebug.LOG_TAG, "too few CSI" + code + ";2 RGB arguments");
+                        EmulatorDebug.logWarning("too few CSI" + code + ";2 RGB arguments");
                     } else {
                         int red = mArgs[i + 2], green = mArgs[i + 3], blue = mArgs[i + 4];
                         if (red < 0 || green < 0 || blue < 0 || red > 255 || green > 255 || blue > 255) {
@@ -1773,7 +1785,7 @@ public final class TerminalEmulator {
                             mBackColor = color;
                         }
                     } else {
-                        if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, "invalid color index: " + color);
+                        if (LOG_ESCAPE_SEQUENCES) EmulatorDebug.logWarning("invalid color index: " + color);
                     }
                 } else {
                     finishSequenceAndLogError("Invalid ISO-8613-3 SGR first argument: " + firstArg);
@@ -1790,7 +1802,7 @@ public final class TerminalEmulator {
                 mBackColor = code - 100 + 8;
             } else {
                 if (LOG_ESCAPE_SEQUENCES)
-                    Log.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d", code));
+                    EmulatorDebug.logWarning(String.format("SGR unknown code %d", code));
             }
         }
     }
@@ -1870,7 +1882,7 @@ public final class TerminalEmulator {
                                 return;
                             } else {
                                 mColors.tryParseColor(colorIndex, textParameter.substring(parsingPairStart, i));
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 colorIndex = -1;
                                 parsingPairStart = -1;
                             }
@@ -1906,7 +1918,7 @@ public final class TerminalEmulator {
                                     + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
                             } else {
                                 mColors.tryParseColor(specialIndex, colorSpec);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                             }
                             specialIndex++;
                             if (endOfInput || (specialIndex > TextStyle.COLOR_INDEX_CURSOR) || ++charIndex >= textParameter.length())
@@ -1921,10 +1933,10 @@ public final class TerminalEmulator {
             case 52: // Manipulate Selection Data. Skip the optional first selection parameter(s).
                 int startIndex = textParameter.indexOf(";") + 1;
                 try {
-                    String clipboardText = new String(Base64.decode(textParameter.substring(startIndex), 0), StandardCharsets.UTF_8);
+                    String clipboardText = new String(decodeBase64(textParameter.substring(startIndex)), StandardCharsets.UTF_8);
                     mSession.clipboardText(clipboardText);
                 } catch (Exception e) {
-                    Log.e(EmulatorDebug.LOG_TAG, "OSC Manipulate selection, invalid string '" + textParameter + "");
+                    EmulatorDebug.logError("OSC Manipulate selection, invalid string '" + textParameter + "");
                 }
                 break;
             case 104:
@@ -1934,7 +1946,7 @@ public final class TerminalEmulator {
                 // parameters are given, the entire table will be reset.
                 if (textParameter.isEmpty()) {
                     mColors.reset();
-                    mSession.onColorsChanged();
+                    onColorsChanged();
                 } else {
                     int lastIndex = 0;
                     for (int charIndex = 0; ; charIndex++) {
@@ -1943,7 +1955,7 @@ public final class TerminalEmulator {
                             try {
                                 int colorToReset = Integer.parseInt(textParameter.substring(lastIndex, charIndex));
                                 mColors.reset(colorToReset);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 if (endOfInput) break;
                                 charIndex++;
                                 lastIndex = charIndex;
@@ -1958,7 +1970,7 @@ public final class TerminalEmulator {
             case 111: // Reset background color.
             case 112: // Reset cursor color.
                 mColors.reset(TextStyle.COLOR_INDEX_FOREGROUND + (value - 110));
-                mSession.onColorsChanged();
+                onColorsChanged();
                 break;
             case 119: // Reset highlight color.
                 break;
@@ -2119,8 +2131,47 @@ public final class TerminalEmulator {
         }
     }
 
+    /**
+     * Decode base64 as used by OSC 52, ignoring whitespace and stopping at padding. Implemented here as
+     * java.util.Base64 is not available on all supported Android versions.
+     */
+    static byte[] decodeBase64(String text) {
+        final byte[] decoded = new byte[text.length() * 3 / 4];
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            final int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                value = c - '0' + 52;
+            } else if (c == '+') {
+                value = 62;
+            } else if (c == '/') {
+                value = 63;
+            } else if (c == '=') {
+                break;
+            } else if (Character.isWhitespace(c)) {
+                continue;
+            } else {
+                throw new IllegalArgumentException("bad base-64");
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                decoded[length++] = (byte) (bits >> bitCount);
+            }
+        }
+        return Arrays.copyOf(decoded, length);
+    }
+
     private void finishSequenceAndLogError(String error) {
-        if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, error);
+        if (LOG_ESCAPE_SEQUENCES) EmulatorDebug.logWarning(error);
         finishSequence();
     }
 
@@ -2259,6 +2310,10 @@ public final class TerminalEmulator {
             // autowrap is disabled is not obvious - it's ignored here.
             return;
         }
+        if (displayWidth == 2 && mCursorCol == mColumns - 1) {
+            // Right of the right margin nothing wraps, and a wide character does not fit in the last column.
+            return;
+        }
 
         if (mInsertMode && displayWidth > 0) {
             // Move character to right one space.
@@ -2276,6 +2331,45 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /**
+     * Send a run of printable ASCII characters in the ground state to the screen. This has the same effect as calling
+     * {@link #emitCodePoint(int)} for each character, but writes as much of the run as fits on the current line at once.
+     *
+     * @param text  the code points containing the run
+     * @param start index of the first character of the run
+     * @param end   index after the last character of the run
+     */
+    private void emitAsciiRun(int[] text, int start, int end) {
+        mContinueSequence = false;
+
+        if (mInsertMode || (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) || mCursorCol >= mRightMargin) {
+            // Characters are shifted or translated one by one, or the cursor is outside the margins.
+            for (int i = start; i < end; i++)
+                emitCodePoint(text[i]);
+            return;
+        }
+
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+        int i = start;
+        while (i < end) {
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1) {
+                // Let the first character wrap to the next line.
+                emitCodePoint(text[i++]);
+                continue;
+            }
+
+            int count = Math.min(end - i, mRightMargin - mCursorCol);
+            mScreen.setAsciiChars(mCursorCol, mCursorRow, text, i, count, style);
+            i += count;
+
+            int lastColumn = mCursorCol + count - 1;
+            if (autoWrap) mAboutToAutoWrap = (lastColumn == mRightMargin - 1);
+            mCursorCol = Math.min(lastColumn + 1, mRightMargin - 1);
+        }
+        mLastEmittedCodePoint = text[end - 1];
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2339,9 +2433,16 @@ public final class TerminalEmulator {
         mSavedDecSetFlags = mSavedStateMain.mSavedDecFlags = mSavedStateAlt.mSavedDecFlags = mCurrentDecSetFlags;
 
         // XXX: Should we set terminal driver back to IUTF8 with termios?
-        mUtf8Index = mUtf8ToFollow = 0;
+        // The UTF-8 decoder is left alone: a reset is triggered from within append(), where the decoder has already
+        // consumed the rest of the input.
 
         mColors.reset();
+        onColorsChanged();
+    }
+
+    /** Every cell may be drawn differently with a changed palette, so the whole screen is damaged. */
+    private void onColorsChanged() {
+        mScreen.markAllDamaged();
         mSession.onColorsChanged();
     }
 
@@ -2365,16 +2466,19 @@ public final class TerminalEmulator {
 
     /** If DECSET 2004 is set, prefix paste with "\033[200~" and suffix with "\033[201~". */
     public void paste(String text) {
-        // First: Always remove escape key and C1 control characters [0x80,0x9F]:
-        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
-        // Second: Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r).
-        text = text.replaceAll("\r?\n", "\r");
-
-        // Then: Implement bracketed paste mode if enabled:
-        boolean bracketed = isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
-        if (bracketed) mSession.write("\033[200~");
-        mSession.write(text);
-        if (bracketed) mSession.write("\033[201~");
+        final boolean bracketed = isBracketedPasteMode();
+        if (bracketed) mSession.write(PasteEncoder.BRACKETED_PASTE_START);
+        final PasteEncoder encoder = new PasteEncoder(text);
+        final byte[] buffer = new byte[Math.min(3 * text.length() + 4, 16 * 1024)];
+        int length;
+        while ((length = encoder.encode(buffer)) > 0)
+            mSession.write(buffer, 0, length);
+        if (bracketed) mSession.write(PasteEncoder.BRACKETED_PASTE_END);
+    }
+
+    /** Whether the application wants pasted text between the markers of bracketed paste mode. */
+    public boolean isBracketedPasteMode() {
+        return isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
     }
 
     /** http://www.vt100.net/docs/vt510-rm/DECSC */
@@ -0,0 +1,154 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The file format of a recording of what a {@link TerminalEmulator} was fed, which can be replayed to reproduce its
+ * screen, see {@link TerminalReplay}.
+ * <p>
+ * A recording starts with the four bytes "ATR1" followed by the columns, rows and transcript rows of the emulator at
+ * the start, each as an unsigned LEB128 variable length integer. Then follows a sequence of events until the end of
+ * the file, each being:
+ * <ul>
+ * <li>the milliseconds since the previous event, or since the start for the first one, as a variable length
+ * integer;</li>
+ * <li>a variable length integer with the type of event in its lowest bit: {@link #EVENT_OUTPUT} with the number of
+ * output bytes in the remaining bits, followed by those bytes, or {@link #EVENT_RESIZE} followed by the new columns
+ * and rows as variable length integers.</li>
+ * </ul>
+ * A recording may be compressed with gzip as a whole, which {@link Reader} detects.
+ */
+public final class TerminalRecording {
+
+    static final byte[] MAGIC = {'A', 'T', 'R', '1'};
+
+    /** Output of the process appended to the emulator. */
+    public static final int EVENT_OUTPUT = 0;
+    /** A resize of the emulator. */
+    public static final int EVENT_RESIZE = 1;
+
+    private TerminalRecording() {
+    }
+
+    /** Append a variable length integer to the buffer at the offset, returning the offset after it. */
+    static int putVarInt(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /** Reads the events of a recording one at a time. */
+    public static final class Reader implements Closeable {
+
+        /** The largest number of columns or rows accepted. */
+        private static final int MAX_SIZE = 0xFFFF;
+
+        private final InputStream mIn;
+
+        /** The size of the emulator when recording started. */
+        public final int mInitialColumns, mInitialRows, mTranscriptRows;
+
+        /** The type of the current event, {@link #EVENT_OUTPUT} or {@link #EVENT_RESIZE}. */
+        public int mEventType;
+        /** The milliseconds since the start of the recording of the current event. */
+        public long mTimeMillis;
+        /** The output of an {@link #EVENT_OUTPUT} event, of which {@link #mOutputLength} bytes are valid. */
+        public byte[] mOutput = new byte[4096];
+        public int mOutputLength;
+        /** The new size of an {@link #EVENT_RESIZE} event. */
+        public int mColumns, mRows;
+
+        public Reader(InputStream in) throws IOException {
+            in = new BufferedInputStream(in, 64 * 1024);
+            in.mark(2);
+            boolean gzipped = in.read() == 0x1F && in.read() == 0x8B;
+            in.reset();
+            mIn = gzipped ? new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024) : in;
+
+            for (byte expected : MAGIC) {
+                if (mIn.read() != expected) throw new IOException("not a terminal recording");
+            }
+            mInitialColumns = readInt(MAX_SIZE);
+            mInitialRows = readInt(MAX_SIZE);
+            mTranscriptRows = readInt(Integer.MAX_VALUE);
+        }
+
+        /** Advance to the next event, returning false at the end of the recording. */
+        public boolean next() throws IOException {
+            int first = mIn.read();
+            if (first == -1) return false;
+            mTimeMillis += readVarInt(first);
+
+            long tag = readVarInt(mIn.read());
+            mEventType = (int) (tag & 1);
+            if (mEventType == EVENT_OUTPUT) {
+                long length = tag >>> 1;
+                if (length > Integer.MAX_VALUE - 8) throw new IOException("invalid output length " + length);
+                mOutputLength = (int) length;
+                if (mOutput.length < mOutputLength) mOutput = new byte[Math.max(mOutputLength, mOutput.length * 2)];
+                for (int read = 0; read < mOutputLength; ) {
+                    int n = mIn.read(mOutput, read, mOutputLength - read);
+                    if (n == -1) throw new EOFException("truncated recording");
+                    read += n;
+                }
+            } else {
+                mColumns = readInt(MAX_SIZE);
+                mRows = readInt(MAX_SIZE);
+            }
+            return true;
+        }
+
+        private int readInt(int max) throws IOException {
+            long value = readVarInt(mIn.read());
+            if (value < 1 || value > max) throw new IOException("invalid size " + value);
+            return (int) value;
+        }
+
+        private long readVarInt(int b) throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (b == -1) throw new EOFException("truncated recording");
+                if (shift > 56) throw new IOException("invalid variable length integer");
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+                b = mIn.read();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+}
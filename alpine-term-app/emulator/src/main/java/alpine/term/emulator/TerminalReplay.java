@@ -0,0 +1,198 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Replays recordings in the format of {@link TerminalRecording} into a {@link TerminalEmulator} without a session or a
+ * view, so that it runs on a plain JVM:
+ * <pre>
+ * java alpine.term.emulator.TerminalReplay [-realtime] [-repeat COUNT] [-expect HASH] RECORDING...
+ * </pre>
+ * At full speed, which is the default, the throughput of the emulator is reported. With -realtime the events are
+ * spaced as they were recorded. Either way a hash of the final screen is printed, and with -expect the exit status
+ * tells whether every recording ended with that screen, so that recordings can serve as regression tests.
+ */
+public final class TerminalReplay {
+
+    /** The result of replaying a recording. */
+    public static final class Result {
+        /** The number of output bytes fed to the emulator. */
+        public long mBytes;
+        /** How long the replay took, in nanoseconds. */
+        public long mNanos;
+        /** The hash of the final screen, see {@link #screenHash(TerminalEmulator)}. */
+        public String mScreenHash;
+        /** Whether the recording ended in the middle of an event, as when the recording app was killed. */
+        public boolean mTruncated;
+    }
+
+    /** Discards what the emulator sends back, as nothing is listening in a replay. */
+    private static final class NullOutput extends TerminalOutput {
+        @Override
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+        }
+
+        @Override
+        public void clipboardText(String text) {
+        }
+
+        @Override
+        public void onBell() {
+        }
+
+        @Override
+        public void onColorsChanged() {
+        }
+    }
+
+    private TerminalReplay() {
+    }
+
+    /**
+     * Replay a recording into a new emulator.
+     *
+     * @param in       the recording, which is not closed.
+     * @param realTime whether to wait between events as long as when recording.
+     */
+    public static Result replay(InputStream in, boolean realTime) throws IOException, InterruptedException {
+        TerminalRecording.Reader reader = new TerminalRecording.Reader(in);
+        TerminalEmulator emulator = new TerminalEmulator(new NullOutput(), reader.mInitialColumns, reader.mInitialRows, reader.mTranscriptRows);
+        Result result = new Result();
+
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                if (!reader.next()) break;
+            } catch (EOFException e) {
+                result.mTruncated = true;
+                break;
+            }
+            if (realTime) {
+                long delayMillis = reader.mTimeMillis - (System.nanoTime() - start) / 1000000;
+                if (delayMillis > 0) Thread.sleep(delayMillis);
+            }
+            if (reader.mEventType == TerminalRecording.EVENT_OUTPUT) {
+                emulator.append(reader.mOutput, reader.mOutputLength);
+                result.mBytes += reader.mOutputLength;
+            } else {
+                emulator.resize(reader.mColumns, reader.mRows);
+            }
+        }
+        result.mNanos = System.nanoTime() - start;
+        result.mScreenHash = screenHash(emulator);
+        return result;
+    }
+
+    /**
+     * A SHA-256 hash of the screen of the emulator in hexadecimal: the size, cursor position, and the text, styles and
+     * line wrapping of each row. The history above the screen is not included.
+     */
+    public static String screenHash(TerminalEmulator emulator) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        TerminalBuffer screen = emulator.getScreen();
+        StringBuilder state = new StringBuilder();
+        state.append(emulator.mColumns).append('x').append(emulator.mRows)
+            .append(' ').append(emulator.getCursorRow()).append(',').append(emulator.getCursorCol()).append('\n');
+        for (int row = 0; row < emulator.mRows; row++) {
+            state.append(screen.getSelectedText(0, row, emulator.mColumns, row)).append('\n');
+            for (int column = 0; column < emulator.mColumns; column++) {
+                state.append(Long.toHexString(screen.getStyleAt(row, column))).append(' ');
+            }
+            state.append(screen.getLineWrap(row)).append('\n');
+            digest.update(state.toString().getBytes(StandardCharsets.UTF_8));
+            state.setLength(0);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+        return hex.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean realTime = false;
+        int repeat = 1;
+        String expectedHash = null;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-realtime":
+                    realTime = true;
+                    break;
+                case "-repeat":
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "-expect":
+                    expectedHash = args[++i];
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (i == args.length) usage();
+
+        boolean allExpected = true;
+        for (; i < args.length; i++) {
+            // Read the whole file first, so that only the emulator is measured:
+            byte[] recording = Files.readAllBytes(new File(args[i]).toPath());
+            for (int run = 0; run < repeat; run++) {
+                Result result = replay(new ByteArrayInputStream(recording), realTime);
+                double seconds = result.mNanos / 1e9;
+                System.out.printf(Locale.US, "%s: %d bytes in %.3f s, %.2f MB/s, screen %s%s%n", args[i], result.mBytes,
+                    seconds, result.mBytes / seconds / 1e6, result.mScreenHash, result.mTruncated ? " (truncated)" : "");
+                if (expectedHash != null && !expectedHash.equals(result.mScreenHash)) allExpected = false;
+            }
+        }
+        if (!allExpected) {
+            System.out.println("screen differs from " + expectedHash);
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: TerminalReplay [-realtime] [-repeat COUNT] [-expect HASH] RECORDING...");
+        System.exit(2);
+    }
+
+}
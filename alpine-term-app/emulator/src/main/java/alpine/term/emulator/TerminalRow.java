@@ -0,0 +1,467 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.Arrays;
+
+/**
+ * A row in a terminal, composed of a fixed number of cells.
+ * <p>
+ * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ */
+public final class TerminalRow {
+
+    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+
+    /** The maximum number of style spans before falling back to a style per column. */
+    private static final int MAX_STYLE_SPANS = 16;
+
+    /** All columns have {@link #mUniformStyle}. */
+    private static final byte STYLES_UNIFORM = 0;
+    /** The columns are divided into {@link #mStyleSpanCount} spans with a style each. */
+    private static final byte STYLES_SPANS = 1;
+    /** Each column has its own entry in {@link #mStyles}. */
+    private static final byte STYLES_PER_COLUMN = 2;
+
+    /** The number of columns in this terminal row. */
+    private final int mColumns;
+    /** The text filling this terminal row. */
+    public char[] mText;
+    /** The number of java char:s used in {@link #mText}. */
+    private short mSpaceUsed;
+    /** If this row has been line wrapped due to text output at the end of line. */
+    boolean mLineWrap;
+    /**
+     * How the style bits of the cells are stored, see {@link TextStyle}. Most rows have a single style or a few, so
+     * a style per column is only kept once a row has more than {@link #MAX_STYLE_SPANS} spans.
+     */
+    private byte mStyleStorage;
+    private long mUniformStyle;
+    /** The first column of each span, starting with 0 and increasing, and the style of it. */
+    private int[] mStyleSpanStarts;
+    private long[] mStyleSpanStyles;
+    private int mStyleSpanCount;
+    /** The style of each column, allocated when first needed and kept for reuse after a {@link #clear(long)}. */
+    private long[] mStyles;
+    /** If this row might contain chars with width != 1, used for deactivating fast path */
+    boolean mHasNonOneWidthOrSurrogateChars;
+    /**
+     * The index in {@link #mText} of the character covering each column, known for the columns below
+     * {@link #mKnownColumnStarts}. Only used when {@link #mHasNonOneWidthOrSurrogateChars} is set, since otherwise the
+     * index is the column.
+     */
+    private short[] mColumnStarts;
+    /** The number of leading columns with a valid entry in {@link #mColumnStarts}. */
+    private int mKnownColumnStarts;
+    /** Incremented on every change to the text or style of this row. */
+    int mVersion;
+
+    /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
+    public TerminalRow(int columns, long style) {
+        mColumns = columns;
+        mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
+        clear(style);
+    }
+
+    /** NOTE: The sourceX2 is exclusive. */
+    public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
+        mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
+        final int x1 = line.findStartOfColumn(sourceX1);
+        final int x2 = line.findStartOfColumn(sourceX2);
+        boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
+        final char[] sourceChars = (this == line) ? Arrays.copyOf(line.mText, line.mText.length) : line.mText;
+        int latestNonCombiningWidth = 0;
+        for (int i = x1; i < x2; i++) {
+            char sourceChar = sourceChars[i];
+            int codePoint = Character.isHighSurrogate(sourceChar) ? Character.toCodePoint(sourceChar, sourceChars[++i]) : sourceChar;
+            if (startingFromSecondHalfOfWideChar) {
+                // Just treat copying second half of wide char as copying whitespace.
+                codePoint = ' ';
+                startingFromSecondHalfOfWideChar = false;
+            }
+            int w = WcWidth.width(codePoint);
+            if (w > 0) {
+                destinationX += latestNonCombiningWidth;
+                sourceX1 += latestNonCombiningWidth;
+                latestNonCombiningWidth = w;
+            }
+            setChar(destinationX, codePoint, line.getStyle(sourceX1));
+        }
+    }
+
+    public int getSpaceUsed() {
+        return mSpaceUsed;
+    }
+
+    /** Note that the column may end of second half of wide character. */
+    public int findStartOfColumn(int column) {
+        if (column == mColumns) return getSpaceUsed();
+        if (!mHasNonOneWidthOrSurrogateChars) return column;
+        if (column >= mKnownColumnStarts) findColumnStartsUpTo(column);
+        return mColumnStarts[column];
+    }
+
+    /** Extend {@link #mColumnStarts} from the last known column so that it covers the specified column. */
+    private void findColumnStartsUpTo(int column) {
+        if (mColumnStarts == null) mColumnStarts = new short[mColumns];
+        final short[] columnStarts = mColumnStarts;
+        final char[] text = mText;
+
+        int currentColumn = 0;
+        int currentCharIndex = 0;
+        if (mKnownColumnStarts > 0) {
+            // Continue after the character covering the last known column, which may be the second half of it.
+            int lastKnown = mKnownColumnStarts - 1;
+            int lastStart = columnStarts[lastKnown];
+            int firstColumnOfLast = (lastKnown > 0 && columnStarts[lastKnown - 1] == lastStart) ? lastKnown - 1 : lastKnown;
+            char c = text[lastStart];
+            int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, text[lastStart + 1]) : c;
+            currentColumn = firstColumnOfLast + WcWidth.width(codePoint);
+            currentCharIndex = lastStart + Character.charCount(codePoint);
+            for (int i = mKnownColumnStarts; i < currentColumn && i < mColumns; i++)
+                columnStarts[i] = (short) lastStart;
+        }
+
+        while (currentColumn <= column) {
+            int newCharIndex = currentCharIndex;
+            char c = text[newCharIndex++];
+            boolean isHigh = Character.isHighSurrogate(c);
+            int codePoint = isHigh ? Character.toCodePoint(c, text[newCharIndex++]) : c;
+            int wcwidth = WcWidth.width(codePoint);
+            // Combining chars belong to the preceding character, so only characters with a width start columns.
+            for (int i = 0; i < wcwidth && currentColumn < mColumns; i++)
+                columnStarts[currentColumn++] = (short) currentCharIndex;
+            currentCharIndex = newCharIndex;
+        }
+        mKnownColumnStarts = Math.min(currentColumn, mColumns);
+    }
+
+    private boolean wideDisplayCharacterStartingAt(int column) {
+        if (!mHasNonOneWidthOrSurrogateChars || column >= mColumns) return false;
+        int charIndex = findStartOfColumn(column);
+        if (column > 0 && findStartOfColumn(column - 1) == charIndex) return false;
+        return WcWidth.width(mText, charIndex) == 2;
+    }
+
+    public void clear(long style) {
+        mVersion++;
+        Arrays.fill(mText, ' ');
+        mStyleStorage = STYLES_UNIFORM;
+        mUniformStyle = style;
+        mSpaceUsed = (short) mColumns;
+        mLineWrap = false;
+        mHasNonOneWidthOrSurrogateChars = false;
+        mKnownColumnStarts = 0;
+    }
+
+    // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
+    public void setChar(int columnToSet, int codePoint, long style) {
+        mVersion++;
+        if (mStyleStorage == STYLES_PER_COLUMN) {
+            mStyles[columnToSet] = style;
+        } else if (mStyleStorage != STYLES_UNIFORM || style != mUniformStyle) {
+            setStyle(columnToSet, columnToSet + 1, style);
+        }
+
+        final int newCodePointDisplayWidth = WcWidth.width(codePoint);
+
+        // Fast path when we don't have any chars with width != 1
+        if (!mHasNonOneWidthOrSurrogateChars) {
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT || newCodePointDisplayWidth != 1) {
+                mHasNonOneWidthOrSurrogateChars = true;
+            } else {
+                mText[columnToSet] = (char) codePoint;
+                return;
+            }
+        }
+
+        final boolean newIsCombining = newCodePointDisplayWidth <= 0;
+
+        boolean wasExtraColForWideChar = (columnToSet > 0) && wideDisplayCharacterStartingAt(columnToSet - 1);
+
+        if (newIsCombining) {
+            // When standing at second half of wide character and inserting combining:
+            if (wasExtraColForWideChar) columnToSet--;
+        } else {
+            // Check if we are overwriting the second half of a wide character starting at the previous column:
+            if (wasExtraColForWideChar) setChar(columnToSet - 1, ' ', style);
+            // Check if we are overwriting the first half of a wide character starting at the next column:
+            boolean overwritingWideCharInNextColumn = newCodePointDisplayWidth == 2 && wideDisplayCharacterStartingAt(columnToSet + 1);
+            if (overwritingWideCharInNextColumn) setChar(columnToSet + 1, ' ', style);
+        }
+
+        char[] text = mText;
+        final int oldStartOfColumnIndex = findStartOfColumn(columnToSet);
+        final int oldCodePointDisplayWidth = WcWidth.width(text, oldStartOfColumnIndex);
+
+        // Get the number of elements in the mText array this column uses now
+        int oldCharactersUsedForColumn;
+        if (columnToSet + oldCodePointDisplayWidth < mColumns) {
+            oldCharactersUsedForColumn = findStartOfColumn(columnToSet + oldCodePointDisplayWidth) - oldStartOfColumnIndex;
+        } else {
+            // Last character.
+            oldCharactersUsedForColumn = mSpaceUsed - oldStartOfColumnIndex;
+        }
+
+        // The characters before this column are left as they are, but the ones after it may move.
+        if (mKnownColumnStarts > columnToSet) mKnownColumnStarts = columnToSet;
+
+        // Find how many chars this column will need
+        int newCharactersUsedForColumn = Character.charCount(codePoint);
+        if (newIsCombining) {
+            // Combining characters are added to the contents of the column instead of overwriting them, so that they
+            // modify the existing contents.
+            // FIXME: Put a limit of combining characters.
+            // FIXME: Unassigned characters also get width=0.
+            newCharactersUsedForColumn += oldCharactersUsedForColumn;
+        }
+
+        int oldNextColumnIndex = oldStartOfColumnIndex + oldCharactersUsedForColumn;
+        int newNextColumnIndex = oldStartOfColumnIndex + newCharactersUsedForColumn;
+
+        final int javaCharDifference = newCharactersUsedForColumn - oldCharactersUsedForColumn;
+        if (javaCharDifference > 0) {
+            // Shift the rest of the line right.
+            int oldCharactersAfterColumn = mSpaceUsed - oldNextColumnIndex;
+            if (mSpaceUsed + javaCharDifference > text.length) {
+                // We need to grow the array
+                char[] newText = new char[text.length + mColumns];
+                System.arraycopy(text, 0, newText, 0, oldStartOfColumnIndex + oldCharactersUsedForColumn);
+                System.arraycopy(text, oldNextColumnIndex, newText, newNextColumnIndex, oldCharactersAfterColumn);
+                mText = text = newText;
+            } else {
+                System.arraycopy(text, oldNextColumnIndex, text, newNextColumnIndex, oldCharactersAfterColumn);
+            }
+        } else if (javaCharDifference < 0) {
+            // Shift the rest of the line left.
+            System.arraycopy(text, oldNextColumnIndex, text, newNextColumnIndex, mSpaceUsed - oldNextColumnIndex);
+        }
+        mSpaceUsed += javaCharDifference;
+
+        // Store char. A combining character is stored at the end of the existing contents so that it modifies them:
+        //noinspection ResultOfMethodCallIgnored - since we already now how many java chars is used.
+        Character.toChars(codePoint, text, oldStartOfColumnIndex + (newIsCombining ? oldCharactersUsedForColumn : 0));
+
+        if (oldCodePointDisplayWidth == 2 && newCodePointDisplayWidth == 1) {
+            // Replace second half of wide char with a space. Which mean that we actually add a ' ' java character.
+            if (mSpaceUsed + 1 > text.length) {
+                char[] newText = new char[text.length + mColumns];
+                System.arraycopy(text, 0, newText, 0, newNextColumnIndex);
+                System.arraycopy(text, newNextColumnIndex, newText, newNextColumnIndex + 1, mSpaceUsed - newNextColumnIndex);
+                mText = text = newText;
+            } else {
+                System.arraycopy(text, newNextColumnIndex, text, newNextColumnIndex + 1, mSpaceUsed - newNextColumnIndex);
+            }
+            text[newNextColumnIndex] = ' ';
+
+            ++mSpaceUsed;
+        } else if (oldCodePointDisplayWidth == 1 && newCodePointDisplayWidth == 2) {
+            if (columnToSet == mColumns - 1) {
+                throw new IllegalArgumentException("cannot put wide character in last column");
+            } else if (columnToSet == mColumns - 2) {
+                // Truncate the line to the second part of this wide char:
+                mSpaceUsed = (short) newNextColumnIndex;
+            } else {
+                // Overwrite the contents of the next column, which mean we actually remove java characters. Due to the
+                // check at the beginning of this method we know that we are not overwriting a wide char.
+                int newNextNextColumnIndex = newNextColumnIndex + (Character.isHighSurrogate(mText[newNextColumnIndex]) ? 2 : 1);
+                int nextLen = newNextNextColumnIndex - newNextColumnIndex;
+
+                // Shift the array leftwards.
+                System.arraycopy(text, newNextNextColumnIndex, text, newNextColumnIndex, mSpaceUsed - newNextNextColumnIndex);
+                mSpaceUsed -= nextLen;
+            }
+        }
+    }
+
+    /** Set a run of printable ASCII characters, each occupying one column, starting at the specified column. */
+    public void setAsciiChars(int column, int[] text, int offset, int count, long style) {
+        mVersion++;
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < count; i++)
+                setChar(column + i, text[offset + i], style);
+        } else {
+            for (int i = 0; i < count; i++)
+                mText[column + i] = (char) text[offset + i];
+            setStyle(column, column + count, style);
+        }
+    }
+
+    /**
+     * Prepare this row for having its content restored by a {@link TranscriptStore}, which will fill the returned
+     * text array up to the specified length and set the style of every column with {@link #setStyle}.
+     */
+    char[] restoreText(int length, boolean lineWrap, boolean hasNonOneWidthOrSurrogateChars) {
+        mVersion++;
+        if (mText.length < length) mText = new char[length];
+        mSpaceUsed = (short) length;
+        mLineWrap = lineWrap;
+        mHasNonOneWidthOrSurrogateChars = hasNonOneWidthOrSurrogateChars;
+        mKnownColumnStarts = 0;
+        mStyleStorage = STYLES_UNIFORM;
+        return mText;
+    }
+
+    /** Make this row a copy of another one with the same number of columns. */
+    void copyFrom(TerminalRow source) {
+        final char[] text = restoreText(source.mSpaceUsed, source.mLineWrap, source.mHasNonOneWidthOrSurrogateChars);
+        System.arraycopy(source.mText, 0, text, 0, source.mSpaceUsed);
+        for (int column = 0; column < mColumns; ) {
+            final int runEnd = source.getStyleRunEnd(column);
+            setStyle(column, runEnd, source.getStyle(column));
+            column = runEnd;
+        }
+    }
+
+    /** Set the style of the columns from fromColumn (inclusive) to toColumn (exclusive). */
+    void setStyle(int fromColumn, int toColumn, long style) {
+        if (fromColumn >= toColumn) return;
+        mVersion++;
+        if (mStyleStorage == STYLES_PER_COLUMN) {
+            Arrays.fill(mStyles, fromColumn, toColumn, style);
+            return;
+        }
+        if (fromColumn == 0 && toColumn == mColumns) {
+            mStyleStorage = STYLES_UNIFORM;
+            mUniformStyle = style;
+            return;
+        }
+        if (mStyleStorage == STYLES_UNIFORM) {
+            if (style == mUniformStyle) return;
+            if (mStyleSpanStarts == null) {
+                mStyleSpanStarts = new int[4];
+                mStyleSpanStyles = new long[4];
+            }
+            mStyleSpanStarts[0] = 0;
+            mStyleSpanStyles[0] = mUniformStyle;
+            mStyleSpanCount = 1;
+            mStyleStorage = STYLES_SPANS;
+        }
+
+        int[] starts = mStyleSpanStarts;
+        long[] styles = mStyleSpanStyles;
+        final int count = mStyleSpanCount;
+
+        // The spans before the range are kept, including the start of one which the range cuts short:
+        final int spanAtFrom = findStyleSpan(fromColumn);
+        final int kept = (starts[spanAtFrom] < fromColumn) ? spanAtFrom + 1 : spanAtFrom;
+        final boolean joinPrevious = kept > 0 && styles[kept - 1] == style;
+
+        // The spans after the range are kept, including the end of one which the range cuts into:
+        int firstAfter = count;
+        boolean splitAfter = false;
+        long styleAfter = 0;
+        if (toColumn < mColumns) {
+            final int spanAtTo = findStyleSpan(toColumn);
+            styleAfter = styles[spanAtTo];
+            if (starts[spanAtTo] == toColumn) {
+                firstAfter = (styleAfter == style) ? spanAtTo + 1 : spanAtTo;
+            } else {
+                firstAfter = spanAtTo + 1;
+                splitAfter = styleAfter != style;
+            }
+        }
+
+        final int newSpan = joinPrevious ? 0 : 1;
+        final int afterStart = kept + newSpan + (splitAfter ? 1 : 0);
+        final int newCount = afterStart + count - firstAfter;
+        if (newCount > MAX_STYLE_SPANS) {
+            if (mStyles == null) mStyles = new long[mColumns];
+            for (int i = 0; i < count; i++)
+                Arrays.fill(mStyles, starts[i], (i + 1 < count) ? starts[i + 1] : mColumns, styles[i]);
+            Arrays.fill(mStyles, fromColumn, toColumn, style);
+            mStyleStorage = STYLES_PER_COLUMN;
+            return;
+        } else if (newCount > starts.length) {
+            final int capacity = Math.min(2 * starts.length, MAX_STYLE_SPANS);
+            mStyleSpanStarts = starts = Arrays.copyOf(starts, capacity);
+            mStyleSpanStyles = styles = Arrays.copyOf(styles, capacity);
+        }
+
+        System.arraycopy(starts, firstAfter, starts, afterStart, count - firstAfter);
+        System.arraycopy(styles, firstAfter, styles, afterStart, count - firstAfter);
+        if (splitAfter) {
+            starts[afterStart - 1] = toColumn;
+            styles[afterStart - 1] = styleAfter;
+        }
+        if (!joinPrevious) {
+            starts[kept] = fromColumn;
+            styles[kept] = style;
+        }
+        mStyleSpanCount = newCount;
+        if (newCount == 1) {
+            mStyleStorage = STYLES_UNIFORM;
+            mUniformStyle = styles[0];
+        }
+    }
+
+    /** The index of the style span containing the specified column. */
+    private int findStyleSpan(int column) {
+        final int[] starts = mStyleSpanStarts;
+        int span = mStyleSpanCount - 1;
+        while (starts[span] > column)
+            span--;
+        return span;
+    }
+
+    boolean isBlank() {
+        for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
+            if (mText[charIndex] != ' ') return false;
+        return true;
+    }
+
+    public final long getStyle(int column) {
+        switch (mStyleStorage) {
+            case STYLES_UNIFORM:
+                return mUniformStyle;
+            case STYLES_SPANS:
+                return mStyleSpanStyles[findStyleSpan(column)];
+            default:
+                return mStyles[column];
+        }
+    }
+
+    /** The column after the run of columns with the same style as the specified one, for finding runs to draw. */
+    public int getStyleRunEnd(int column) {
+        switch (mStyleStorage) {
+            case STYLES_UNIFORM:
+                return mColumns;
+            case STYLES_SPANS:
+                final int span = findStyleSpan(column);
+                return (span + 1 < mStyleSpanCount) ? mStyleSpanStarts[span + 1] : mColumns;
+            default:
+                final long[] styles = mStyles;
+                final long style = styles[column];
+                int end = column + 1;
+                while (end < mColumns && styles[end] == style)
+                    end++;
+                return end;
+        }
+    }
+
+    /** A number which changes whenever the text or style of this row changes, for caching rendered rows. */
+    public int getVersion() {
+        return mVersion;
+    }
+
+}
@@ -25,7 +25,7 @@ package alpine.term.emulator;
 /**
  * <p>
  * Encodes effects, foreground and background colors into a 64 bit long, which are stored for each cell in a terminal
- * row in {@link TerminalRow#mStyle}.
+ * row by {@link TerminalRow}.
  * </p>
  * <p>
  * The bit layout is:
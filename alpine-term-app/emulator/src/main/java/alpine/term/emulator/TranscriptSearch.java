@@ -0,0 +1,266 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search of the text of a {@link TerminalBuffer}, the transcript included, where a line wrapped over several rows is
+ * searched as a whole.
+ * <p>
+ * Matches refer to rows by {@link TerminalBuffer#getLineNumber(int)}, which stays the same as rows scroll into the
+ * transcript. Rows do not change once a line has ended in the transcript, so they are only searched once: each search
+ * continues from {@link #getResumeLineNumber(TerminalBuffer)}, while the rows of the screen are searched every time.
+ * <p>
+ * {@link #search(TerminalBuffer)} runs on a snapshot of the buffer on any thread and may be cancelled by interrupting
+ * the thread. Everything else is done on the main thread.
+ */
+public final class TranscriptSearch {
+
+    /** How many rows are searched between checks for cancellation. */
+    private static final int ROWS_BETWEEN_CHECKS = 256;
+
+    /** A match from a start to an end position, the end column being exclusive. */
+    public static final class Match {
+        public final long mStartLine;
+        public final int mStartColumn;
+        public final long mEndLine;
+        public final int mEndColumn;
+
+        Match(long startLine, int startColumn, long endLine, int endColumn) {
+            mStartLine = startLine;
+            mStartColumn = startColumn;
+            mEndLine = endLine;
+            mEndColumn = endColumn;
+        }
+
+        /** Whether this match starts after the specified position. */
+        boolean isAfter(long line, int column) {
+            return mStartLine > line || (mStartLine == line && mStartColumn > column);
+        }
+    }
+
+    /** The matches found by {@link #search(TerminalBuffer)}, to be added with {@link #update(Result, TerminalBuffer)}. */
+    public static final class Result {
+        final int mReflowCount;
+        final long mFromLine;
+        /** The matches in lines which ended in the transcript. */
+        final ArrayList<Match> mFinalMatches = new ArrayList<>();
+        /** The first row of the first line which did not end in the transcript. */
+        long mFinalUpTo;
+        /** The matches in lines which end on the screen, which may still change. */
+        final ArrayList<Match> mScreenMatches = new ArrayList<>();
+
+        Result(int reflowCount, long fromLine) {
+            mReflowCount = reflowCount;
+            mFromLine = fromLine;
+        }
+    }
+
+    private final Pattern mPattern;
+
+    /** The reflow count of the buffer which the matches were found in. */
+    private int mReflowCount;
+    /** The matches in lines before {@link #mFinalUpTo}, which do not change anymore. */
+    private final ArrayList<Match> mFinalMatches = new ArrayList<>();
+    private long mFinalUpTo = Long.MIN_VALUE;
+    private List<Match> mScreenMatches = new ArrayList<>();
+
+    /**
+     * @param query     the text or regular expression to look for.
+     * @param regex     whether the query is a regular expression.
+     * @param matchCase whether upper and lower case are told apart.
+     * @throws java.util.regex.PatternSyntaxException if the regular expression is not valid.
+     */
+    public TranscriptSearch(String query, boolean regex, boolean matchCase) {
+        int flags = regex ? 0 : Pattern.LITERAL;
+        if (!matchCase) flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        mPattern = Pattern.compile(query, flags);
+    }
+
+    /** The line number from which rows are needed in the snapshot for the next search. */
+    public long getResumeLineNumber(TerminalBuffer buffer) {
+        return (buffer.getReflowCount() == mReflowCount) ? mFinalUpTo : Long.MIN_VALUE;
+    }
+
+    /**
+     * Search the rows of a snapshot. Lines are only searched once their last row has been read, which is the one
+     * without line wrap.
+     *
+     * @throws InterruptedException if the thread was interrupted to cancel the search.
+     */
+    public Result search(TerminalBuffer snapshot) throws InterruptedException {
+        final int firstRow = -snapshot.getActiveTranscriptRows();
+        final long lineNumberOfScreen = snapshot.getLineNumber(0);
+        final Result result = new Result(snapshot.getReflowCount(), lineNumberOfScreen + firstRow);
+        result.mFinalUpTo = lineNumberOfScreen;
+        final Matcher matcher = mPattern.matcher("");
+
+        // The text of the current line, with the row relative to the first one of the line, the column and the
+        // width of each char:
+        final StringBuilder text = new StringBuilder();
+        int[] rows = new int[256];
+        int[] columns = new int[256];
+        byte[] widths = new byte[256];
+        int lineStartRow = firstRow;
+
+        for (int row = firstRow; row < snapshot.mScreenRows; row++) {
+            if ((row - firstRow) % ROWS_BETWEEN_CHECKS == 0 && Thread.interrupted())
+                throw new InterruptedException();
+
+            final TerminalRow line = snapshot.getRowForReading(row);
+            final char[] chars = line.mText;
+            int length = line.getSpaceUsed();
+            if (!line.mLineWrap) {
+                while (length > 0 && chars[length - 1] == ' ')
+                    length--;
+            }
+            final int needed = text.length() + length;
+            if (needed > rows.length) {
+                final int capacity = Math.max(needed, 2 * rows.length);
+                rows = Arrays.copyOf(rows, capacity);
+                columns = Arrays.copyOf(columns, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+            }
+            int column = 0;
+            int glyph = text.length();
+            for (int i = 0; i < length; i++) {
+                final char c = chars[i];
+                final int index = text.length();
+                text.append(c);
+                if (!Character.isLowSurrogate(c) || i == 0 || !Character.isHighSurrogate(chars[i - 1])) {
+                    final int codePoint = (Character.isHighSurrogate(c) && i + 1 < length) ? Character.toCodePoint(c, chars[i + 1]) : c;
+                    final int width = WcWidth.width(codePoint);
+                    // A combining char at the start of a row has nothing to combine with:
+                    if (width > 0 || index == glyph) {
+                        glyph = index;
+                        columns[index] = column;
+                        widths[index] = (byte) Math.max(1, width);
+                        if (width > 0) column += width;
+                    }
+                }
+                // Combining chars and low surrogates belong to the glyph before them:
+                rows[index] = row - lineStartRow;
+                if (index != glyph) {
+                    columns[index] = columns[glyph];
+                    widths[index] = widths[glyph];
+                }
+            }
+
+            if (line.mLineWrap && row < snapshot.mScreenRows - 1) continue;
+            if (text.length() > 0) {
+                final boolean ended = row < 0;
+                final List<Match> into = ended ? result.mFinalMatches : result.mScreenMatches;
+                final long startLine = lineNumberOfScreen + lineStartRow;
+                matcher.reset(text);
+                while (matcher.find()) {
+                    final int start = matcher.start();
+                    final int last = matcher.end() - 1;
+                    if (last < start) continue;
+                    into.add(new Match(startLine + rows[start], columns[start], startLine + rows[last], columns[last] + widths[last]));
+                }
+                text.setLength(0);
+            }
+            if (row < 0) result.mFinalUpTo = lineNumberOfScreen + row + 1;
+            lineStartRow = row + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Add the result of a search, and drop the matches in rows which are no longer in the buffer.
+     *
+     * @return false if the buffer has been reflowed since the snapshot was taken, so that the result is of no use and
+     * the search needs to be done again.
+     */
+    public boolean update(Result result, TerminalBuffer buffer) {
+        if (result.mReflowCount != buffer.getReflowCount()) return false;
+        if (result.mReflowCount != mReflowCount) {
+            // The rows have new line numbers, and the result is of a search of all of them:
+            mFinalMatches.clear();
+            mReflowCount = result.mReflowCount;
+        }
+        removeMatchesFrom(result.mFromLine);
+        mFinalMatches.addAll(result.mFinalMatches);
+        mFinalUpTo = result.mFinalUpTo;
+        mScreenMatches = result.mScreenMatches;
+
+        final long firstLine = buffer.getLineNumber(-buffer.getActiveTranscriptRows());
+        int dropped = 0;
+        while (dropped < mFinalMatches.size() && mFinalMatches.get(dropped).mStartLine < firstLine)
+            dropped++;
+        mFinalMatches.subList(0, dropped).clear();
+        return true;
+    }
+
+    /** The number of matches. */
+    public int getMatchCount() {
+        return mFinalMatches.size() + mScreenMatches.size();
+    }
+
+    /** The match at the specified index, with matches being ordered by position. */
+    public Match getMatch(int index) {
+        return (index < mFinalMatches.size()) ? mFinalMatches.get(index) : mScreenMatches.get(index - mFinalMatches.size());
+    }
+
+    /** The index of the first match starting after the specified position, or the match count if there is none. */
+    public int indexOfMatchAfter(long line, int column) {
+        int low = 0;
+        int high = getMatchCount();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (getMatch(middle).isAfter(line, column)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /** The index of the first match which ends at or after the specified line, or the match count if there is none. */
+    public int indexOfMatchEndingFrom(long line) {
+        int low = 0;
+        int high = getMatchCount();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (getMatch(middle).mEndLine >= line) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private void removeMatchesFrom(long line) {
+        int keep = mFinalMatches.size();
+        while (keep > 0 && mFinalMatches.get(keep - 1).mStartLine >= line)
+            keep--;
+        mFinalMatches.subList(keep, mFinalMatches.size()).clear();
+    }
+}
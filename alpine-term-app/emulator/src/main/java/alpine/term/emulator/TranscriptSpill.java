@@ -0,0 +1,273 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Rows which have been dropped from the oldest end of a {@link TranscriptStore}, kept in append-only segment files.
+ * <p>
+ * The rows are stored as the records of {@link TranscriptStore} without their length prefix. Each segment holds rows
+ * of a single width and has an in-memory index of where each record starts. Segments are read through memory
+ * mappings, so that only the pages of the rows actually looked at are brought into memory.
+ * <p>
+ * Whole segments are deleted from the oldest end when the total size exceeds a limit or when they have not been
+ * written to for too long. Rows are referred to by index, with 0 being the oldest row kept.
+ */
+final class TranscriptSpill {
+
+    /** The size at which a segment is full and a new one is started. */
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** The size of the buffer collecting records before they are written to the newest segment. */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Segment {
+        final File mFile;
+        final FileChannel mChannel;
+        /** The number of columns of the rows in this segment. */
+        final int mColumns;
+        /** The offset of each record in the segment. */
+        int[] mOffsets = new int[1024];
+        int mCount;
+        /** The number of bytes of records, including those still in the write buffer. */
+        int mLength;
+        /** When a record was last added, in {@link System#currentTimeMillis()}. */
+        long mLastWriteTime;
+        /** A mapping of the start of the file, remapped when a record after its end is read. */
+        MappedByteBuffer mMapped;
+
+        Segment(File file, int columns) throws IOException {
+            mFile = file;
+            mChannel = new RandomAccessFile(file, "rw").getChannel();
+            mColumns = columns;
+        }
+
+        /** A copy for reading the records written so far, without a channel of its own. */
+        Segment(Segment source, MappedByteBuffer mapped) {
+            mFile = source.mFile;
+            mChannel = null;
+            mColumns = source.mColumns;
+            // Entries below the count are never changed, so the array can be shared:
+            mOffsets = source.mOffsets;
+            mCount = source.mCount;
+            mLength = source.mLength;
+            mLastWriteTime = source.mLastWriteTime;
+            mMapped = mapped;
+        }
+
+        void delete() {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            mMapped = null;
+            if (!mFile.delete()) EmulatorDebug.logWarning("failed to delete transcript segment " + mFile);
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mMaxAgeMillis;
+
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    /** Used for naming the segment files. */
+    private int mNextSegmentNumber;
+    /** The number of rows kept in all segments. */
+    private int mSize;
+    /** The number of bytes of records in all segments. */
+    private long mBytes;
+
+    /** Records added to the newest segment but not yet written to its file, which start at {@link #mBufferStart}. */
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private int mBufferStart;
+
+    /** The index of the first row of the segment last returned by {@link #findSegment(int)}. */
+    private int mSegmentFirstIndex;
+
+    /**
+     * @param directory    where to place the segment files, which is created if needed.
+     * @param maxBytes     the size of the segments above which the oldest ones are deleted.
+     * @param maxAgeMillis how long a segment is kept after it was last written to.
+     */
+    TranscriptSpill(File directory, long maxBytes, long maxAgeMillis) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /** The number of rows kept. */
+    int size() {
+        return mSize;
+    }
+
+    /** Add a record as the newest row, throwing if the segment files cannot be written. */
+    void append(byte[] record, int offset, int length, int columns) throws IOException {
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || segment.mColumns != columns || segment.mLength + length > SEGMENT_SIZE) {
+            if (segment != null) flush(segment);
+            segment = addSegment(columns);
+        }
+
+        if (segment.mCount == segment.mOffsets.length)
+            segment.mOffsets = Arrays.copyOf(segment.mOffsets, 2 * segment.mCount);
+        segment.mOffsets[segment.mCount++] = segment.mLength;
+        if (length > mWriteBuffer.remaining()) {
+            flush(segment);
+            if (length > mWriteBuffer.capacity()) {
+                writeFully(segment.mChannel, ByteBuffer.wrap(record, offset, length), segment.mLength);
+                mBufferStart += length;
+            }
+        }
+        if (length <= mWriteBuffer.capacity()) mWriteBuffer.put(record, offset, length);
+        segment.mLength += length;
+        segment.mLastWriteTime = System.currentTimeMillis();
+        mSize++;
+        mBytes += length;
+    }
+
+    /** The number of columns of a row, which is that of the emulator when the row was added. */
+    int getColumns(int index) {
+        return findSegment(index).mColumns;
+    }
+
+    /**
+     * Copy the record of a row to the start of the specified array, or to a new one if it does not fit.
+     *
+     * @return the array holding the record
+     */
+    byte[] read(int index, byte[] into) throws IOException {
+        final Segment segment = findSegment(index);
+        final int recordIndex = index - mSegmentFirstIndex;
+        final int start = segment.mOffsets[recordIndex];
+        final int end = (recordIndex + 1 < segment.mCount) ? segment.mOffsets[recordIndex + 1] : segment.mLength;
+        final int length = end - start;
+        if (into.length < length) into = new byte[length];
+
+        if (segment == mSegments.get(mSegments.size() - 1) && start >= mBufferStart) {
+            System.arraycopy(mWriteBuffer.array(), start - mBufferStart, into, 0, length);
+        } else {
+            MappedByteBuffer mapped = segment.mMapped;
+            if (mapped == null || mapped.capacity() < end) {
+                // A full segment is mapped once, while the newest one is mapped up to what has been written so far:
+                final int mapLength = (segment == mSegments.get(mSegments.size() - 1)) ? mBufferStart : segment.mLength;
+                mapped = segment.mMapped = segment.mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mapLength);
+            }
+            mapped.position(start);
+            mapped.get(into, 0, length);
+        }
+        return into;
+    }
+
+    /**
+     * Make a copy which may be read on another thread while this spill keeps growing. Every segment is mapped up
+     * front, so the copy never touches the files again and keeps working if they are deleted. It must not be
+     * appended to or cleared.
+     */
+    TranscriptSpill snapshot() throws IOException {
+        final TranscriptSpill copy = new TranscriptSpill(mDirectory, mMaxBytes, mMaxAgeMillis);
+        final int newest = mSegments.size() - 1;
+        for (int i = 0; i <= newest; i++) {
+            final Segment segment = mSegments.get(i);
+            final int mapLength = (i == newest) ? mBufferStart : segment.mLength;
+            copy.mSegments.add(new Segment(segment, segment.mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mapLength)));
+        }
+        copy.mSize = mSize;
+        copy.mBytes = mBytes;
+        copy.mWriteBuffer.put(mWriteBuffer.array(), 0, mWriteBuffer.position());
+        copy.mBufferStart = mBufferStart;
+        return copy;
+    }
+
+    /** Delete the oldest segments beyond the size and age limits, always keeping the one being written to. */
+    void applyRetention() {
+        final long now = System.currentTimeMillis();
+        while (mSegments.size() > 1) {
+            final Segment oldest = mSegments.get(0);
+            if (mBytes <= mMaxBytes && now - oldest.mLastWriteTime <= mMaxAgeMillis) break;
+            mSegments.remove(0);
+            mSize -= oldest.mCount;
+            mBytes -= oldest.mLength;
+            oldest.delete();
+        }
+    }
+
+    /** Delete all segments. The spill may be used again afterwards. */
+    void clear() {
+        for (Segment segment : mSegments)
+            segment.delete();
+        mSegments.clear();
+        mSize = 0;
+        mBytes = 0;
+        mWriteBuffer.clear();
+        mBufferStart = 0;
+        mDirectory.delete();
+    }
+
+    private Segment findSegment(int index) {
+        if (index < 0 || index >= mSize) throw new IllegalArgumentException("index=" + index + ", size=" + mSize);
+        // Search from the newest segment, since rows close to the screen are looked at the most:
+        int firstIndex = mSize;
+        for (int i = mSegments.size() - 1; ; i--) {
+            final Segment segment = mSegments.get(i);
+            firstIndex -= segment.mCount;
+            if (index >= firstIndex) {
+                mSegmentFirstIndex = firstIndex;
+                return segment;
+            }
+        }
+    }
+
+    private Segment addSegment(int columns) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("failed to create directory " + mDirectory);
+        final Segment segment = new Segment(new File(mDirectory, "segment-" + mNextSegmentNumber++), columns);
+        mSegments.add(segment);
+        mWriteBuffer.clear();
+        mBufferStart = 0;
+        applyRetention();
+        return segment;
+    }
+
+    /** Write the buffered records to the newest segment. */
+    private void flush(Segment segment) throws IOException {
+        mWriteBuffer.flip();
+        final int length = mWriteBuffer.remaining();
+        writeFully(segment.mChannel, mWriteBuffer, mBufferStart);
+        mBufferStart += length;
+        mWriteBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
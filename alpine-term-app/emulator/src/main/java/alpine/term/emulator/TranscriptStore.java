@@ -0,0 +1,517 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Compact storage for the rows of a {@link TerminalBuffer} which have scrolled off the top of the screen.
+ * <p>
+ * Each row is encoded as a record in a direct {@link ByteBuffer} chunk outside of the Java heap:
+ *
+ * <pre>
+ * - the length of the rest of the record, as a varint
+ * - flags: line wrap and whether the row may contain characters not one column wide
+ * - the number of java chars in the text after trailing spaces are stripped, and the number of stripped spaces
+ * - the stripped text as UTF-8, where unpaired surrogates are encoded as three bytes like other BMP characters
+ * - the styles as runs of (number of columns, style)
+ * </pre>
+ * <p>
+ * A circular index holds the location of each record, and rows are dropped from the oldest end when the capacity is
+ * reached. The index starts small and grows as rows are added, so that a large capacity costs nothing until it is
+ * used. A chunk is released once no row in it is kept anymore.
+ * <p>
+ * Snapshots share the chunks instead of copying them. Bytes which a snapshot may read are never written again, and a
+ * shared chunk is not reused once released.
+ * <p>
+ * With a {@link TranscriptSpill}, the oldest rows are moved to it instead of being dropped. Rows are referred to by
+ * index, with 0 being the oldest row kept, spilled rows included.
+ */
+final class TranscriptStore {
+
+    /** The size of a chunk, unless a single record needs more. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** The initial number of entries of {@link #mLocations}, which then doubles as needed up to the capacity. */
+    private static final int INITIAL_LOCATIONS = 256;
+
+    /** The maximum number of bytes of the varint holding the length of a record. */
+    private static final int MAX_LENGTH_BYTES = 5;
+
+    private static final int FLAG_LINE_WRAP = 1;
+    private static final int FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS = 2;
+
+    /** The number of columns of the stored rows. */
+    private final int mColumns;
+    /** The maximum number of rows kept. */
+    private int mCapacity;
+    /**
+     * Circular index of record locations, each being the chunk sequence number in the upper and offset in the lower
+     * half. Its length is at most the capacity.
+     */
+    private long[] mLocations;
+    /** The position in {@link #mLocations} of the oldest row. */
+    private int mFirst;
+    /** The number of rows kept. */
+    private int mSize;
+    /** Incremented for each row dropped from the oldest end, so that rows can be identified across drops. */
+    private long mFirstLineNumber;
+
+    /** The chunks in use, the first of which has sequence number {@link #mFirstChunkSequence}. */
+    private final ArrayList<ByteBuffer> mChunks = new ArrayList<>();
+    private long mFirstChunkSequence;
+    /** The offset in the last chunk where the next record is written. */
+    private int mWriteOffset;
+    /** A released chunk kept for reuse, to avoid churning direct memory. */
+    private ByteBuffer mSpareChunk;
+    /** The chunks with a sequence number below this have been shared with a snapshot. */
+    private long mSharedChunksEnd;
+    /** The write offset in the last chunk when it was shared, below which it must not be written to. */
+    private int mSharedWriteOffset;
+
+    /** Where the oldest rows are moved instead of being dropped, or null. */
+    private TranscriptSpill mSpill;
+    /** A row for decoding spilled rows with another number of columns. */
+    private TerminalRow mSpillRow;
+    private int mSpillRowColumns;
+
+    /** Scratch space for encoding and decoding a record. */
+    private byte[] mRecord = new byte[256];
+    /** Position in {@link #mRecord} while decoding. */
+    private int mReadPosition;
+
+    TranscriptStore(int columns, int capacity) {
+        mColumns = columns;
+        mCapacity = capacity;
+        mLocations = new long[Math.min(capacity, INITIAL_LOCATIONS)];
+    }
+
+    /** The number of rows kept, including those spilled. */
+    int size() {
+        return mSize + getSpilledRows();
+    }
+
+    /** The number of rows kept in memory, which are the newest ones. */
+    int getRowsInMemory() {
+        return mSize;
+    }
+
+    private int getSpilledRows() {
+        return (mSpill == null) ? 0 : mSpill.size();
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /** The line number of the row at index 0, which increases as rows are dropped. */
+    long getFirstLineNumber() {
+        return mFirstLineNumber - getSpilledRows();
+    }
+
+    /** Move the oldest rows to the specified spill from now on, deleting the rows of any previous one. */
+    void setSpill(TranscriptSpill spill) {
+        if (mSpill != null && mSpill != spill) mSpill.clear();
+        mSpill = spill;
+    }
+
+    /** Stop using the spill and return it, with the rows in it no longer being part of this store. */
+    TranscriptSpill detachSpill() {
+        final TranscriptSpill spill = mSpill;
+        mSpill = null;
+        return spill;
+    }
+
+    /**
+     * Delete the rows of the spill and stop using it.
+     *
+     * @return whether any rows were deleted
+     */
+    boolean closeSpill() {
+        if (mSpill == null) return false;
+        final boolean deleted = mSpill.size() > 0;
+        mSpill.clear();
+        mSpill = null;
+        return deleted;
+    }
+
+    /**
+     * Copy the rows from the specified index on into a new store which may be read on another thread while this one
+     * keeps changing. Only the index of the rows is copied, while the chunks holding the records are shared. Spilled
+     * rows are read from the same segment files, and are only included if the index is among them.
+     */
+    TranscriptStore snapshot(int fromIndex) {
+        final int spilledRows = getSpilledRows();
+        final int skipped = Math.max(0, Math.min(fromIndex - spilledRows, mSize));
+        final int size = mSize - skipped;
+        final TranscriptStore copy = new TranscriptStore(mColumns, size);
+        copy.mLocations = new long[size];
+        if (size > 0) {
+            final int start = (mFirst + skipped) % mLocations.length;
+            final int untilWrap = Math.min(size, mLocations.length - start);
+            System.arraycopy(mLocations, start, copy.mLocations, 0, untilWrap);
+            System.arraycopy(mLocations, 0, copy.mLocations, untilWrap, size - untilWrap);
+        }
+        copy.mSize = size;
+        copy.mFirstLineNumber = mFirstLineNumber + skipped;
+        // Only the chunks from the one holding the first row copied are needed:
+        final long firstSequence = (size == 0) ? mFirstChunkSequence + mChunks.size() : copy.mLocations[0] >>> 32;
+        for (int i = (int) (firstSequence - mFirstChunkSequence); i < mChunks.size(); i++)
+            copy.mChunks.add(mChunks.get(i).asReadOnlyBuffer());
+        copy.mFirstChunkSequence = firstSequence;
+        copy.mWriteOffset = mWriteOffset;
+        mSharedChunksEnd = mFirstChunkSequence + mChunks.size();
+        mSharedWriteOffset = mWriteOffset;
+        if (mSpill != null && fromIndex < spilledRows) {
+            try {
+                copy.mSpill = mSpill.snapshot();
+            } catch (IOException e) {
+                EmulatorDebug.logError("failed to map spilled transcript rows, leaving them out", e);
+            }
+        }
+        return copy;
+    }
+
+    /** Change the maximum number of rows kept, dropping the oldest rows if necessary. */
+    void setCapacity(int capacity) {
+        if (capacity == mCapacity) return;
+        while (mSize > capacity) dropOldest();
+        mCapacity = capacity;
+        if (mLocations.length > capacity) resizeLocations(capacity);
+    }
+
+    /**
+     * Drop or spill the oldest rows so that at most the specified number is kept in memory, and give back the memory
+     * they used. The capacity is unchanged, so that the history may grow again afterwards.
+     *
+     * @return the number of rows removed from memory
+     */
+    int trim(int maxRows) {
+        final int dropped = Math.max(0, mSize - maxRows);
+        for (int i = 0; i < dropped; i++)
+            dropOldest();
+        final int length = Math.min(mCapacity, Math.max(mSize, INITIAL_LOCATIONS));
+        if (mLocations.length > length) resizeLocations(length);
+        mSpareChunk = null;
+        if (mSpill != null) mSpill.applyRetention();
+        return dropped;
+    }
+
+    /** Add a row as the newest one, dropping the oldest row if full. */
+    void push(TerminalRow row) {
+        if (mCapacity == 0) return;
+        if (mSize == mCapacity) {
+            dropOldest();
+        } else if (mSize == mLocations.length) {
+            resizeLocations((int) Math.min(mCapacity, Math.max(INITIAL_LOCATIONS, 2L * mLocations.length)));
+        }
+
+        // The record is encoded after room for its length, which is then written just before it:
+        final int length = encode(row, MAX_LENGTH_BYTES) - MAX_LENGTH_BYTES;
+        final int start = MAX_LENGTH_BYTES - varintLength(length);
+        writeVarint(mRecord, start, length);
+        final int required = MAX_LENGTH_BYTES + length - start;
+        ByteBuffer chunk = mChunks.isEmpty() ? null : mChunks.get(mChunks.size() - 1);
+        if (chunk == null || chunk.capacity() - mWriteOffset < required) chunk = addChunk(required);
+
+        mLocations[(mFirst + mSize) % mLocations.length] = ((mFirstChunkSequence + mChunks.size() - 1) << 32) | mWriteOffset;
+        mSize++;
+
+        chunk.position(mWriteOffset);
+        chunk.put(mRecord, start, required);
+        mWriteOffset += required;
+    }
+
+    /** Decode the row at the specified index into a row with the same number of columns. */
+    void read(int index, TerminalRow into) {
+        if (index < 0 || index >= size()) throw new IllegalArgumentException("index=" + index + ", size=" + size());
+        final int spilledRows = getSpilledRows();
+        if (index < spilledRows) {
+            readSpilled(index, into);
+            return;
+        }
+        index -= spilledRows;
+        readRecord(index);
+        decode(mRecord, mColumns, into);
+    }
+
+    /** Decode the newest row in memory into a row with the same number of columns and remove it. */
+    void popNewest(TerminalRow into) {
+        readRecord(mSize - 1);
+        decode(mRecord, mColumns, into);
+        long location = mLocations[(mFirst + mSize - 1) % mLocations.length];
+        mSize--;
+        // Reclaim the space if the record is at the end of the last chunk, which it is unless a chunk was skipped,
+        // except for what a snapshot may still read:
+        final long lastSequence = mFirstChunkSequence + mChunks.size() - 1;
+        if ((location >>> 32) == lastSequence)
+            mWriteOffset = (lastSequence < mSharedChunksEnd) ? Math.max((int) location, mSharedWriteOffset) : (int) location;
+    }
+
+    boolean getLineWrap(int index) {
+        if (index < 0 || index >= size()) throw new IllegalArgumentException("index=" + index + ", size=" + size());
+        final int spilledRows = getSpilledRows();
+        if (index < spilledRows) {
+            try {
+                mRecord = mSpill.read(index, mRecord);
+            } catch (IOException e) {
+                EmulatorDebug.logError("failed to read spilled transcript row", e);
+                return false;
+            }
+            return (mRecord[0] & FLAG_LINE_WRAP) != 0;
+        }
+        index -= spilledRows;
+        long location = mLocations[(mFirst + index) % mLocations.length];
+        ByteBuffer chunk = mChunks.get((int) ((location >>> 32) - mFirstChunkSequence));
+        chunk.position((int) location);
+        while ((chunk.get() & 0x80) != 0) {
+            // Skip the record length.
+        }
+        return (chunk.get() & FLAG_LINE_WRAP) != 0;
+    }
+
+    /** Drop all rows, including those spilled. */
+    void clear() {
+        if (mSpill != null) mSpill.clear();
+        mFirstLineNumber += mSize;
+        mFirst = mSize = 0;
+        releaseChunks(mFirstChunkSequence + mChunks.size());
+    }
+
+    /** The number of bytes used outside of the Java heap. */
+    long getMemoryUsage() {
+        long bytes = (mSpareChunk == null) ? 0 : mSpareChunk.capacity();
+        for (ByteBuffer chunk : mChunks)
+            bytes += chunk.capacity();
+        return bytes;
+    }
+
+    private void dropOldest() {
+        if (mSpill != null) {
+            final int length = readRecord(0);
+            try {
+                mSpill.append(mRecord, 0, length, mColumns);
+            } catch (IOException e) {
+                EmulatorDebug.logError("failed to spill transcript, dropping rows instead", e);
+                closeSpill();
+            }
+        }
+        mFirst = (mFirst + 1) % mLocations.length;
+        mSize--;
+        mFirstLineNumber++;
+        if (mSize == 0) {
+            releaseChunks(mFirstChunkSequence + mChunks.size());
+        } else {
+            releaseChunks(mLocations[mFirst] >>> 32);
+        }
+    }
+
+    /** Move the index to a new array of the specified length, which must hold all rows kept. */
+    private void resizeLocations(int length) {
+        final long[] locations = new long[length];
+        for (int i = 0; i < mSize; i++)
+            locations[i] = mLocations[(mFirst + i) % mLocations.length];
+        mLocations = locations;
+        mFirst = 0;
+    }
+
+    /** Release the chunks with a sequence number below the specified one. */
+    private void releaseChunks(long sequence) {
+        while (mFirstChunkSequence < sequence && !mChunks.isEmpty()) {
+            ByteBuffer chunk = mChunks.remove(0);
+            if (chunk.capacity() == CHUNK_SIZE && mFirstChunkSequence >= mSharedChunksEnd) mSpareChunk = chunk;
+            mFirstChunkSequence++;
+        }
+        if (mChunks.isEmpty()) mWriteOffset = 0;
+    }
+
+    private ByteBuffer addChunk(int required) {
+        ByteBuffer chunk;
+        if (required <= CHUNK_SIZE && mSpareChunk != null) {
+            chunk = mSpareChunk;
+            mSpareChunk = null;
+        } else {
+            chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, required));
+        }
+        mChunks.add(chunk);
+        mWriteOffset = 0;
+        return chunk;
+    }
+
+    /** Decode a spilled row, which is cut off or padded if it has another number of columns than this store. */
+    private void readSpilled(int index, TerminalRow into) {
+        try {
+            mRecord = mSpill.read(index, mRecord);
+        } catch (IOException e) {
+            EmulatorDebug.logError("failed to read spilled transcript row", e);
+            into.clear(0);
+            return;
+        }
+        final int columns = mSpill.getColumns(index);
+        if (columns == mColumns) {
+            decode(mRecord, columns, into);
+            return;
+        }
+        if (mSpillRow == null || mSpillRowColumns != columns) {
+            mSpillRow = new TerminalRow(columns, 0);
+            mSpillRowColumns = columns;
+        }
+        decode(mRecord, columns, mSpillRow);
+        into.clear(mSpillRow.getStyle(columns - 1));
+        into.copyInterval(mSpillRow, 0, Math.min(columns, mColumns), 0);
+        into.mLineWrap = mSpillRow.mLineWrap;
+    }
+
+    /** Copy the record at the specified index in memory into {@link #mRecord}, returning its length. */
+    private int readRecord(int index) {
+        long location = mLocations[(mFirst + index) % mLocations.length];
+        ByteBuffer chunk = mChunks.get((int) ((location >>> 32) - mFirstChunkSequence));
+        chunk.position((int) location);
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = chunk.get();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (mRecord.length < length) mRecord = new byte[length];
+        chunk.get(mRecord, 0, length);
+        return length;
+    }
+
+    /** Encode a row into {@link #mRecord} starting at the specified position, returning the position after it. */
+    private int encode(TerminalRow row, int position) {
+        final char[] text = row.mText;
+        final int spaceUsed = row.getSpaceUsed();
+        int textEnd = spaceUsed;
+        while (textEnd > 0 && text[textEnd - 1] == ' ')
+            textEnd--;
+
+        // Flags and two varints, at most three bytes per char and at most 5 + 10 bytes per style run:
+        final int maxLength = position + 1 + 5 + 5 + 3 * textEnd + 15 * mColumns;
+        if (mRecord.length < maxLength) mRecord = new byte[maxLength];
+        final byte[] record = mRecord;
+
+        record[position++] = (byte) ((row.mLineWrap ? FLAG_LINE_WRAP : 0)
+            | (row.mHasNonOneWidthOrSurrogateChars ? FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS : 0));
+        position = writeVarint(record, position, textEnd);
+        position = writeVarint(record, position, spaceUsed - textEnd);
+
+        for (int i = 0; i < textEnd; i++) {
+            final char c = text[i];
+            if (c < 0x80) {
+                record[position++] = (byte) c;
+            } else if (c < 0x800) {
+                record[position++] = (byte) (0xC0 | (c >> 6));
+                record[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < textEnd && Character.isLowSurrogate(text[i + 1])) {
+                final int codePoint = Character.toCodePoint(c, text[++i]);
+                record[position++] = (byte) (0xF0 | (codePoint >> 18));
+                record[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                record[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                record[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                record[position++] = (byte) (0xE0 | (c >> 12));
+                record[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                record[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        for (int column = 0; column < mColumns; ) {
+            final long style = row.getStyle(column);
+            final int runEnd = row.getStyleRunEnd(column);
+            position = writeVarint(record, position, runEnd - column);
+            for (long value = style; ; value >>>= 7) {
+                if ((value & ~0x7FL) == 0) {
+                    record[position++] = (byte) value;
+                    break;
+                }
+                record[position++] = (byte) ((value & 0x7F) | 0x80);
+            }
+            column = runEnd;
+        }
+        return position;
+    }
+
+    /** Decode a record into a row with the specified number of columns. */
+    private void decode(byte[] record, int columns, TerminalRow into) {
+        mReadPosition = 0;
+        final int flags = record[mReadPosition++];
+        final int textLength = (int) readVarint(record);
+        final int trailingSpaces = (int) readVarint(record);
+        final char[] text = into.restoreText(textLength + trailingSpaces, (flags & FLAG_LINE_WRAP) != 0,
+            (flags & FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS) != 0);
+
+        int position = mReadPosition;
+        for (int i = 0; i < textLength; ) {
+            final int b = record[position++] & 0xFF;
+            if (b < 0x80) {
+                text[i++] = (char) b;
+            } else if (b < 0xE0) {
+                text[i++] = (char) (((b & 0x1F) << 6) | (record[position++] & 0x3F));
+            } else if (b < 0xF0) {
+                text[i++] = (char) (((b & 0x0F) << 12) | ((record[position++] & 0x3F) << 6) | (record[position++] & 0x3F));
+            } else {
+                final int codePoint = ((b & 0x07) << 18) | ((record[position++] & 0x3F) << 12)
+                    | ((record[position++] & 0x3F) << 6) | (record[position++] & 0x3F);
+                text[i++] = Character.highSurrogate(codePoint);
+                text[i++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        for (int i = textLength; i < textLength + trailingSpaces; i++)
+            text[i] = ' ';
+        mReadPosition = position;
+
+        for (int column = 0; column < columns; ) {
+            final int runLength = (int) readVarint(record);
+            into.setStyle(column, column + runLength, readVarint(record));
+            column += runLength;
+        }
+    }
+
+    private long readVarint(byte[] record) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = record[mReadPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    private static int writeVarint(byte[] record, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            record[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        record[position++] = (byte) value;
+        return position;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+            length++;
+        return length;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The URLs in the rows of a transcript, found as the rows are added to it so that they do not have to be searched for
+ * in the whole history when needed.
+ * <p>
+ * Rows are collected until one without line wrap ends the line, which is then searched as a whole. Only the most
+ * recently found URLs are kept, and finding a URL again makes it the newest one.
+ */
+final class UrlIndex {
+
+    /** The maximum number of URLs kept. */
+    private static final int MAX_URLS = 1000;
+
+    /** The length above which a line is searched before it ends, keeping only its end for the rows to come. */
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    private static final int KEPT_LINE_LENGTH = 1024;
+
+    static final Pattern URL_PATTERN = buildUrlPattern();
+    /** What every URL matched by {@link #URL_PATTERN} contains. */
+    private static final String SCHEME_SEPARATOR = "://";
+
+    private final Matcher mMatcher = URL_PATTERN.matcher("");
+    /** The URLs found, oldest first. */
+    private final LinkedHashSet<String> mUrls = new LinkedHashSet<>();
+    /** The text of the rows of the current line, which have all had their line wrap set. */
+    private final StringBuilder mLine = new StringBuilder();
+    /** Where each row in {@link #mLine} starts, so that rows taken back out of the transcript can be removed. */
+    private int[] mRowStarts = new int[8];
+    private int mRowCount;
+
+    /** Add the newest row of the transcript. */
+    void addRow(TerminalRow row) {
+        if (mRowCount == mRowStarts.length) mRowStarts = Arrays.copyOf(mRowStarts, 2 * mRowCount);
+        mRowStarts[mRowCount++] = mLine.length();
+        mLine.append(row.mText, 0, row.getSpaceUsed());
+        if (!row.mLineWrap) {
+            search(mLine, mUrls);
+            clearLine();
+        } else if (mLine.length() > MAX_LINE_LENGTH) {
+            searchLongLine();
+        }
+    }
+
+    /** Remove the newest row, which has been moved from the transcript back to the screen. */
+    void removeNewestRow() {
+        if (mRowCount > 0) mLine.setLength(mRowStarts[--mRowCount]);
+    }
+
+    /** Forget the current line, for instance when the transcript is about to be added again after a reflow. */
+    void clearLine() {
+        mLine.setLength(0);
+        mRowCount = 0;
+    }
+
+    /** Forget everything, when the transcript has been cleared. */
+    void clear() {
+        mUrls.clear();
+        clearLine();
+    }
+
+    /**
+     * The URLs found so far together with those in the specified text, oldest first.
+     *
+     * @param text the rows after the transcript, continuing its current line.
+     */
+    LinkedHashSet<String> getUrls(CharSequence text) {
+        final LinkedHashSet<String> urls = new LinkedHashSet<>(mUrls);
+        search(new StringBuilder(mLine).append(text), urls);
+        return urls;
+    }
+
+    private void search(StringBuilder text, LinkedHashSet<String> into) {
+        // Trying the pattern at every position is slow, and most lines have no URL:
+        if (text.indexOf(SCHEME_SEPARATOR) == -1) return;
+        mMatcher.reset(text);
+        while (mMatcher.find())
+            add(text.subSequence(mMatcher.start(1), mMatcher.end()).toString(), into);
+        mMatcher.reset("");
+    }
+
+    /** Search the start of a very long line, keeping its end and any URL which may continue in the rows to come. */
+    private void searchLongLine() {
+        final int limit = mLine.length() - KEPT_LINE_LENGTH;
+        int keepFrom = limit;
+        mMatcher.reset(mLine.indexOf(SCHEME_SEPARATOR) == -1 ? "" : mLine);
+        while (mMatcher.find()) {
+            if (mMatcher.end() > limit) {
+                if (mMatcher.start(1) > 0) keepFrom = Math.min(keepFrom, mMatcher.start(1));
+                break;
+            }
+            add(mLine.substring(mMatcher.start(1), mMatcher.end()), mUrls);
+        }
+        mMatcher.reset("");
+        mLine.delete(0, keepFrom);
+        // The rows which were cut off can no longer be removed one by one:
+        mRowCount = 0;
+    }
+
+    private static void add(String url, LinkedHashSet<String> into) {
+        // Found again, so move it to the newest end:
+        into.remove(url);
+        into.add(url);
+        if (into.size() > MAX_URLS) {
+            final Iterator<String> oldest = into.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    @SuppressWarnings("StringBufferReplaceableByString")
+    private static Pattern buildUrlPattern() {
+        StringBuilder regex_sb = new StringBuilder();
+
+        regex_sb.append("(");                       // Begin first matching group.
+        regex_sb.append("(?:");                     // Begin scheme group.
+        regex_sb.append("dav|");                    // The DAV proto.
+        regex_sb.append("dict|");                   // The DICT proto.
+        regex_sb.append("dns|");                    // The DNS proto.
+        regex_sb.append("file|");                   // File path.
+        regex_sb.append("finger|");                 // The Finger proto.
+        regex_sb.append("ftp(?:s?)|");              // The FTP proto.
+        regex_sb.append("git|");                    // The Git proto.
+        regex_sb.append("gopher|");                 // The Gopher proto.
+        regex_sb.append("http(?:s?)|");             // The HTTP proto.
+        regex_sb.append("imap(?:s?)|");             // The IMAP proto.
+        regex_sb.append("irc(?:[6s]?)|");           // The IRC proto.
+        regex_sb.append("ip[fn]s|");                // The IPFS proto.
+        regex_sb.append("ldap(?:s?)|");             // The LDAP proto.
+        regex_sb.append("pop3(?:s?)|");             // The POP3 proto.
+        regex_sb.append("redis(?:s?)|");            // The Redis proto.
+        regex_sb.append("rsync|");                  // The Rsync proto.
+        regex_sb.append("rtsp(?:[su]?)|");          // The RTSP proto.
+        regex_sb.append("sftp|");                   // The SFTP proto.
+        regex_sb.append("smb(?:s?)|");              // The SAMBA proto.
+        regex_sb.append("smtp(?:s?)|");             // The SMTP proto.
+        regex_sb.append("svn(?:(?:\\+ssh)?)|");     // The Subversion proto.
+        regex_sb.append("tcp|");                    // The TCP proto.
+        regex_sb.append("telnet|");                 // The Telnet proto.
+        regex_sb.append("tftp|");                   // The TFTP proto.
+        regex_sb.append("udp|");                    // The UDP proto.
+        regex_sb.append("vnc|");                    // The VNC proto.
+        regex_sb.append("ws(?:s?)");                // The Websocket proto.
+        regex_sb.append(")://");                    // End scheme group.
+        regex_sb.append(")");                       // End first matching group.
+
+        // Begin second matching group.
+        regex_sb.append("(");
+
+        // User name and/or password in format 'user:pass@'.
+        regex_sb.append("(?:\\S+(?::\\S*)?@)?");
+
+        // Begin host group.
+        regex_sb.append("(?:");
+
+        // IP address (from http://www.regular-expressions.info/examples.html).
+        regex_sb.append("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)|");
+
+        // Host name or domain.
+        regex_sb.append("(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)(?:(?:\\.(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)*(?:\\.(?:[a-z\\u00a1-\\uffff]{2,})))?|");
+
+        // Just path. Used in case of 'file://' scheme.
+        regex_sb.append("/(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)");
+
+        // End host group.
+        regex_sb.append(")");
+
+        // Port number.
+        regex_sb.append("(?::\\d{1,5})?");
+
+        // Resource path with optional query string.
+        regex_sb.append("(?:/[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
+
+        // Fragment.
+        regex_sb.append("(?:#[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
+
+        // End second matching group.
+        regex_sb.append(")");
+
+        return Pattern.compile(
+            regex_sb.toString(),
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
+    }
+}
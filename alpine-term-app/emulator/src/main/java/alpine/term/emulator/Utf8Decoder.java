@@ -0,0 +1,193 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decodes chunks of UTF-8 input into code points for {@link TerminalEmulator}, keeping the state of a sequence which
+ * is split between chunks.
+ * <p>
+ * Ill-formed input is replaced with {@link TerminalEmulator#UNICODE_REPLACEMENT_CHAR} and decoded C1 control
+ * characters are dropped.
+ */
+final class Utf8Decoder {
+
+    /**
+     * Output in place of an incomplete sequence interrupted by a byte which is not a continuation byte. It is displayed
+     * as the replacement char regardless of the escape state, after which the interrupting byte is decoded on its own.
+     */
+    static final int INTERRUPTED_SEQUENCE = -1;
+
+    private static final int PAGE_SHIFT = 12;
+
+    /**
+     * Bitmaps of the code points which {@link Character#getType(int)} reports as unassigned or surrogate, in pages of
+     * 4096 code points. A page is computed the first time a code point in it is decoded.
+     */
+    private static final AtomicReferenceArray<long[]> sInvalidCodePointPages = new AtomicReferenceArray<>((Character.MAX_CODE_POINT + 1) >> PAGE_SHIFT);
+
+    private final byte[] mSequence = new byte[4];
+    private int mSequenceLength;
+    private int mBytesToFollow;
+
+    /**
+     * Decode bytes into code points.
+     *
+     * @param input      the bytes to decode
+     * @param length     the number of bytes in the array to decode
+     * @param codePoints receives the decoded code points, must have room for at least {@code length + 1} of them
+     * @return the number of code points stored in {@code codePoints}
+     */
+    int decode(byte[] input, int length, int[] codePoints) {
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            if (mBytesToFollow == 0) {
+                // Check eight bytes at a time for the common case of plain ASCII.
+                while (i + 8 <= length && ((input[i] | input[i + 1] | input[i + 2] | input[i + 3] | input[i + 4] | input[i + 5] | input[i + 6] | input[i + 7]) & 0b10000000) == 0) {
+                    for (int end = i + 8; i < end; i++)
+                        codePoints[count++] = input[i];
+                }
+                if (i == length) break;
+            }
+            count = decodeByte(input[i++], codePoints, count);
+        }
+        return count;
+    }
+
+    /**
+     * Decode the remaining bytes of a buffer into code points, reading them in place, and advance its position to its
+     * limit.
+     *
+     * @param codePoints receives the decoded code points, must have room for at least {@code input.remaining() + 1}
+     *                   of them
+     * @return the number of code points stored in {@code codePoints}
+     */
+    int decode(ByteBuffer input, int[] codePoints) {
+        final int length = input.limit();
+        int count = 0;
+        int i = input.position();
+        while (i < length) {
+            if (mBytesToFollow == 0) {
+                // Check eight bytes at a time for the common case of plain ASCII, in a single load.
+                while (i + 8 <= length && (input.getLong(i) & 0x8080808080808080L) == 0) {
+                    for (int end = i + 8; i < end; i++)
+                        codePoints[count++] = input.get(i);
+                }
+                if (i == length) break;
+            }
+            count = decodeByte(input.get(i++), codePoints, count);
+        }
+        ((Buffer) input).position(length);
+        return count;
+    }
+
+    /** Decode a byte outside of a run of ASCII, storing what it completes at {@code count} and returning the new count. */
+    private int decodeByte(byte b, int[] codePoints, int count) {
+        if (mBytesToFollow > 0) {
+            if ((b & 0b11000000) == 0b10000000) {
+                // 10xxxxxx, a continuation byte.
+                mSequence[mSequenceLength++] = b;
+                if (--mBytesToFollow == 0) {
+                    int codePoint = decodeSequence();
+                    mSequenceLength = 0;
+                    if (codePoint < 0x80 || codePoint > 0x9F) {
+                        // Sequences decoding to C1 control characters are ignored. They are not used nowadays and
+                        // increases the risk of messing up the terminal state on binary input. XTerm does not allow
+                        // them in utf-8: "It is not possible to use a C1 control obtained from decoding the UTF-8
+                        // text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
+                        codePoints[count++] = isUnassignedOrSurrogate(codePoint) ? TerminalEmulator.UNICODE_REPLACEMENT_CHAR : codePoint;
+                    }
+                }
+                return count;
+            }
+            // Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char.
+            // The Unicode Standard Version 6.2 – Core Specification
+            // (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
+            // "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid first
+            // byte, but which does not continue with valid successor bytes (see Table 3-7), it must not consume the
+            // successor bytes as part of the ill-formed subsequence
+            // whenever those successor bytes themselves constitute part of a well-formed UTF-8 code unit
+            // subsequence."
+            // So the byte is decoded again from the initial state below.
+            mSequenceLength = mBytesToFollow = 0;
+            codePoints[count++] = INTERRUPTED_SEQUENCE;
+        }
+
+        if ((b & 0b10000000) == 0) { // The leading bit is not set so it is a 7-bit ASCII character.
+            codePoints[count++] = b;
+            return count;
+        } else if ((b & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
+            mBytesToFollow = 1;
+        } else if ((b & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
+            mBytesToFollow = 2;
+        } else if ((b & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
+            mBytesToFollow = 3;
+        } else {
+            // Not a valid UTF-8 sequence start, signal invalid data:
+            codePoints[count++] = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+            return count;
+        }
+        mSequence[mSequenceLength++] = b;
+        return count;
+    }
+
+    private int decodeSequence() {
+        int firstByteMask = mSequenceLength == 2 ? 0b00011111 : (mSequenceLength == 3 ? 0b00001111 : 0b00000111);
+        int codePoint = (mSequence[0] & firstByteMask);
+        for (int i = 1; i < mSequenceLength; i++)
+            codePoint = ((codePoint << 6) | (mSequence[i] & 0b00111111));
+        if (((codePoint <= 0b1111111) && mSequenceLength > 1) || (codePoint < 0b11111111111 && mSequenceLength > 2)
+            || (codePoint < 0b1111111111111111 && mSequenceLength > 3)) {
+            // Overlong encoding.
+            codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+        }
+        return codePoint;
+    }
+
+    /** Same as checking {@link Character#getType(int)} for {@link Character#UNASSIGNED} or {@link Character#SURROGATE}. */
+    static boolean isUnassignedOrSurrogate(int codePoint) {
+        if (codePoint > Character.MAX_CODE_POINT) return true;
+        long[] page = sInvalidCodePointPages.get(codePoint >> PAGE_SHIFT);
+        if (page == null) page = computePage(codePoint >> PAGE_SHIFT);
+        return (page[(codePoint >> 6) & 0b111111] & (1L << codePoint)) != 0;
+    }
+
+    private static long[] computePage(int pageIndex) {
+        long[] page = new long[(1 << PAGE_SHIFT) / 64];
+        int firstCodePoint = pageIndex << PAGE_SHIFT;
+        for (int i = 0; i < (1 << PAGE_SHIFT); i++) {
+            switch (Character.getType(firstCodePoint + i)) {
+                case Character.UNASSIGNED:
+                case Character.SURROGATE:
+                    page[i >> 6] |= 1L << i;
+            }
+        }
+        sInvalidCodePointPages.compareAndSet(pageIndex, null, page);
+        return sInvalidCodePointPages.get(pageIndex);
+    }
+
+}
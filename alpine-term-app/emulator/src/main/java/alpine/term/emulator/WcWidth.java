@@ -22,6 +22,10 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Implementation of wcwidth(3) for Unicode 9.
  *
@@ -486,6 +490,69 @@ public final class WcWidth {
     };
 
 
+    /** Number of low bits of a code point selecting its position in a block of the lookup table. */
+    private static final int BLOCK_SHIFT = 8;
+    /** Number of 2-bit widths packed into each int of the lookup table. */
+    private static final int WIDTHS_PER_INT = 16;
+    private static final int INTS_PER_BLOCK = (1 << BLOCK_SHIFT) / WIDTHS_PER_INT;
+
+    /** The index of the block in {@link #BLOCK_WIDTHS} holding the widths of each block of 256 code points. */
+    private static final char[] BLOCK_INDEX = new char[(Character.MAX_CODE_POINT + 1) >> BLOCK_SHIFT];
+    /** The distinct blocks of code point widths, with 2 bits per code point. */
+    private static final int[] BLOCK_WIDTHS;
+
+    static {
+        // Build a two-level lookup table from the tables above, sharing identical blocks (most are all width 1).
+        int[] widths = new int[(Character.MAX_CODE_POINT + 1) / WIDTHS_PER_INT];
+        Arrays.fill(widths, 0x55555555);
+        for (int[] range : WIDE_EASTASIAN) setWidth(widths, range[0], range[1], 2);
+        for (int[] range : ZERO_WIDTH) setWidth(widths, range[0], range[1], 0);
+        setWidth(widths, 0, 31, 0);
+        setWidth(widths, 0x07F, 0x09F, 0);
+        setWidth(widths, 0x034F, 0x034F, 0);
+        setWidth(widths, 0x200B, 0x200F, 0);
+        setWidth(widths, 0x2028, 0x202E, 0);
+        setWidth(widths, 0x2060, 0x2063, 0);
+
+        Map<Integer, Integer> blockByHash = new HashMap<>();
+        int[] blockWidths = new int[widths.length];
+        int distinctBlocks = 0;
+        for (int block = 0; block < BLOCK_INDEX.length; block++) {
+            int start = block * INTS_PER_BLOCK;
+            int hash = 1;
+            for (int i = start; i < start + INTS_PER_BLOCK; i++)
+                hash = 31 * hash + widths[i];
+            Integer existing = blockByHash.get(hash);
+            if (existing != null && regionEquals(blockWidths, existing * INTS_PER_BLOCK, widths, start)) {
+                BLOCK_INDEX[block] = (char) existing.intValue();
+            } else {
+                System.arraycopy(widths, start, blockWidths, distinctBlocks * INTS_PER_BLOCK, INTS_PER_BLOCK);
+                if (existing == null) blockByHash.put(hash, distinctBlocks);
+                BLOCK_INDEX[block] = (char) distinctBlocks++;
+            }
+        }
+        BLOCK_WIDTHS = Arrays.copyOf(blockWidths, distinctBlocks * INTS_PER_BLOCK);
+    }
+
+    private static void setWidth(int[] widths, int first, int last, int width) {
+        for (int c = first; c <= last; ) {
+            if (c % WIDTHS_PER_INT == 0 && c + WIDTHS_PER_INT - 1 <= last) {
+                widths[c / WIDTHS_PER_INT] = width * 0x55555555;
+                c += WIDTHS_PER_INT;
+            } else {
+                int shift = (c % WIDTHS_PER_INT) * 2;
+                widths[c / WIDTHS_PER_INT] = (widths[c / WIDTHS_PER_INT] & ~(0b11 << shift)) | (width << shift);
+                c++;
+            }
+        }
+    }
+
+    private static boolean regionEquals(int[] a, int aStart, int[] b, int bStart) {
+        for (int i = 0; i < INTS_PER_BLOCK; i++)
+            if (a[aStart + i] != b[bStart + i]) return false;
+        return true;
+    }
+
     private static boolean intable(int[][] table, int c) {
         // First quick check f|| Latin1 etc. characters.
         if (c < table[0][0]) return false;
@@ -508,6 +575,17 @@ public final class WcWidth {
 
     /** Return the terminal display width of a code point: 0, 1 || 2. */
     public static int width(int ucs) {
+        if (ucs < 0 || ucs > Character.MAX_CODE_POINT) return ucs < 32 ? 0 : 1;
+        int block = BLOCK_INDEX[ucs >> BLOCK_SHIFT];
+        int packed = BLOCK_WIDTHS[block * INTS_PER_BLOCK + ((ucs >> 4) & (INTS_PER_BLOCK - 1))];
+        return (packed >>> ((ucs & (WIDTHS_PER_INT - 1)) * 2)) & 0b11;
+    }
+
+    /**
+     * The width found by searching the tables directly, as {@link #width(int)} did before using the lookup table. Kept
+     * for verifying and benchmarking the lookup table.
+     */
+    static int searchWidth(int ucs) {
         if (ucs == 0 ||
             ucs == 0x034F ||
             (0x200B <= ucs && ucs <= 0x200F) ||
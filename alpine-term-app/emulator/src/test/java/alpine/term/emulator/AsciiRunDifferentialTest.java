@@ -0,0 +1,106 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that writing runs of printable ASCII in bulk, as {@link TerminalEmulator#append(byte[], int)} does, gives the
+ * same screen as processing every code point on its own.
+ */
+public class AsciiRunDifferentialTest {
+
+    /** Sequences which change how printed characters are placed, to make sure that each is met often. */
+    private static final String[] PLACEMENT = {
+        "\033[4h", "\033[4l", "\033(0", "\033(B", "\016", "\017", "\033[?7l", "\033[?7h", "\033[3;12r", "\033[r",
+        "\033[?69h\033[4;30s", "\033[?69h\033[;6s", "\033[?69l", "\033[?6h", "\033[?6l", "\033[2;70H", "\033[1;200H",
+        "lqqk", "x  x", "mqqj",
+    };
+
+    private static byte[] input(Random random) {
+        final StringBuilder text = new StringBuilder();
+        final int pieces = 1 + random.nextInt(40);
+        for (int i = 0; i < pieces; i++) {
+            if (random.nextBoolean()) {
+                text.append(PLACEMENT[random.nextInt(PLACEMENT.length)]);
+            } else {
+                text.append(new String(RandomTerminalInput.generate(random, 1 + random.nextInt(300), true), StandardCharsets.UTF_8));
+            }
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Append the input in chunks of random size, many of them small enough to split escape and UTF-8 sequences. */
+    private static void appendInChunks(TerminalEmulator emulator, byte[] input, Random random) {
+        for (int offset = 0; offset < input.length; ) {
+            final int length = Math.min(input.length - offset, random.nextBoolean() ? 1 + random.nextInt(7) : 1 + random.nextInt(500));
+            if (random.nextBoolean()) {
+                final byte[] chunk = new byte[length];
+                System.arraycopy(input, offset, chunk, 0, length);
+                emulator.append(chunk, length);
+            } else {
+                final ByteBuffer chunk = ByteBuffer.allocateDirect(length);
+                chunk.put(input, offset, length).flip();
+                emulator.append(chunk);
+            }
+            offset += length;
+        }
+    }
+
+    @Test
+    public void bulkAsciiGivesTheSameScreenAsSingleCodePoints() {
+        for (int iteration = 0; iteration < 400; iteration++) {
+            final Random random = new Random(iteration);
+            final int columns = 10 + random.nextInt(80);
+            final int rows = 3 + random.nextInt(40);
+            final MockTerminalOutput bulkOutput = new MockTerminalOutput();
+            final MockTerminalOutput singleOutput = new MockTerminalOutput();
+            final TerminalEmulator bulk = new TerminalEmulator(bulkOutput, columns, rows, 100);
+            final TerminalEmulator single = new TerminalEmulator(singleOutput, columns, rows, 100);
+
+            for (int step = 0; step < 10; step++) {
+                final byte[] input = input(random);
+                appendInChunks(bulk, input, random);
+                final String text = new String(input, StandardCharsets.UTF_8);
+                for (int i = 0; i < text.length(); ) {
+                    final int codePoint = text.codePointAt(i);
+                    single.processCodePoint(codePoint);
+                    i += Character.charCount(codePoint);
+                }
+
+                final String message = "seed " + iteration + " step " + step;
+                assertEquals(message, RandomTerminalInput.describe(single), RandomTerminalInput.describe(bulk));
+                assertArrayEquals(message, singleOutput.mWritten.toByteArray(), bulkOutput.mWritten.toByteArray());
+                assertEquals(message, singleOutput.mBells, bulkOutput.mBells);
+            }
+        }
+    }
+
+}
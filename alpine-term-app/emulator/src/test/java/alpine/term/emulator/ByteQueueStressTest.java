@@ -0,0 +1,197 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a producer and a consumer thread against a {@link ByteQueue}. A lost wake-up leaves a thread parked for good,
+ * which the timeouts turn into a failure.
+ */
+public class ByteQueueStressTest {
+
+    /** A thread whose failure is reported by {@link #finish()}. */
+    private static final class TestThread extends Thread {
+        private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+
+        TestThread(Runnable runnable) {
+            super(runnable);
+            setUncaughtExceptionHandler((thread, failure) -> mFailure.set(failure));
+            start();
+        }
+
+        void finish() throws InterruptedException {
+            join();
+            assertNull(String.valueOf(mFailure.get()), mFailure.get());
+        }
+    }
+
+    /** Wait until a thread has parked, which it only does when it has to wait for the other side. */
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("thread ended without parking", thread.isAlive());
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void bytesArriveInOrderAcrossWrapAround() throws InterruptedException {
+        for (int round = 0; round < 100; round++) {
+            final Random random = new Random(round);
+            // Small queues wrap around many times and are full most of the time:
+            final ByteQueue queue = new ByteQueue(1 + random.nextInt(random.nextBoolean() ? 64 : 5000));
+            final long total = 100000 + random.nextInt(500000);
+            final long producerSeed = random.nextLong();
+
+            final TestThread producer = new TestThread(() -> {
+                final Random producerRandom = new Random(producerSeed);
+                final byte[] buffer = new byte[10000];
+                long sent = 0;
+                while (sent < total) {
+                    final int length = (int) Math.min(1 + producerRandom.nextInt(producerRandom.nextBoolean() ? 16 : 9999), total - sent);
+                    for (int i = 0; i < length; i++) buffer[i] = (byte) (sent + i);
+                    final boolean offered;
+                    switch (producerRandom.nextInt(3)) {
+                        case 0:
+                            offered = queue.offer(buffer, 0, length);
+                            break;
+                        case 1:
+                            final ByteBuffer direct = ByteBuffer.allocateDirect(length + 1);
+                            direct.position(1);
+                            direct.put(buffer, 0, length);
+                            offered = queue.offer(direct, 1, length);
+                            break;
+                        default:
+                            offered = false;
+                            break;
+                    }
+                    if (!offered) assertTrue(queue.write(buffer, 0, length));
+                    sent += length;
+                }
+            });
+
+            final byte[] buffer = new byte[1 + random.nextInt(8192)];
+            long received = 0;
+            while (received < total) {
+                final int count = queue.read(buffer, random.nextBoolean());
+                assertTrue(count >= 0);
+                for (int i = 0; i < count; i++)
+                    assertEquals("round " + round + " byte " + (received + i), (byte) (received + i), buffer[i]);
+                received += count;
+            }
+            producer.finish();
+            assertEquals(0, queue.read(buffer, false));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writerWaitsForRoomInAFullQueue() throws InterruptedException {
+        final ByteQueue queue = new ByteQueue(16);
+        final TestThread writer = new TestThread(() -> assertTrue(queue.write(new byte[40], 0, 40)));
+        awaitParked(writer);
+
+        final byte[] buffer = new byte[64];
+        int received = 0;
+        while (received < 40) {
+            final int count = queue.read(buffer, true);
+            assertTrue(count > 0 && count <= 16);
+            received += count;
+        }
+        writer.finish();
+        assertEquals(0, queue.read(buffer, false));
+    }
+
+    @Test(timeout = 10000)
+    public void readerWaitsForBytesInAnEmptyQueue() throws InterruptedException {
+        final ByteQueue queue = new ByteQueue(16);
+        final AtomicInteger received = new AtomicInteger();
+        final TestThread reader = new TestThread(() -> received.set(queue.read(new byte[16], true)));
+        awaitParked(reader);
+        assertEquals(0, received.get());
+        assertTrue(queue.write(new byte[]{1, 2, 3}, 0, 3));
+        reader.finish();
+        assertEquals(3, received.get());
+    }
+
+    @Test(timeout = 10000)
+    public void closeReleasesAParkedReader() throws InterruptedException {
+        final ByteQueue queue = new ByteQueue(16);
+        final AtomicInteger received = new AtomicInteger();
+        final TestThread reader = new TestThread(() -> received.set(queue.read(new byte[16], true)));
+        awaitParked(reader);
+        queue.close();
+        reader.finish();
+        assertEquals(-1, received.get());
+        assertFalse(queue.write(new byte[1], 0, 1));
+        assertFalse(queue.offer(new byte[1], 0, 1));
+    }
+
+    @Test(timeout = 10000)
+    public void closeReleasesAParkedWriterAndKeepsWhatItWrote() throws InterruptedException {
+        final ByteQueue queue = new ByteQueue(16);
+        final byte[] written = new byte[100];
+        for (int i = 0; i < written.length; i++) written[i] = (byte) i;
+        final TestThread writer = new TestThread(() -> assertFalse(queue.write(written, 0, written.length)));
+        awaitParked(writer);
+        queue.close();
+        writer.finish();
+
+        final byte[] buffer = new byte[100];
+        assertEquals(-1, queue.read(buffer, true));
+        assertEquals(16, queue.readRemaining(buffer));
+        for (int i = 0; i < 16; i++) assertEquals(written[i], buffer[i]);
+        assertEquals(0, queue.readRemaining(buffer));
+    }
+
+    @Test(timeout = 60000)
+    public void noWakeUpIsLostWhenBothSidesWaitAllTheTime() throws InterruptedException {
+        // With room for one byte, moved one byte at a time, every write and read but the first has to wait for the
+        // other side, which both check for just before parking:
+        final int total = 200000;
+        final ByteQueue queue = new ByteQueue(1);
+        final TestThread producer = new TestThread(() -> {
+            final byte[] buffer = new byte[1];
+            for (int i = 0; i < total; i++) {
+                buffer[0] = (byte) i;
+                assertTrue(queue.write(buffer, 0, 1));
+            }
+        });
+        final byte[] buffer = new byte[1];
+        for (int i = 0; i < total; i++) {
+            assertEquals(1, queue.read(buffer, true));
+            assertEquals((byte) i, buffer[0]);
+        }
+        producer.finish();
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.ByteArrayOutputStream;
+
+/** A terminal client for tests, which keeps what the emulator writes back. */
+final class MockTerminalOutput extends TerminalOutput {
+
+    final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+    int mBells;
+
+    @Override
+    public void write(byte[] data, int offset, int count) {
+        mWritten.write(data, offset, count);
+    }
+
+    @Override
+    public void titleChanged(String oldTitle, String newTitle) {
+    }
+
+    @Override
+    public void clipboardText(String text) {
+    }
+
+    @Override
+    public void onBell() {
+        mBells++;
+    }
+
+    @Override
+    public void onColorsChanged() {
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Random terminal output for tests comparing two ways of getting to the same screen: printable runs mixed with the
+ * control functions the emulator implements, wide and combining characters, and the odd stray or ill-formed byte.
+ */
+final class RandomTerminalInput {
+
+    private static final String[] PIECES = {
+        "\r\n", "\n", "\r", "\t", "\b", "\033[H", "\033[2J", "\033[K", "\033[1K", "\033[J", "\033[0m", "\033[1;31m",
+        "\033[38;5;200m", "\033[48;2;1;2;3m", "\033[7m", "\033[?7l", "\033[?7h", "\033[4h", "\033[4l", "\033(0", "\033(B",
+        "\033)0", "\016", "\017", "\033[5;20r", "\033[r", "\033[?69h\033[5;60s", "\033[?69l", "\033[?6h", "\033[?6l",
+        "\033[3;70H", "\033[24;80H", "\033[A", "\033[10C", "\033[2D", "\033D", "\033M", "\033E", "\033[2L", "\033[3M",
+        "\033[4@", "\033[2P", "\033[5X", "\033[3S", "\033[2T", "\033[?1049h", "\033[?1049l", "\033]0;title\007",
+        "\033[2b", "\033#8", "\033c", "\033[?5h", "\033[?5l", "\033[s", "\033[u", "\0337", "\0338", "\033[3g", "\033H",
+        "\033[5;5H", "中文字符", "한국어", "😀😁", "é", "e\u0301", "abc\u200bdef", "─│┌", "ｱｲｳ", "\033[?25l", "\033[?25h",
+        "\033[2;3;10;40;1$r", "\033[1;1;5;20;4;7$t", "\033[2*x", "\033[*x", "\033[3;5;8;30;0;5$r",
+    };
+
+    private static final int[] ODD_BYTES = {0xC3, 0xE4, 0xF0, 0xED, 0xF4, 0xF5, 0xC0, 0xE0, 0x80, 0xBF, 0xFF};
+
+    private RandomTerminalInput() {
+    }
+
+    /**
+     * Generate at least the specified number of bytes.
+     *
+     * @param wellFormed whether to leave out ill-formed UTF-8 and other random bytes.
+     */
+    static byte[] generate(Random random, int length, boolean wellFormed) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (out.size() < length) {
+            final int kind = random.nextInt(wellFormed ? 8 : 10);
+            if (kind < 4) {
+                // Long runs reach the right margin, short ones stop anywhere.
+                final int count = 1 + random.nextInt(random.nextBoolean() ? 10 : 200);
+                for (int i = 0; i < count; i++) out.write(32 + random.nextInt(95));
+            } else if (kind < 8) {
+                final byte[] piece = PIECES[random.nextInt(PIECES.length)].getBytes(StandardCharsets.UTF_8);
+                out.write(piece, 0, piece.length);
+            } else if (kind < 9) {
+                final int count = 1 + random.nextInt(6);
+                for (int i = 0; i < count; i++) out.write(random.nextInt(256));
+            } else {
+                out.write(ODD_BYTES[random.nextInt(ODD_BYTES.length)]);
+                final int count = random.nextInt(4);
+                for (int i = 0; i < count; i++) out.write(0x80 + random.nextInt(64));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Describe what an emulator shows in a form which can be compared: text, line wrap and styles of each row, and the cursor. */
+    static String describe(TerminalEmulator emulator) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final int columns = emulator.mColumns;
+        final int transcriptRows = screen.getActiveTranscriptRows();
+        final StringBuilder description = new StringBuilder();
+        description.append("cursor ").append(emulator.getCursorRow()).append(',').append(emulator.getCursorCol())
+            .append(" transcript ").append(transcriptRows).append(" alternate ").append(emulator.isAlternateBufferActive())
+            .append(" title ").append(emulator.getTitle()).append('\n');
+        for (int row = -transcriptRows; row < emulator.mRows; row++) {
+            description.append(row).append(screen.getLineWrap(row) ? " wrapped |" : " |")
+                .append(screen.getSelectedText(0, row, columns, row, false)).append("|\n");
+            for (int column = 0; column < columns; column++)
+                description.append(Long.toHexString(screen.getStyleAt(row, column))).append(' ');
+            description.append('\n');
+        }
+        return description.toString();
+    }
+
+}
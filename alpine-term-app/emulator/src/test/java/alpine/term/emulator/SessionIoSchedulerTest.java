@@ -0,0 +1,117 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many simulated sessions on each {@link SessionIoScheduler}, each feeding its emulator from a task started on
+ * the scheduler, and checks that every session ends up with the screen its output gives when processed directly.
+ */
+public class SessionIoSchedulerTest {
+
+    private static final int SESSIONS = 256;
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+
+    private static byte[][] sOutputs;
+    private static String[] sExpectedScreens;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sOutputs = new byte[SESSIONS][];
+        sExpectedScreens = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sOutputs[i] = RandomTerminalInput.generate(new Random(i), 2000 + new Random(-i).nextInt(6000), false);
+            final TerminalEmulator emulator = new TerminalEmulator(new MockTerminalOutput(), COLUMNS, ROWS, 100);
+            emulator.append(sOutputs[i], sOutputs[i].length);
+            sExpectedScreens[i] = RandomTerminalInput.describe(emulator);
+        }
+    }
+
+    private static void runSessions(SessionIoScheduler scheduler) throws InterruptedException {
+        final TerminalEmulator[] emulators = new TerminalEmulator[SESSIONS];
+        final CountDownLatch done = new CountDownLatch(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            final TerminalEmulator emulator = emulators[i] = new TerminalEmulator(new MockTerminalOutput(), COLUMNS, ROWS, 100);
+            // Room for all of the output, so that queueing it never waits for a session whose task has not started:
+            final ByteQueue queue = new ByteQueue(sOutputs[i].length);
+            scheduler.start("SimulatedSession[" + i + "]", () -> {
+                final byte[] chunk = new byte[512];
+                int read;
+                while ((read = queue.read(chunk, true)) != -1) emulator.append(chunk, read);
+                while ((read = queue.readRemaining(chunk)) > 0) emulator.append(chunk, read);
+                done.countDown();
+            });
+            final Random random = new Random(i);
+            for (int offset = 0; offset < sOutputs[i].length; ) {
+                final int length = Math.min(1 + random.nextInt(1000), sOutputs[i].length - offset);
+                assertTrue(queue.write(sOutputs[i], offset, length));
+                offset += length;
+            }
+            queue.close();
+        }
+
+        assertTrue("sessions did not finish", done.await(2, TimeUnit.MINUTES));
+        for (int i = 0; i < SESSIONS; i++)
+            assertEquals("session " + i, sExpectedScreens[i], RandomTerminalInput.describe(emulators[i]));
+    }
+
+    @Test
+    public void dedicatedThreads() throws InterruptedException {
+        runSessions(SessionIoScheduler.DEDICATED_THREADS);
+    }
+
+    @Test
+    public void sharedPool() throws InterruptedException {
+        // Far fewer threads than sessions, so that most tasks wait for a thread:
+        final SessionIoScheduler.SharedPool pool = new SessionIoScheduler.SharedPool(4);
+        try {
+            runSessions(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void virtualThreads() throws InterruptedException {
+        final SessionIoScheduler scheduler;
+        try {
+            scheduler = new SessionIoScheduler.VirtualThreads();
+        } catch (UnsupportedOperationException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        runSessions(scheduler);
+    }
+
+}
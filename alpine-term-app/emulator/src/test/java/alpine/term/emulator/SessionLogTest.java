@@ -0,0 +1,122 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SessionLogTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("session-log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private List<String> listFiles() {
+        final String[] names = mDirectory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private byte[] readFile(String name) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = name.endsWith(".gz") ? new GZIPInputStream(new FileInputStream(new File(mDirectory, name)))
+            : new FileInputStream(new File(mDirectory, name))) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] batch(int number) {
+        final byte[] batch = new byte[SessionLog.BATCH_SIZE];
+        Arrays.fill(batch, (byte) ('a' + number));
+        return batch;
+    }
+
+    @Test
+    public void rotatedFilesAreCompressedWithoutHoldingUpTheWriter() throws Exception {
+        final List<Thread> writers = Collections.synchronizedList(new ArrayList<>());
+        final List<Runnable> compressors = Collections.synchronizedList(new ArrayList<>());
+        // Compressing waits until the test runs it, after the writer is done:
+        final SessionIoScheduler scheduler = (name, task) -> {
+            if (name.startsWith("SessionLogCompressor")) {
+                compressors.add(task);
+            } else {
+                final Thread thread = new Thread(task, name);
+                writers.add(thread);
+                thread.start();
+            }
+        };
+        final SessionLog log = new SessionLog(scheduler, mDirectory, "test", 64 * 1024, 3, true);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SessionLog.BATCH_SIZE);
+        for (int number = 0; number < 5; number++) {
+            // A full batch is written at once, and every batch after the first goes to a new file:
+            buffer.clear();
+            buffer.put(batch(number));
+            log.offer(buffer, 0, SessionLog.BATCH_SIZE);
+            Thread.sleep(50);
+        }
+        log.close();
+        writers.get(0).join(10000);
+        assertFalse(writers.get(0).isAlive());
+        assertEquals(0, log.getDroppedBytes());
+
+        assertEquals(Arrays.asList("test-2.log", "test-3.log", "test-4.log"), listFiles());
+        assertEquals(1, compressors.size());
+        compressors.get(0).run();
+        assertEquals(Arrays.asList("test-2.log.gz", "test-3.log.gz", "test-4.log"), listFiles());
+        assertArrayEquals(batch(2), readFile("test-2.log.gz"));
+        assertArrayEquals(batch(3), readFile("test-3.log.gz"));
+        assertArrayEquals(batch(4), readFile("test-4.log"));
+    }
+
+}
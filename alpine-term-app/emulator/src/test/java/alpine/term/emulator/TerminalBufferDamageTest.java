@@ -0,0 +1,122 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that rows which are not reported as changed really are unchanged, so that skipping them when drawing is safe. */
+public class TerminalBufferDamageTest {
+
+    private static String describeRow(TerminalEmulator emulator, int row) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final StringBuilder description = new StringBuilder(screen.getSelectedText(0, row, emulator.mColumns, row, false)).append('|');
+        for (int column = 0; column < emulator.mColumns; column++)
+            description.append(Long.toHexString(screen.getStyleAt(row, column))).append(',');
+        if (emulator.getCursorRow() == row) {
+            description.append("cursor ").append(emulator.getCursorCol()).append(' ').append(emulator.isShowingCursor())
+                .append(' ').append(emulator.getCursorStyle());
+        }
+        // What is drawn on every row:
+        description.append(emulator.isReverseVideo()).append(Arrays.hashCode(emulator.mColors.mCurrentColors));
+        return description.toString();
+    }
+
+    private static String describeRow(TerminalRow row, int columns) {
+        final StringBuilder description = new StringBuilder(new String(row.mText, 0, row.getSpaceUsed())).append('|');
+        for (int column = 0; column < columns; column++)
+            description.append(Long.toHexString(row.getStyle(column))).append(',');
+        return description.toString();
+    }
+
+    @Test
+    public void undamagedRowsAreUnchangedAfterTheScrollShift() {
+        for (int iteration = 0; iteration < 150; iteration++) {
+            final Random random = new Random(iteration);
+            final TerminalEmulator emulator = new TerminalEmulator(new MockTerminalOutput(), 10 + random.nextInt(80), 3 + random.nextInt(70), 200);
+            emulator.getScreen().clearDamage();
+            TerminalBuffer previousScreen = emulator.getScreen();
+            String[] previous = new String[emulator.mRows];
+            for (int row = 0; row < previous.length; row++) previous[row] = describeRow(emulator, row);
+
+            for (int step = 0; step < 40; step++) {
+                if (random.nextInt(30) == 0) emulator.resize(10 + random.nextInt(80), 3 + random.nextInt(70));
+                final byte[] input = RandomTerminalInput.generate(random, 1 + random.nextInt(400), false);
+                emulator.append(input, input.length);
+
+                final TerminalBuffer screen = emulator.getScreen();
+                final String[] current = new String[emulator.mRows];
+                for (int row = 0; row < current.length; row++) current[row] = describeRow(emulator, row);
+                final String message = "seed " + iteration + " step " + step;
+                if (screen == previousScreen && previous.length == current.length) {
+                    final int shift = screen.getDamageScrollShift();
+                    for (int row = 0; row < current.length; row++) {
+                        if (screen.isRowDamaged(row)) continue;
+                        assertTrue(message + " row " + row, row + shift < previous.length);
+                        assertEquals(message + " row " + row, previous[row + shift], current[row]);
+                    }
+                } else {
+                    for (int row = 0; row < current.length; row++)
+                        assertTrue(message + " row " + row, screen.isRowDamaged(row));
+                }
+                screen.clearDamage();
+                previous = current;
+                previousScreen = screen;
+            }
+        }
+    }
+
+    @Test
+    public void rowsWithAnUnchangedVersionAreUnchanged() {
+        for (int iteration = 0; iteration < 150; iteration++) {
+            final Random random = new Random(iteration);
+            final TerminalEmulator emulator = new TerminalEmulator(new MockTerminalOutput(), 10 + random.nextInt(80), 3 + random.nextInt(70), 200);
+            final Map<TerminalRow, Integer> versions = new IdentityHashMap<>();
+            final Map<TerminalRow, String> contents = new IdentityHashMap<>();
+            for (int step = 0; step < 40; step++) {
+                final byte[] input = RandomTerminalInput.generate(random, 1 + random.nextInt(400), false);
+                emulator.append(input, input.length);
+                if (random.nextInt(8) == 0)
+                    emulator.resize(random.nextBoolean() ? emulator.mColumns : 5 + random.nextInt(100), 3 + random.nextInt(30));
+
+                final TerminalBuffer screen = emulator.getScreen();
+                for (int index = -screen.getActiveTranscriptRows(); index < emulator.mRows; index++) {
+                    final TerminalRow row = screen.getRow(index);
+                    final String content = describeRow(row, emulator.mColumns);
+                    final Integer version = versions.put(row, row.getVersion());
+                    final String previous = contents.put(row, content);
+                    if (version != null && version == row.getVersion())
+                        assertEquals("seed " + iteration + " step " + step + " row " + index, previous, content);
+                }
+            }
+        }
+    }
+
+}
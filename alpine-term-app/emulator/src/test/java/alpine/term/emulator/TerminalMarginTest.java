@@ -0,0 +1,63 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/** Printing and moving the cursor outside of left and right margins (DECLRMM and DECSLRM). */
+public class TerminalMarginTest {
+
+    private static TerminalEmulator append(int columns, int rows, String text) {
+        final TerminalEmulator emulator = new TerminalEmulator(new MockTerminalOutput(), columns, rows, 100);
+        final byte[] input = text.getBytes(StandardCharsets.UTF_8);
+        emulator.append(input, input.length);
+        return emulator;
+    }
+
+    private static String rowText(TerminalEmulator emulator, int row) {
+        return emulator.getScreen().getSelectedText(0, row, emulator.mColumns, row, false);
+    }
+
+    @Test
+    public void backspaceLeftOfTheLeftMarginStopsAtTheEdgeOfTheScreen() {
+        // Left margin at column 6, cursor in column 0.
+        final TerminalEmulator emulator = append(16, 11, "\033[?69h\033[6s\bX");
+        assertEquals(0, emulator.getCursorRow());
+        assertEquals(1, emulator.getCursorCol());
+        assertEquals("X", rowText(emulator, 0).trim());
+    }
+
+    @Test
+    public void wideCharacterInTheLastColumnRightOfTheRightMarginIsDropped() {
+        // Right margin at column 6, cursor in the last column.
+        final TerminalEmulator emulator = append(69, 15, "\033[?69h\033[;6s\033[;70H😁");
+        assertEquals(0, emulator.getCursorRow());
+        assertEquals(68, emulator.getCursorCol());
+        assertEquals("", rowText(emulator, 0).trim());
+    }
+
+}
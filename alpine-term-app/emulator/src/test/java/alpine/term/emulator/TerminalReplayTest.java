@@ -0,0 +1,84 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a short recording of a shell session, with colors, wide and combining characters, a full-screen program on
+ * the alternate screen and a resize, and checks that it ends with the same screen as when the hash was taken.
+ */
+public class TerminalReplayTest {
+
+    /** As printed by {@code ./gradlew :emulator:replay --args=src/test/resources/alpine/term/emulator/session.atr}. */
+    private static final String SESSION_SCREEN_HASH = "1313cddb95d1f36a85719192ee9926bdeb594b611064668a3684ae2602ea034e";
+
+    private static byte[] readSession() throws IOException {
+        try (InputStream in = TerminalReplayTest.class.getResourceAsStream("session.atr")) {
+            final ByteArrayOutputStream recording = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) recording.write(buffer, 0, read);
+            return recording.toByteArray();
+        }
+    }
+
+    @Test
+    public void recordingEndsWithTheExpectedScreen() throws Exception {
+        final TerminalReplay.Result result = TerminalReplay.replay(new ByteArrayInputStream(readSession()), false);
+        assertEquals(SESSION_SCREEN_HASH, result.mScreenHash);
+        assertEquals(2037, result.mBytes);
+        assertFalse(result.mTruncated);
+    }
+
+    @Test
+    public void compressedRecordingEndsWithTheSameScreen() throws Exception {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(readSession());
+        }
+        final TerminalReplay.Result result = TerminalReplay.replay(new ByteArrayInputStream(compressed.toByteArray()), false);
+        assertEquals(SESSION_SCREEN_HASH, result.mScreenHash);
+    }
+
+    @Test
+    public void truncatedRecordingIsReplayedUpToTheLastWholeEvent() throws Exception {
+        final byte[] session = readSession();
+        final TerminalReplay.Result result = TerminalReplay.replay(new ByteArrayInputStream(Arrays.copyOf(session, session.length - 10)), false);
+        assertTrue(result.mTruncated);
+        assertNotEquals(SESSION_SCREEN_HASH, result.mScreenHash);
+    }
+
+}
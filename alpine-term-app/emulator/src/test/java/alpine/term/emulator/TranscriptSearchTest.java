@@ -0,0 +1,151 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks searches which resume where the previous one ended against searches of the whole transcript. */
+public class TranscriptSearchTest {
+
+    private static final String[] PIECES = {
+        "foo", "Foo", "FOO", "fo", "o", "bar", "xfooy", "中foo", "😀foo", "éfoo", "\033[31mfoo\033[0m", " ", "  ", "\t",
+        "中文", "abc", "\r\n", "\n", "\r", "\033[H", "\033[2J", "\033[3J", "\033[K", "\033[A", "\033[5C", "\033[2L",
+        "\033[3M", "\033[?1049h", "\033[?1049l", "\033[5;20r", "\033[r", "\033[?7l", "\033[?7h",
+    };
+
+    private File mSpillDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mSpillDirectory = Files.createTempDirectory("transcript-search").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mSpillDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mSpillDirectory.delete();
+    }
+
+    private static String[] describeMatches(TranscriptSearch search) {
+        final String[] matches = new String[search.getMatchCount()];
+        for (int i = 0; i < matches.length; i++) {
+            final TranscriptSearch.Match match = search.getMatch(i);
+            matches[i] = match.mStartLine + ":" + match.mStartColumn + "-" + match.mEndLine + ":" + match.mEndColumn;
+        }
+        return matches;
+    }
+
+    private static int countMatches(Pattern pattern, String text) {
+        int count = 0;
+        for (Matcher matcher = pattern.matcher(text); matcher.find(); ) count++;
+        return count;
+    }
+
+    private void checkSearches(boolean resize, boolean spill) throws InterruptedException {
+        for (int iteration = 0; iteration < 60; iteration++) {
+            final Random random = new Random(iteration);
+            final int rows = 3 + random.nextInt(30);
+            final TerminalEmulator emulator = new TerminalEmulator(new MockTerminalOutput(), 10 + random.nextInt(100), rows, rows + 20 + random.nextInt(300));
+            if (spill) emulator.setTranscriptSpill(mSpillDirectory, Long.MAX_VALUE, Long.MAX_VALUE);
+            final boolean matchCase = random.nextBoolean();
+            final String query = matchCase ? "foo" : "FoO";
+            TranscriptSearch incremental = null;
+            TranscriptSearch incrementalRegex = null;
+            TerminalBuffer searched = null;
+
+            for (int step = 0; step < 60; step++) {
+                final StringBuilder input = new StringBuilder();
+                for (int i = random.nextInt(200); i >= 0; i--) input.append(PIECES[random.nextInt(PIECES.length)]);
+                final byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+                emulator.append(bytes, bytes.length);
+                if (resize && random.nextInt(8) == 0)
+                    emulator.resize(random.nextBoolean() ? emulator.mColumns : 10 + random.nextInt(100), 3 + random.nextInt(30));
+
+                final TerminalBuffer screen = emulator.getScreen();
+                if (screen != searched) {
+                    incremental = new TranscriptSearch(query, false, matchCase);
+                    incrementalRegex = new TranscriptSearch("f[o]+", true, true);
+                    searched = screen;
+                }
+                for (TranscriptSearch search : new TranscriptSearch[]{incremental, incrementalRegex}) {
+                    while (!search.update(search.search(screen.snapshot(search.getResumeLineNumber(screen))), screen)) {
+                        // The rows were reflowed, search again from the start.
+                    }
+                }
+                final TranscriptSearch full = new TranscriptSearch(query, false, matchCase);
+                full.update(full.search(screen.snapshot()), screen);
+
+                final String message = "seed " + iteration + " step " + step;
+                assertArrayEquals(message, describeMatches(full), describeMatches(incremental));
+                final String text = screen.getTranscriptText();
+                final int flags = matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+                assertEquals(message, countMatches(Pattern.compile(Pattern.quote(query), flags), text), full.getMatchCount());
+                assertEquals(message, countMatches(Pattern.compile("f[o]+"), text), incrementalRegex.getMatchCount());
+
+                final long screenLine = screen.getLineNumber(0);
+                for (int i = 0; i < full.getMatchCount(); i++) {
+                    final TranscriptSearch.Match match = full.getMatch(i);
+                    final String selected = screen.getSelectedText(match.mStartColumn, (int) (match.mStartLine - screenLine),
+                        match.mEndColumn - 1, (int) (match.mEndLine - screenLine));
+                    // Leave out combining characters and the padding of wide ones:
+                    final StringBuilder matched = new StringBuilder();
+                    for (char c : selected.toCharArray())
+                        if (WcWidth.width(c) > 0 || Character.isSurrogate(c)) matched.append(c);
+                    assertTrue(message + " match " + Arrays.toString(describeMatches(full)) + " " + matched, matched.toString().equalsIgnoreCase("foo"));
+                }
+            }
+            if (spill) emulator.closeTranscriptSpill();
+        }
+    }
+
+    @Test
+    public void resumedSearchFindsWhatAFullSearchFinds() throws InterruptedException {
+        checkSearches(false, false);
+    }
+
+    @Test
+    public void resumedSearchFindsWhatAFullSearchFindsAfterResizing() throws InterruptedException {
+        checkSearches(true, false);
+    }
+
+    @Test
+    public void resumedSearchFindsSpilledRows() throws InterruptedException {
+        checkSearches(true, true);
+    }
+
+}
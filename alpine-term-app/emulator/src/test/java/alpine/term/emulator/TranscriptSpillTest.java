@@ -0,0 +1,136 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TranscriptSpillTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("transcript-spill").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private static byte[] record(int index) {
+        final byte[] record = new byte[100];
+        for (int i = 0; i < record.length; i++) record[i] = (byte) (index + i);
+        return record;
+    }
+
+    private static void assertHoldsNewest(TranscriptSpill spill, int appended) throws Exception {
+        final byte[] into = new byte[100];
+        for (int i = 0; i < spill.size(); i++)
+            assertArrayEquals("row " + i, record(appended - spill.size() + i), spill.read(i, into));
+    }
+
+    /** Append rows switching width every ten rows, so that each ten rows go to a segment of their own. */
+    private static void appendRows(TranscriptSpill spill, int from, int count) throws Exception {
+        for (int i = from; i < from + count; i++) spill.append(record(i), 0, 100, 80 + (i / 10) % 2);
+    }
+
+    @Test
+    public void oldestSegmentsAreDeletedAboveTheSizeLimit() throws Exception {
+        final TranscriptSpill spill = new TranscriptSpill(mDirectory, 2500, Long.MAX_VALUE);
+        appendRows(spill, 0, 100);
+        spill.applyRetention();
+        assertEquals(20, spill.size());
+        assertEquals(80, spill.getColumns(0));
+        assertEquals(81, spill.getColumns(19));
+        assertHoldsNewest(spill, 100);
+        assertEquals(2, mDirectory.list().length);
+    }
+
+    @Test
+    public void oldSegmentsAreDeletedButTheNewestIsKept() throws Exception {
+        final TranscriptSpill spill = new TranscriptSpill(mDirectory, Long.MAX_VALUE, 0);
+        appendRows(spill, 0, 35);
+        Thread.sleep(5);
+        spill.applyRetention();
+        assertEquals(5, spill.size());
+        assertHoldsNewest(spill, 35);
+    }
+
+    @Test
+    public void clearDeletesTheFiles() throws Exception {
+        final TranscriptSpill spill = new TranscriptSpill(mDirectory, Long.MAX_VALUE, Long.MAX_VALUE);
+        appendRows(spill, 0, 50);
+        spill.clear();
+        assertEquals(0, spill.size());
+        assertFalse(mDirectory.exists());
+
+        appendRows(spill, 50, 15);
+        assertHoldsNewest(spill, 65);
+    }
+
+    @Test
+    public void snapshotIsReadableAfterTheFilesAreDeleted() throws Exception {
+        final TranscriptSpill spill = new TranscriptSpill(mDirectory, Long.MAX_VALUE, Long.MAX_VALUE);
+        // Enough rows to flush the write buffer and map the files, ending in the middle of a segment:
+        for (int i = 0; i < 2000; i++) spill.append(record(i), 0, 100, 80);
+        final TranscriptSpill snapshot = spill.snapshot();
+        spill.clear();
+        assertEquals(2000, snapshot.size());
+        assertHoldsNewest(snapshot, 2000);
+    }
+
+    @Test
+    public void spilledHistoryMatchesAnInMemoryTranscript() throws Exception {
+        final Random random = new Random(5);
+        for (int iteration = 0; iteration < 20; iteration++) {
+            final int columns = 10 + random.nextInt(80);
+            final int rows = 3 + random.nextInt(30);
+            final TerminalEmulator spilling = new TerminalEmulator(new MockTerminalOutput(), columns, rows, rows + 10);
+            spilling.setTranscriptSpill(mDirectory, Long.MAX_VALUE, Long.MAX_VALUE);
+            final TerminalEmulator reference = new TerminalEmulator(new MockTerminalOutput(), columns, rows, 100000);
+            for (int step = 0; step < 30; step++) {
+                final byte[] input = RandomTerminalInput.generate(random, 1 + random.nextInt(3000), false);
+                spilling.append(input, input.length);
+                reference.append(input, input.length);
+                assertEquals("iteration " + iteration + " step " + step,
+                    reference.getScreen().getTranscriptText(), spilling.getScreen().getTranscriptText());
+            }
+            spilling.closeTranscriptSpill();
+            assertFalse(mDirectory.exists());
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TranscriptStoreTest {
+
+    private static final int COLUMNS = 80;
+
+    private final Random mRandom = new Random(11);
+    private File mSpillDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mSpillDirectory = Files.createTempDirectory("transcript-store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mSpillDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mSpillDirectory.delete();
+    }
+
+    /** A row with random text, including wide, combining and supplementary characters, and random styles. */
+    static TerminalRow randomRow(Random random, int columns) {
+        final TerminalRow row = new TerminalRow(columns, TextStyle.NORMAL);
+        final int used = random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(columns);
+        for (int column = 0; column < used; column++) {
+            final long style = random.nextInt(3) == 0 ? TextStyle.encode(random.nextInt(256), random.nextInt(256), random.nextInt(64)) : TextStyle.NORMAL;
+            switch (random.nextInt(8)) {
+                case 0:
+                    if (column + 1 < columns) row.setChar(column++, 0x4E00 + random.nextInt(0x5000), style);
+                    break;
+                case 1:
+                    if (column + 1 < columns) row.setChar(column++, 0x1F600 + random.nextInt(0x50), style);
+                    break;
+                case 2:
+                    row.setChar(column, 0xE9, style);
+                    if (column > 0) row.setChar(column, 0x301, style);
+                    break;
+                case 3:
+                    row.setChar(column, ' ', style);
+                    break;
+                default:
+                    row.setChar(column, 33 + random.nextInt(94), style);
+                    break;
+            }
+        }
+        row.mLineWrap = random.nextBoolean();
+        return row;
+    }
+
+    static void assertRowEquals(String message, TerminalRow expected, TerminalRow actual, int columns) {
+        assertEquals(message, new String(expected.mText, 0, expected.getSpaceUsed()), new String(actual.mText, 0, actual.getSpaceUsed()));
+        assertEquals(message, expected.mLineWrap, actual.mLineWrap);
+        for (int column = 0; column < columns; column++)
+            assertEquals(message + " column " + column, expected.getStyle(column), actual.getStyle(column));
+    }
+
+    private List<TerminalRow> push(TranscriptStore store, int count, int columns) {
+        final List<TerminalRow> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TerminalRow row = randomRow(mRandom, columns);
+            store.push(row);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void assertStoreHolds(TranscriptStore store, List<TerminalRow> rows, int columns) {
+        assertEquals(rows.size(), store.size());
+        final TerminalRow into = new TerminalRow(columns, TextStyle.NORMAL);
+        for (int i = 0; i < rows.size(); i++) {
+            store.read(i, into);
+            assertRowEquals("row " + i, rows.get(i), into, columns);
+            assertEquals("row " + i, rows.get(i).mLineWrap, store.getLineWrap(i));
+        }
+    }
+
+    @Test
+    public void rowsReadBackAsPushed() {
+        final TranscriptStore store = new TranscriptStore(COLUMNS, 5000);
+        assertStoreHolds(store, push(store, 3000, COLUMNS), COLUMNS);
+    }
+
+    @Test
+    public void oldestRowsAreDroppedAtCapacity() {
+        final TranscriptStore store = new TranscriptStore(COLUMNS, 1000);
+        final List<TerminalRow> rows = push(store, 2500, COLUMNS);
+        assertEquals(1500, store.getFirstLineNumber());
+        assertStoreHolds(store, rows.subList(1500, 2500), COLUMNS);
+
+        store.setCapacity(300);
+        assertStoreHolds(store, rows.subList(2200, 2500), COLUMNS);
+        assertEquals(2200, store.getFirstLineNumber());
+
+        assertEquals(100, store.trim(200));
+        assertEquals(300, store.getCapacity());
+        rows.addAll(push(store, 50, COLUMNS));
+        assertStoreHolds(store, rows.subList(2300, 2550), COLUMNS);
+    }
+
+    @Test
+    public void recordsLargerThanAChunk() {
+        // A style per column makes a record of several bytes per column, far more than the 64K of a chunk:
+        final int columns = 20000;
+        final TranscriptStore store = new TranscriptStore(columns, 10);
+        final List<TerminalRow> rows = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            final TerminalRow row = (i % 3 == 0) ? randomRow(mRandom, columns) : new TerminalRow(columns, TextStyle.NORMAL);
+            if (i % 3 != 0) {
+                for (int column = 0; column < columns; column++)
+                    row.setChar(column, 33 + mRandom.nextInt(94), TextStyle.encode(column % 256, (column / 256) % 256, i));
+            }
+            store.push(row);
+            rows.add(row);
+        }
+        assertStoreHolds(store, rows.subList(5, 15), columns);
+    }
+
+    @Test
+    public void popNewestTakesRowsBack() {
+        final TranscriptStore store = new TranscriptStore(COLUMNS, 100);
+        final List<TerminalRow> rows = push(store, 150, COLUMNS);
+        final TerminalRow into = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+        for (int i = 149; i >= 140; i--) {
+            store.popNewest(into);
+            assertRowEquals("row " + i, rows.get(i), into, COLUMNS);
+        }
+        final List<TerminalRow> kept = new ArrayList<>(rows.subList(50, 140));
+        kept.addAll(push(store, 30, COLUMNS));
+        assertStoreHolds(store, kept.subList(20, 120), COLUMNS);
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterChanges() {
+        final TranscriptStore store = new TranscriptStore(COLUMNS, 500);
+        final List<TerminalRow> rows = push(store, 700, COLUMNS);
+        final TranscriptStore snapshot = store.snapshot(100);
+        push(store, 600, COLUMNS);
+        store.clear();
+        assertEquals(400, snapshot.getRowsInMemory());
+        assertEquals(300, snapshot.getFirstLineNumber());
+        assertStoreHolds(snapshot, rows.subList(300, 700), COLUMNS);
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByRowsTakenBack() {
+        final TranscriptStore store = new TranscriptStore(COLUMNS, 500);
+        final List<TerminalRow> rows = push(store, 300, COLUMNS);
+        final TranscriptStore snapshot = store.snapshot(0);
+        final TerminalRow into = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+        for (int i = 0; i < 50; i++) store.popNewest(into);
+        // Enough rows to release the shared chunks and fill new ones:
+        push(store, 2000, COLUMNS);
+        assertStoreHolds(snapshot, rows, COLUMNS);
+    }
+
+    @Test
+    public void spilledRowsReadBackAsPushed() {
+        final TranscriptStore store = new TranscriptStore(COLUMNS, 200);
+        store.setSpill(new TranscriptSpill(mSpillDirectory, Long.MAX_VALUE, Long.MAX_VALUE));
+        final List<TerminalRow> rows = push(store, 3000, COLUMNS);
+        assertEquals(200, store.getRowsInMemory());
+        assertEquals(0, store.getFirstLineNumber());
+        assertStoreHolds(store, rows, COLUMNS);
+
+        final TranscriptStore snapshot = store.snapshot(0);
+        push(store, 100, COLUMNS);
+        assertStoreHolds(snapshot, rows, COLUMNS);
+
+        assertTrue(store.closeSpill());
+        assertEquals(200, store.size());
+        assertEquals(0, mSpillDirectory.exists() ? mSpillDirectory.list().length : 0);
+    }
+
+    @Test
+    public void spilledRowsOfAnotherWidthAreCutOrPadded() {
+        final TranscriptSpill spill = new TranscriptSpill(mSpillDirectory, Long.MAX_VALUE, Long.MAX_VALUE);
+        final TranscriptStore wide = new TranscriptStore(120, 10);
+        wide.setSpill(spill);
+        final List<TerminalRow> rows = push(wide, 30, 120);
+
+        final TranscriptStore narrow = new TranscriptStore(COLUMNS, 10);
+        narrow.setSpill(wide.detachSpill());
+        final TerminalRow into = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+        for (int i = 0; i < 20; i++) {
+            narrow.read(i, into);
+            final TerminalRow expected = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+            expected.copyInterval(rows.get(i), 0, COLUMNS, 0);
+            assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()).trim(), new String(into.mText, 0, into.getSpaceUsed()).trim());
+            assertEquals(rows.get(i).mLineWrap, into.mLineWrap);
+        }
+        narrow.closeSpill();
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertTrue;
+
+/** Checks the URLs found through the incremental index against a search of the whole transcript text. */
+public class UrlIndexTest {
+
+    private static final String[] PIECES = {
+        "http://example.com/a", "https://b.example.org:8080/x?y=1#z", "ftp://1.2.3.4/f", "file:///etc/passwd",
+        "git://h.io/r.git", "http://中文.com/x", "https://x", "http://very-long-host-name-", "that-continues.example.net/path/",
+        " ", "  ", "word", "abc", "中文", "\tx", "\r\n", "\n", "\r", "\033[H", "\033[2J", "\033[3J", "\033[K", "\033[A",
+        "\033[5C", "\033[2L", "\033[3M", "\033[?1049h", "\033[?1049l", "\033[5;20r", "\033[r", "\033[?7l", "\033[?7h",
+    };
+
+    private static void checkUrls(boolean resize) {
+        for (int iteration = 0; iteration < 100; iteration++) {
+            final Random random = new Random(iteration);
+            final int rows = 3 + random.nextInt(30);
+            final TerminalEmulator emulator = new TerminalEmulator(new MockTerminalOutput(), 10 + random.nextInt(100), rows, rows + 20 + random.nextInt(300));
+            for (int step = 0; step < 60; step++) {
+                final StringBuilder input = new StringBuilder();
+                for (int i = random.nextInt(200); i >= 0; i--) input.append(PIECES[random.nextInt(PIECES.length)]);
+                final byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+                emulator.append(bytes, bytes.length);
+                if (resize && random.nextInt(8) == 0)
+                    emulator.resize(random.nextBoolean() ? emulator.mColumns : 10 + random.nextInt(100), 3 + random.nextInt(30));
+
+                final TerminalBuffer screen = emulator.getScreen();
+                final String text = screen.getTranscriptText();
+                final Set<String> expected = new LinkedHashSet<>();
+                final Matcher matcher = UrlIndex.URL_PATTERN.matcher(text);
+                while (matcher.find()) expected.add(text.substring(matcher.start(1), matcher.end()));
+                final Set<String> missing = new LinkedHashSet<>(expected);
+                missing.removeAll(screen.findUrls());
+                assertTrue("seed " + iteration + " step " + step + " missing " + missing, missing.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void indexFindsAllUrlsOfTheText() {
+        checkUrls(false);
+    }
+
+    @Test
+    public void indexFindsAllUrlsAfterResizing() {
+        checkUrls(true);
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Checks the chunked decoding of {@link Utf8Decoder} against a byte at a time decoder. */
+public class Utf8DecoderTest {
+
+    /** Decodes one byte at a time, the way the emulator did before decoding was done a chunk at a time. */
+    private static final class ReferenceDecoder {
+        private final byte[] mSequence = new byte[4];
+        private int mSequenceLength;
+        private int mBytesToFollow;
+        private int[] mOutput = new int[16];
+        private int mCount;
+
+        private void emit(int codePoint) {
+            if (mCount == mOutput.length) mOutput = Arrays.copyOf(mOutput, 2 * mCount);
+            mOutput[mCount++] = codePoint;
+        }
+
+        void decode(byte b) {
+            if (mBytesToFollow > 0) {
+                if ((b & 0b11000000) == 0b10000000) {
+                    mSequence[mSequenceLength++] = b;
+                    if (--mBytesToFollow == 0) {
+                        final int firstByteMask = mSequenceLength == 2 ? 0b00011111 : (mSequenceLength == 3 ? 0b00001111 : 0b00000111);
+                        int codePoint = mSequence[0] & firstByteMask;
+                        for (int i = 1; i < mSequenceLength; i++)
+                            codePoint = (codePoint << 6) | (mSequence[i] & 0b00111111);
+                        if ((codePoint <= 0b1111111 && mSequenceLength > 1) || (codePoint < 0b11111111111 && mSequenceLength > 2)
+                            || (codePoint < 0b1111111111111111 && mSequenceLength > 3)) {
+                            codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+                        }
+                        mSequenceLength = 0;
+                        if (codePoint < 0x80 || codePoint > 0x9F) {
+                            final int type = Character.getType(codePoint);
+                            emit(type == Character.UNASSIGNED || type == Character.SURROGATE ? TerminalEmulator.UNICODE_REPLACEMENT_CHAR : codePoint);
+                        }
+                    }
+                    return;
+                }
+                mSequenceLength = mBytesToFollow = 0;
+                emit(Utf8Decoder.INTERRUPTED_SEQUENCE);
+            }
+
+            if ((b & 0b10000000) == 0) {
+                emit(b);
+                return;
+            } else if ((b & 0b11100000) == 0b11000000) {
+                mBytesToFollow = 1;
+            } else if ((b & 0b11110000) == 0b11100000) {
+                mBytesToFollow = 2;
+            } else if ((b & 0b11111000) == 0b11110000) {
+                mBytesToFollow = 3;
+            } else {
+                emit(TerminalEmulator.UNICODE_REPLACEMENT_CHAR);
+                return;
+            }
+            mSequence[mSequenceLength++] = b;
+        }
+
+        int[] getOutput() {
+            return Arrays.copyOf(mOutput, mCount);
+        }
+    }
+
+    /** Encode a value the way UTF-8 would, with the specified number of bytes, allowing overlong and invalid encodings. */
+    private static void encode(ByteArrayOutputStream out, int value, int length) {
+        if (length == 1) {
+            out.write(value & 0x7F);
+            return;
+        }
+        final int[] leads = {0, 0, 0xC0, 0xE0, 0xF0};
+        out.write(leads[length] | (value >> (6 * (length - 1))) & (0x7F >> length));
+        for (int i = length - 2; i >= 0; i--) out.write(0x80 | ((value >> (6 * i)) & 0x3F));
+    }
+
+    private static int lengthOf(int codePoint) {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+
+    private static byte[] generate(Random random, int length) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (out.size() < length) {
+            switch (random.nextInt(12)) {
+                case 0:
+                case 1:
+                    // Runs long enough for the eight bytes at a time path.
+                    for (int i = random.nextInt(40); i >= 0; i--) out.write(random.nextInt(128));
+                    break;
+                case 2: {
+                    final int codePoint = random.nextInt(Character.MAX_CODE_POINT + 1);
+                    encode(out, codePoint, lengthOf(codePoint));
+                    break;
+                }
+                case 3: {
+                    final int codePoint = 0x80 + random.nextInt(0x800 - 0x80);
+                    encode(out, codePoint, lengthOf(codePoint));
+                    break;
+                }
+                case 4:
+                    // Overlong encodings, including those just below the smallest value of their length.
+                    final int overlongLength = 2 + random.nextInt(3);
+                    final int[] limits = {0, 0, 0x80, 0x800, 0x10000};
+                    final int value = random.nextBoolean() ? limits[overlongLength] - 1 - random.nextInt(4) : random.nextInt(limits[overlongLength]);
+                    encode(out, value, overlongLength);
+                    break;
+                case 5:
+                    // Surrogates.
+                    encode(out, 0xD800 + random.nextInt(0x800), 3);
+                    break;
+                case 6:
+                    // C1 control characters.
+                    encode(out, 0x80 + random.nextInt(0x20), 2);
+                    break;
+                case 7:
+                    // Beyond the last code point, with a valid lead byte or one of F5 to F7.
+                    encode(out, Character.MAX_CODE_POINT + 1 + (random.nextBoolean() ? 0 : random.nextInt(0x1FFFFF - Character.MAX_CODE_POINT)), 4);
+                    break;
+                case 8: {
+                    // A truncated sequence.
+                    final ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+                    final int codePoint = 0x80 + random.nextInt(Character.MAX_CODE_POINT + 1 - 0x80);
+                    encode(sequence, codePoint, lengthOf(codePoint));
+                    out.write(sequence.toByteArray(), 0, 1 + random.nextInt(sequence.size() - 1));
+                    break;
+                }
+                case 9:
+                    // Stray continuation bytes and bytes which never start a sequence.
+                    out.write(random.nextBoolean() ? 0x80 + random.nextInt(0x40) : 0xF8 + random.nextInt(8));
+                    break;
+                default:
+                    out.write(random.nextInt(256));
+                    break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int[] append(int[] array, int length, int[] values, int count) {
+        if (length + count > array.length) array = Arrays.copyOf(array, Math.max(2 * array.length, length + count));
+        System.arraycopy(values, 0, array, length, count);
+        return array;
+    }
+
+    @Test
+    public void chunkedDecodingMatchesDecodingByteByByte() {
+        final Random random = new Random(3);
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            final byte[] input = generate(random, 1 + random.nextInt(2000));
+            final ReferenceDecoder reference = new ReferenceDecoder();
+            for (byte b : input) reference.decode(b);
+            final int[] expected = reference.getOutput();
+
+            final Utf8Decoder arrayDecoder = new Utf8Decoder();
+            final Utf8Decoder bufferDecoder = new Utf8Decoder();
+            int[] fromArrays = new int[16];
+            int[] fromBuffers = new int[16];
+            int arrayCount = 0;
+            int bufferCount = 0;
+            for (int offset = 0; offset < input.length; ) {
+                final int length = Math.min(input.length - offset, random.nextBoolean() ? 1 + random.nextInt(9) : 1 + random.nextInt(300));
+                final int[] codePoints = new int[length + 1];
+
+                // Bytes after the length given must not be decoded:
+                final byte[] chunk = new byte[length + random.nextInt(16)];
+                Arrays.fill(chunk, (byte) 0xE4);
+                System.arraycopy(input, offset, chunk, 0, length);
+                int count = arrayDecoder.decode(chunk, length, codePoints);
+                fromArrays = append(fromArrays, arrayCount, codePoints, count);
+                arrayCount += count;
+
+                // Nor may the bytes outside of the position and limit of the buffer:
+                final int padding = random.nextInt(16);
+                final ByteBuffer buffer = random.nextBoolean() ? ByteBuffer.allocateDirect(length + 2 * padding) : ByteBuffer.allocate(length + 2 * padding);
+                while (buffer.hasRemaining()) buffer.put((byte) 0xE4);
+                buffer.position(padding);
+                buffer.put(input, offset, length);
+                buffer.limit(padding + length).position(padding);
+                count = bufferDecoder.decode(buffer, codePoints);
+                assertEquals(padding + length, buffer.position());
+                fromBuffers = append(fromBuffers, bufferCount, codePoints, count);
+                bufferCount += count;
+
+                offset += length;
+            }
+            assertArrayEquals("seed 3 iteration " + iteration, expected, Arrays.copyOf(fromArrays, arrayCount));
+            assertArrayEquals("seed 3 iteration " + iteration, expected, Arrays.copyOf(fromBuffers, bufferCount));
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WcWidthTest {
+
+    @Test
+    public void everyCodePointHasTheWidthOfTheIntervalSearch() {
+        for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+            if (WcWidth.width(codePoint) != WcWidth.searchWidth(codePoint))
+                assertEquals("U+" + Integer.toHexString(codePoint), WcWidth.searchWidth(codePoint), WcWidth.width(codePoint));
+        }
+    }
+
+    @Test
+    public void charArraysAreMeasuredByCodePoint() {
+        final char[] text = new String(Character.toChars(0x1F600)).concat("a\u4e2d\u0301").toCharArray();
+        assertEquals(2, WcWidth.width(text, 0));
+        assertEquals(1, WcWidth.width(text, 2));
+        assertEquals(2, WcWidth.width(text, 3));
+        assertEquals(0, WcWidth.width(text, 4));
+    }
+
+}